@@ -10,6 +10,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Binder;
@@ -22,6 +23,7 @@ import androidx.core.app.NotificationManagerCompat;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.CountingInputStream;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
@@ -29,6 +31,7 @@ import com.google.gson.stream.JsonToken;
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.crypto.axolotl.SQLiteAxolotlStore;
+import eu.siacs.conversations.entities.AbstractEntity;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Message;
@@ -36,6 +39,8 @@ import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.ui.ManageAccountActivity;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.BinaryBackup;
+import eu.siacs.conversations.utils.CompressedBlockInputStream;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 import eu.siacs.conversations.xmpp.Jid;
 
@@ -82,14 +87,10 @@ public class ImportBackupService extends Service {
     private NotificationManager notificationManager;
 
     private static final Collection<String> TABLE_ALLOW_LIST =
-            Arrays.asList(
-                    Account.TABLENAME,
-                    Conversation.TABLENAME,
-                    Message.TABLENAME,
-                    SQLiteAxolotlStore.PREKEY_TABLENAME,
-                    SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
-                    SQLiteAxolotlStore.SESSION_TABLENAME,
-                    SQLiteAxolotlStore.IDENTITIES_TABLENAME);
+            new ImmutableList.Builder<String>()
+                    .add(Account.TABLENAME, Conversation.TABLENAME, Message.TABLENAME)
+                    .addAll(SQLiteAxolotlStore.TABLENAMES)
+                    .build();
     private static final Pattern COLUMN_PATTERN = Pattern.compile("^[a-zA-Z_]+$");
 
     @Override
@@ -171,11 +172,14 @@ public class ImportBackupService extends Service {
                             if (file.isFile() && file.getName().endsWith(".ceb")) {
                                 try {
                                     final BackupFile backupFile = BackupFile.read(file);
-                                    if (accounts.contains(backupFile.getHeader().getJid())) {
+                                    final BackupFileHeader header = backupFile.getHeader();
+                                    // incremental backups can only be applied on top of an
+                                    // account that has already been restored
+                                    if (accounts.contains(header.getJid())
+                                            != header.isIncremental()) {
                                         Log.d(
                                                 Config.LOGTAG,
-                                                "skipping backup for "
-                                                        + backupFile.getHeader().getJid());
+                                                "skipping backup for " + header.getJid());
                                     } else {
                                         backupFiles.add(backupFile);
                                     }
@@ -268,7 +272,10 @@ public class ImportBackupService extends Service {
             final BackupFileHeader backupFileHeader = BackupFileHeader.read(dataInputStream);
             Log.d(Config.LOGTAG, backupFileHeader.toString());
 
-            if (mDatabaseBackend.getAccountJids(false).contains(backupFileHeader.getJid())) {
+            final boolean incremental = backupFileHeader.isIncremental();
+            final boolean accountExists =
+                    mDatabaseBackend.getAccountJids(false).contains(backupFileHeader.getJid());
+            if (accountExists && !incremental) {
                 synchronized (mOnBackupProcessedListeners) {
                     for (OnBackupProcessed l : mOnBackupProcessedListeners) {
                         l.onAccountAlreadySetup();
@@ -276,6 +283,19 @@ public class ImportBackupService extends Service {
                 }
                 return false;
             }
+            if (incremental && !accountExists) {
+                Log.d(
+                        Config.LOGTAG,
+                        "incremental backup requires "
+                                + backupFileHeader.getJid()
+                                + " to be restored first");
+                synchronized (mOnBackupProcessedListeners) {
+                    for (OnBackupProcessed l : mOnBackupProcessedListeners) {
+                        l.onBackupRestoreFailed();
+                    }
+                }
+                return false;
+            }
 
             final byte[] key = ExportBackupService.getKey(password, backupFileHeader.getSalt());
 
@@ -286,24 +306,18 @@ public class ImportBackupService extends Service {
             final CipherInputStream cipherInputStream =
                     new CipherInputStream(countingInputStream, cipher);
 
-            final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
-            final BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
-            final JsonReader jsonReader = new JsonReader(reader);
-            if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
-                jsonReader.beginArray();
-            } else {
-                throw new IllegalStateException("Backup file did not begin with array");
-            }
+            final Progress progress = new Progress(fileSize, countingInputStream);
             db.beginTransaction();
-            while (jsonReader.hasNext()) {
-                if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
-                    importRow(db, jsonReader, backupFileHeader.getJid(), password);
-                } else if (jsonReader.peek() == JsonToken.END_ARRAY) {
-                    jsonReader.endArray();
-                    continue;
-                }
-                updateImportBackupNotification(fileSize, countingInputStream.getCount());
+            if (backupFileHeader.getVersion() == BackupFileHeader.VERSION_JSON) {
+                importJson(db, cipherInputStream, backupFileHeader.getJid(), password, progress);
+            } else {
+                importBinary(
+                        db,
+                        cipherInputStream,
+                        backupFileHeader.getJid(),
+                        password,
+                        incremental,
+                        progress);
             }
             db.setTransactionSuccessful();
             db.endTransaction();
@@ -346,6 +360,65 @@ public class ImportBackupService extends Service {
         }
     }
 
+    private void importJson(
+            final SQLiteDatabase db,
+            final InputStream inputStream,
+            final Jid account,
+            final String passphrase,
+            final Progress progress)
+            throws IOException {
+        final GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream);
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
+        final JsonReader jsonReader = new JsonReader(reader);
+        if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+            jsonReader.beginArray();
+        } else {
+            throw new IllegalStateException("Backup file did not begin with array");
+        }
+        while (jsonReader.hasNext()) {
+            if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+                importRow(db, jsonReader, account, passphrase);
+            } else if (jsonReader.peek() == JsonToken.END_ARRAY) {
+                jsonReader.endArray();
+                continue;
+            }
+            progress.update();
+        }
+    }
+
+    private void importBinary(
+            final SQLiteDatabase db,
+            final InputStream inputStream,
+            final Jid account,
+            final String passphrase,
+            final boolean incremental,
+            final Progress progress)
+            throws IOException {
+        final BinaryBackup.Reader reader =
+                new BinaryBackup.Reader(
+                        new DataInputStream(new CompressedBlockInputStream(inputStream)),
+                        ImportBackupService::validateTable);
+        final ContentValues contentValues = new ContentValues();
+        String table;
+        while ((table = reader.read(contentValues)) != null) {
+            insertRow(db, table, contentValues, account, passphrase, incremental);
+            progress.update();
+        }
+    }
+
+    private static void validateTable(final String table, final String[] columns)
+            throws IOException {
+        if (!TABLE_ALLOW_LIST.contains(table)) {
+            throw new IOException(String.format("%s is not recognized for import", table));
+        }
+        for (final String column : columns) {
+            if (!COLUMN_PATTERN.matcher(column).matches()) {
+                throw new IOException(String.format("Unexpected column name %s", column));
+            }
+        }
+    }
+
     private void importRow(
             final SQLiteDatabase db,
             final JsonReader jsonReader,
@@ -384,6 +457,17 @@ public class ImportBackupService extends Service {
         }
         jsonReader.endObject();
         jsonReader.endObject();
+        insertRow(db, table, contentValues, account, passphrase, false);
+    }
+
+    private void insertRow(
+            final SQLiteDatabase db,
+            final String table,
+            final ContentValues contentValues,
+            final Jid account,
+            final String passphrase,
+            final boolean incremental)
+            throws IOException {
         if (Account.TABLENAME.equals(table)) {
             final Jid jid =
                     Jid.of(
@@ -396,8 +480,31 @@ public class ImportBackupService extends Service {
             } else {
                 throw new IOException("jid or password in table did not match backup");
             }
+            if (incremental) {
+                // the account has been restored from an earlier backup; it has to be that one
+                // for the conversations and messages that follow to belong to it
+                final String uuid = contentValues.getAsString(AbstractEntity.UUID);
+                if (DatabaseUtils.queryNumEntries(
+                                db, table, AbstractEntity.UUID + "=?", new String[] {uuid})
+                        == 0) {
+                    throw new IOException("incremental backup belongs to a different account");
+                }
+                return;
+            }
+        }
+        if (!incremental) {
+            db.insert(table, null, contentValues);
+        } else if (SQLiteAxolotlStore.TABLENAMES.contains(table)) {
+            // the account is loaded and using its sessions and prekeys right now; older copies
+            // from a backup would roll back live ratchets
+            return;
+        } else {
+            // conversations and messages. the account is live, so rows that already exist are at
+            // least as recent as the ones in the backup (and conversations are held in memory);
+            // only what is missing gets added. replacing would also delete the existing row first
+            // and cascade to its messages
+            db.insertWithOnConflict(table, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
         }
-        db.insert(table, null, contentValues);
     }
 
     private void notifySuccess() {
@@ -441,6 +548,27 @@ public class ImportBackupService extends Service {
         return this.binder;
     }
 
+    private class Progress {
+        private final long total;
+        private final CountingInputStream countingInputStream;
+        private int percentage = -1;
+
+        private Progress(final long total, final CountingInputStream countingInputStream) {
+            this.total = total;
+            this.countingInputStream = countingInputStream;
+        }
+
+        // posting a notification for every row would take longer than the import itself
+        private void update() {
+            final long current = countingInputStream.getCount();
+            final int percentage = total == 0 ? 0 : (int) (current * 100 / total);
+            if (percentage != this.percentage) {
+                this.percentage = percentage;
+                updateImportBackupNotification(total, current);
+            }
+        }
+    }
+
     public interface OnBackupFilesLoaded {
         void onBackupFilesLoaded(List<BackupFile> files);
     }
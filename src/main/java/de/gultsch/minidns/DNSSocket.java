@@ -4,7 +4,9 @@ import android.util.Log;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
 import de.measite.minidns.DNSMessage;
@@ -21,10 +23,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
@@ -40,11 +44,14 @@ final class DNSSocket implements Closeable {
 
     public static final int QUERY_TIMEOUT = 5_000;
 
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final Semaphore semaphore = new Semaphore(1);
     private final Map<Integer, SettableFuture<DNSMessage>> inFlightQueries = new HashMap<>();
     private final Socket socket;
     private final DataInputStream dataInputStream;
     private final DataOutputStream dataOutputStream;
+    private volatile boolean closed = false;
 
     private DNSSocket(
             final Socket socket,
@@ -59,7 +66,13 @@ final class DNSSocket implements Closeable {
     private void readDNSMessages() {
         try {
             while (socket.isConnected()) {
-                final DNSMessage response = readDNSMessage();
+                final DNSMessage response;
+                try {
+                    response = readDNSMessage();
+                } catch (final SocketTimeoutException e) {
+                    // queries time out individually; an idle socket is not an error
+                    continue;
+                }
                 final SettableFuture<DNSMessage> future;
                 synchronized (inFlightQueries) {
                     future = inFlightQueries.remove(response.id);
@@ -73,18 +86,19 @@ final class DNSSocket implements Closeable {
             evictInFlightQueries(new EOFException());
         } catch (final IOException e) {
             evictInFlightQueries(e);
+        } finally {
+            closeQuietly();
         }
     }
 
     private void evictInFlightQueries(final Exception e) {
+        final List<SettableFuture<DNSMessage>> futures;
         synchronized (inFlightQueries) {
-            final Iterator<Map.Entry<Integer, SettableFuture<DNSMessage>>> iterator =
-                    inFlightQueries.entrySet().iterator();
-            while (iterator.hasNext()) {
-                final Map.Entry<Integer, SettableFuture<DNSMessage>> entry = iterator.next();
-                entry.getValue().setException(e);
-                iterator.remove();
-            }
+            futures = ImmutableList.copyOf(inFlightQueries.values());
+            inFlightQueries.clear();
+        }
+        for (final SettableFuture<DNSMessage> future : futures) {
+            future.setException(e);
         }
     }
 
@@ -145,8 +159,9 @@ final class DNSSocket implements Closeable {
     }
 
     public DNSMessage query(final DNSMessage query) throws IOException, InterruptedException {
+        final ListenableFuture<DNSMessage> future = queryAsync(query);
         try {
-            return queryAsync(query).get(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+            return future.get(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (final ExecutionException e) {
             final Throwable cause = e.getCause();
             if (cause instanceof IOException) {
@@ -155,42 +170,95 @@ final class DNSSocket implements Closeable {
                 throw new IOException(e);
             }
         } catch (final TimeoutException e) {
+            future.cancel(false);
             throw new IOException(e);
         }
     }
 
     public ListenableFuture<DNSMessage> queryAsync(final DNSMessage query)
             throws InterruptedException, IOException {
+        if (this.closed) {
+            throw new IOException("DNS socket has been closed");
+        }
         final SettableFuture<DNSMessage> responseFuture = SettableFuture.create();
+        final DNSMessage message;
         synchronized (this.inFlightQueries) {
-            this.inFlightQueries.put(query.id, responseFuture);
+            message = withUniqueId(query);
+            this.inFlightQueries.put(message.id, responseFuture);
         }
+        responseFuture.addListener(
+                () -> {
+                    synchronized (this.inFlightQueries) {
+                        this.inFlightQueries.remove(message.id, responseFuture);
+                    }
+                },
+                MoreExecutors.directExecutor());
         this.semaphore.acquire();
         try {
-            query.writeTo(this.dataOutputStream);
+            message.writeTo(this.dataOutputStream);
             this.dataOutputStream.flush();
+        } catch (final IOException e) {
+            responseFuture.setException(e);
+            throw e;
         } finally {
             this.semaphore.release();
         }
         return responseFuture;
     }
 
+    /**
+     * Responses are matched to their queries by message id only. Concurrent queries that happen
+     * to share an id (the ids are random but only 16 bit) are therefore re-numbered before being
+     * written to the socket. Must be called while holding the lock on inFlightQueries.
+     */
+    private DNSMessage withUniqueId(final DNSMessage query) throws IOException {
+        if (!this.inFlightQueries.containsKey(query.id)) {
+            return query;
+        }
+        if (this.inFlightQueries.size() >= 0xffff) {
+            throw new IOException("Too many in flight queries");
+        }
+        int id;
+        do {
+            id = RANDOM.nextInt(0x10000);
+        } while (this.inFlightQueries.containsKey(id));
+        return query.asBuilder().setId(id).build();
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * A timeout while waiting for the first byte of a response only means that the socket is idle
+     * and is passed on as is. Once part of a frame has been consumed a timeout would leave the
+     * stream out of sync (the rest of the payload would be read as the next length prefix), so it
+     * is turned into a plain IOException that closes the socket.
+     */
     private DNSMessage readDNSMessage() throws IOException {
-        final int length = this.dataInputStream.readUnsignedShort();
-        byte[] data = new byte[length];
-        int read = 0;
-        while (read < length) {
-            read += this.dataInputStream.read(data, read, length - read);
+        final int first = this.dataInputStream.read();
+        if (first < 0) {
+            throw new EOFException();
+        }
+        final byte[] data;
+        try {
+            final int length = (first << 8) | this.dataInputStream.readUnsignedByte();
+            data = new byte[length];
+            this.dataInputStream.readFully(data);
+        } catch (final SocketTimeoutException e) {
+            throw new IOException("Timed out in the middle of a DNS response", e);
         }
         return NetworkDataSource.readDNSMessage(data);
     }
 
     @Override
     public void close() throws IOException {
+        this.closed = true;
         this.socket.close();
     }
 
     public void closeQuietly() {
+        this.closed = true;
         try {
             this.socket.close();
         } catch (final IOException ignored) {
@@ -137,7 +137,9 @@ public class NetworkDataSource extends DNSDataSource {
     protected DNSMessage queryDnsSocket(final DNSMessage message, final DNSServer dnsServer)
             throws IOException, InterruptedException {
         final DNSSocket cachedDnsSocket = socketCache.getIfPresent(dnsServer);
-        if (cachedDnsSocket != null) {
+        if (cachedDnsSocket != null && cachedDnsSocket.isClosed()) {
+            socketCache.invalidate(dnsServer);
+        } else if (cachedDnsSocket != null) {
             try {
                 return cachedDnsSocket.query(message);
             } catch (final IOException e) {
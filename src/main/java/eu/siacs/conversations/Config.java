@@ -90,6 +90,8 @@ public final class Config {
     public static final int AVATAR_SIZE = 192;
     public static final Bitmap.CompressFormat AVATAR_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int AVATAR_CHAR_LIMIT = 9400;
+    // upper bound for avatars fetched from a url in the metadata that do not announce their size
+    public static final int AVATAR_DOWNLOAD_LIMIT = 1024 * 1024;
 
     public static final int IMAGE_SIZE = 1920;
     public static final Bitmap.CompressFormat IMAGE_FORMAT = Bitmap.CompressFormat.JPEG;
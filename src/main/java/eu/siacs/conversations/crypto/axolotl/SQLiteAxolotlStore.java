@@ -16,6 +16,7 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
 
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -31,6 +32,8 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public static final String SIGNED_PREKEY_TABLENAME = "signed_prekeys";
 	public static final String SESSION_TABLENAME = "sessions";
 	public static final String IDENTITIES_TABLENAME = "identities";
+	// every table holding the state of an account; backed up and restored together
+	public static final List<String> TABLENAMES = Arrays.asList(PREKEY_TABLENAME, SIGNED_PREKEY_TABLENAME, SESSION_TABLENAME, IDENTITIES_TABLENAME);
 	public static final String ACCOUNT = "account";
 	public static final String DEVICE_ID = "device_id";
 	public static final String ID = "id";
@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -80,6 +81,7 @@ public class Account extends AbstractEntity implements AvatarService.Avatarable
     protected final JSONObject keys;
     private final Roster roster = new Roster(this);
     private final Collection<Jid> blocklist = new CopyOnWriteArraySet<>();
+    private final AtomicInteger avatarGeneration = new AtomicInteger(0);
     public final Set<Conversation> pendingConferenceJoins = new HashSet<>();
     public final Set<Conversation> pendingConferenceLeaves = new HashSet<>();
     public final Set<Conversation> inProgressConferenceJoins = new HashSet<>();
@@ -683,6 +685,15 @@ public class Account extends AbstractEntity implements AvatarService.Avatarable
         return this.avatar;
     }
 
+    /** Part of the avatar cache keys; incrementing it makes all cached avatars stale. */
+    public int getAvatarGeneration() {
+        return avatarGeneration.get();
+    }
+
+    public void invalidateAvatar() {
+        avatarGeneration.incrementAndGet();
+    }
+
     public void activateGracePeriod(final long duration) {
         if (duration > 0) {
             this.mEndGracePeriod = SystemClock.elapsedRealtime() + duration;
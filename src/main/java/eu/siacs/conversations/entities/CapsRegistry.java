@@ -0,0 +1,155 @@
+package eu.siacs.conversations.entities;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import eu.siacs.conversations.Config;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide registry of entity capabilities keyed by (hash, ver). Every account, contact and MUC
+ * occupant announcing the same ver shares one {@link ServiceDiscoveryResult}, so the JSON stored in
+ * the database is parsed at most once per process. Feature lists are stored as bitsets over a
+ * dictionary of namespaces; identical feature sets (which is the common case since most contacts
+ * run one of a handful of clients) are interned and feature lookups are a single bit test.
+ */
+public final class CapsRegistry {
+
+    private static final int MAX_ENTRIES = 256;
+
+    // namespaces beyond this limit are not assigned a bit to keep bogus caps from growing the
+    // dictionary without bounds
+    private static final int MAX_NAMESPACES = 2048;
+
+    private static final CapsRegistry INSTANCE = new CapsRegistry();
+
+    private static final ConcurrentHashMap<String, Integer> NAMESPACES = new ConcurrentHashMap<>();
+    private static final Interner<FeatureSet> FEATURE_SETS = Interners.newWeakInterner();
+
+    private final LruCache<String, ServiceDiscoveryResult> results =
+            new LruCache<String, ServiceDiscoveryResult>(MAX_ENTRIES) {
+                @Override
+                protected void entryRemoved(
+                        final boolean evicted,
+                        final String key,
+                        final ServiceDiscoveryResult oldValue,
+                        final ServiceDiscoveryResult newValue) {
+                    if (evicted) {
+                        // frequent evictions mean the registry is too small for the working set
+                        Log.d(
+                                Config.LOGTAG,
+                                "caps registry evicted "
+                                        + key
+                                        + " (hits="
+                                        + hitCount()
+                                        + ", misses="
+                                        + missCount()
+                                        + ")");
+                    }
+                }
+            };
+
+    private CapsRegistry() {}
+
+    public static CapsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private static String key(final String hash, final String ver) {
+        return hash + ':' + ver;
+    }
+
+    public ServiceDiscoveryResult get(final String hash, final String ver) {
+        return results.get(key(hash, ver));
+    }
+
+    public void put(final String hash, final String ver, final ServiceDiscoveryResult result) {
+        results.put(key(hash, ver), result);
+    }
+
+    static FeatureSet features(final Collection<String> features) {
+        final BitSet bits = new BitSet();
+        final ImmutableSet.Builder<String> overflow = ImmutableSet.builder();
+        for (final String feature : features) {
+            final int index = index(feature);
+            if (index < 0) {
+                overflow.add(feature);
+            } else {
+                bits.set(index);
+            }
+        }
+        return FEATURE_SETS.intern(new FeatureSet(bits, overflow.build()));
+    }
+
+    private static int index(final String feature) {
+        final Integer index = NAMESPACES.get(feature);
+        if (index != null) {
+            return index;
+        }
+        synchronized (NAMESPACES) {
+            final Integer existing = NAMESPACES.get(feature);
+            if (existing != null) {
+                return existing;
+            }
+            final int size = NAMESPACES.size();
+            if (size >= MAX_NAMESPACES) {
+                return -1;
+            }
+            NAMESPACES.put(feature, size);
+            return size;
+        }
+    }
+
+    /** Immutable set of features. Instances are interned and must never be modified. */
+    static final class FeatureSet {
+
+        private final BitSet bits;
+        private final ImmutableSet<String> overflow;
+
+        private FeatureSet(final BitSet bits, final ImmutableSet<String> overflow) {
+            this.bits = bits;
+            this.overflow = overflow;
+        }
+
+        boolean contains(final String feature) {
+            final Integer index = NAMESPACES.get(feature);
+            if (index != null) {
+                return bits.get(index);
+            }
+            return !overflow.isEmpty() && overflow.contains(feature);
+        }
+
+        boolean containsAll(final Collection<String> features) {
+            for (final String feature : features) {
+                if (!contains(feature)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FeatureSet)) {
+                return false;
+            }
+            final FeatureSet other = (FeatureSet) o;
+            return bits.equals(other.bits) && overflow.equals(other.overflow);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * bits.hashCode() + overflow.hashCode();
+        }
+    }
+}
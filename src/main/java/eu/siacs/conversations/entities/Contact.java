@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -70,6 +71,12 @@ public class Contact implements ListItem, Blockable {
     private String mLastPresence = null;
     private RtpCapability.Capability rtpCapability;
 
+    // incremented on every change to a persisted field; the roster writer only touches contacts
+    // whose modification count differs from the one it last persisted
+    private final AtomicInteger modifications = new AtomicInteger(0);
+    private volatile int persistedModifications = 0;
+    private final AtomicInteger avatarGeneration = new AtomicInteger(0);
+
     public Contact(final String account, final String systemName, final String serverName, final String presenceName,
                    final Jid jid, final int subscription, final String photoUri,
                    final Uri systemAccount, final String keys, final String avatar, final long lastseen,
@@ -107,6 +114,7 @@ public class Contact implements ListItem, Blockable {
     public Contact(final Jid jid) {
         this.jid = jid;
         this.keys = new JSONObject();
+        this.modified();
     }
 
     public static Contact fromCursor(final Cursor cursor) {
@@ -252,7 +260,26 @@ public class Contact implements ListItem, Blockable {
 
     public void setAccount(Account account) {
         this.account = account;
-        this.accountUuid = account.getUuid();
+        if (!account.getUuid().equals(this.accountUuid)) {
+            this.accountUuid = account.getUuid();
+            this.modified();
+        }
+    }
+
+    private void modified() {
+        this.modifications.incrementAndGet();
+    }
+
+    public int getModifications() {
+        return this.modifications.get();
+    }
+
+    public boolean isDirty() {
+        return this.modifications.get() != this.persistedModifications;
+    }
+
+    public void markPersisted(final int modifications) {
+        this.persistedModifications = modifications;
     }
 
     public Presences getPresences() {
@@ -279,9 +306,11 @@ public class Contact implements ListItem, Blockable {
     public boolean setPhotoUri(String uri) {
         if (uri != null && !uri.equals(this.photoUri)) {
             this.photoUri = uri;
+            this.modified();
             return true;
         } else if (this.photoUri != null && uri == null) {
             this.photoUri = null;
+            this.modified();
             return true;
         } else {
             return false;
@@ -289,18 +318,27 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setServerName(String serverName) {
-        this.serverName = serverName;
+        if (!Objects.equals(this.serverName, serverName)) {
+            this.serverName = serverName;
+            this.modified();
+        }
     }
 
     public boolean setSystemName(String systemName) {
         final String old = getDisplayName();
-        this.systemName = systemName;
+        if (!Objects.equals(this.systemName, systemName)) {
+            this.systemName = systemName;
+            this.modified();
+        }
         return !old.equals(getDisplayName());
     }
 
     public boolean setPresenceName(String presenceName) {
         final String old = getDisplayName();
-        this.presenceName = presenceName;
+        if (!Objects.equals(this.presenceName, presenceName)) {
+            this.presenceName = presenceName;
+            this.modified();
+        }
         return !old.equals(getDisplayName());
     }
 
@@ -309,7 +347,10 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setSystemAccount(Uri lookupUri) {
-        this.systemAccount = lookupUri;
+        if (!Objects.equals(this.systemAccount, lookupUri)) {
+            this.systemAccount = lookupUri;
+            this.modified();
+        }
     }
 
     private Collection<String> getGroups(final boolean unique) {
@@ -342,7 +383,11 @@ public class Contact implements ListItem, Blockable {
         synchronized (this.keys) {
             try {
                 this.keys.put("pgp_keyid", keyId);
-                return previousKeyId != keyId;
+                if (previousKeyId != keyId) {
+                    this.modified();
+                    return true;
+                }
+                return false;
             } catch (final JSONException ignored) {
             }
         }
@@ -350,11 +395,17 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setOption(int option) {
-        this.subscription |= 1 << option;
+        if (!getOption(option)) {
+            this.subscription |= 1 << option;
+            this.modified();
+        }
     }
 
     public void resetOption(int option) {
-        this.subscription &= ~(1 << option);
+        if (getOption(option)) {
+            this.subscription &= ~(1 << option);
+            this.modified();
+        }
     }
 
     public boolean getOption(int option) {
@@ -416,12 +467,16 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void parseGroupsFromElement(Element item) {
-        this.groups = new JSONArray();
+        final JSONArray groups = new JSONArray();
         for (Element element : item.getChildren()) {
             if (element.getName().equals("group") && element.getContent() != null) {
-                this.groups.put(element.getContent());
+                groups.put(element.getContent());
             }
         }
+        if (!groups.toString().equals(this.groups.toString())) {
+            this.groups = groups;
+            this.modified();
+        }
     }
 
     public Element asElement() {
@@ -458,12 +513,22 @@ public class Contact implements ListItem, Blockable {
             return;
         }
         this.avatar = avatar;
+        this.modified();
     }
 
     public String getAvatarFilename() {
         return avatar == null ? null : avatar.getFilename();
     }
 
+    /** Part of the avatar cache keys; incrementing it makes all cached avatars stale. */
+    public int getAvatarGeneration() {
+        return avatarGeneration.get();
+    }
+
+    public void invalidateAvatar() {
+        avatarGeneration.incrementAndGet();
+    }
+
     public Avatar getAvatar() {
         return avatar;
     }
@@ -518,6 +583,7 @@ public class Contact implements ListItem, Blockable {
     public boolean setLastseen(long timestamp) {
         if (timestamp > this.mLastseen) {
             this.mLastseen = timestamp;
+            this.modified();
             return true;
         } else {
             return false;
@@ -529,7 +595,10 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setLastResource(String resource) {
-        this.mLastPresence = resource;
+        if (!Objects.equals(this.mLastPresence, resource)) {
+            this.mLastPresence = resource;
+            this.modified();
+        }
     }
 
     public String getLastResource() {
@@ -584,7 +653,11 @@ public class Contact implements ListItem, Blockable {
     public boolean refreshRtpCapability() {
         final RtpCapability.Capability previous = this.rtpCapability;
         this.rtpCapability = RtpCapability.check(this, false);
-        return !Objects.equals(previous, this.rtpCapability);
+        if (Objects.equals(previous, this.rtpCapability)) {
+            return false;
+        }
+        this.modified();
+        return true;
     }
 
     public RtpCapability.Capability getRtpCapability() {
@@ -15,11 +15,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.crypto.OmemoSetting;
@@ -68,6 +70,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
+    private final AtomicBoolean messagesUnloaded = new AtomicBoolean(false);
+    private final AtomicInteger sortKeyGeneration = new AtomicInteger();
+    // covers the room avatar, the tiles drawn from its participants and their own avatars
+    private final AtomicInteger avatarGeneration = new AtomicInteger();
+    private volatile SortKey sortKey = null;
     protected Account account = null;
     private String draftMessage;
     private final String name;
@@ -321,6 +328,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         synchronized (this.messages) {
             this.messages.clear();
         }
+        invalidateSortKey();
     }
 
     public boolean setIncomingChatState(ChatState state) {
@@ -365,6 +373,59 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         }
     }
 
+    /**
+     * Drops every message except the latest one (which is kept for the conversation overview).
+     * Conversations with messages that are still being sent or transferred are left alone.
+     *
+     * @return the number of messages that were dropped
+     */
+    public int unloadMessages() {
+        synchronized (this.messages) {
+            final int size = messages.size();
+            if (size <= 1) {
+                return 0;
+            }
+            for (final Message message : this.messages) {
+                final int status = message.getStatus();
+                if (message.getTransferable() != null
+                        || status == Message.STATUS_UNSEND
+                        || status == Message.STATUS_WAITING
+                        || status == Message.STATUS_OFFERED) {
+                    return 0;
+                }
+            }
+            final List<Message> discards = this.messages.subList(0, size - 1);
+            final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
+            if (pgpDecryptionService != null) {
+                pgpDecryptionService.discard(discards);
+            }
+            discards.clear();
+            untieMessages();
+            messagesUnloaded.set(true);
+            return size - 1;
+        }
+    }
+
+    /** @return true exactly once after {@link #unloadMessages()} dropped messages */
+    public boolean consumeMessagesUnloaded() {
+        return messagesUnloaded.compareAndSet(true, false);
+    }
+
+    /** Hands back a flag from {@link #consumeMessagesUnloaded()} whose reload has to be retried. */
+    public void restoreMessagesUnloaded() {
+        messagesUnloaded.set(true);
+    }
+
+    public long getApproximateMessageMemory() {
+        long memory = 0;
+        synchronized (this.messages) {
+            for (final Message message : this.messages) {
+                memory += message.getApproximateMemory();
+            }
+        }
+        return memory;
+    }
+
     public void findUnsentTextMessages(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
         synchronized (this.messages) {
@@ -540,10 +601,34 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     @Override
     public int compareTo(@NonNull Conversation another) {
-        return ComparisonChain.start()
-                .compareFalseFirst(another.getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false), getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false))
-                .compare(another.getSortableTime(), getSortableTime())
-                .result();
+        return getSortKey().compareTo(another.getSortKey());
+    }
+
+    /**
+     * The sort key is cached and only recomputed after messages were added, removed or moved in
+     * time or an attribute (draft, pinning) changed. The returned instance is replaced rather than
+     * modified, so callers can detect changes by identity.
+     */
+    public SortKey getSortKey() {
+        final SortKey current = this.sortKey;
+        final int generation = sortKeyGeneration.get();
+        if (current != null && current.generation == generation) {
+            return current;
+        }
+        final SortKey key =
+                new SortKey(
+                        getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false),
+                        getSortableTime(),
+                        generation);
+        // do not publish a key that got invalidated while it was computed
+        if (sortKeyGeneration.get() == generation) {
+            this.sortKey = key;
+        }
+        return key;
+    }
+
+    void invalidateSortKey() {
+        sortKeyGeneration.incrementAndGet();
     }
 
     private long getSortableTime() {
@@ -592,12 +677,19 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return unread;
     }
 
+    public Message getFirstMessage() {
+        synchronized (this.messages) {
+            return this.messages.isEmpty() ? null : this.messages.get(0);
+        }
+    }
+
     public Message getLatestMessage() {
         synchronized (this.messages) {
             if (this.messages.size() == 0) {
                 Message message = new Message(this, "", Message.ENCRYPTION_NONE);
                 message.setType(Message.TYPE_STATUS);
-                message.setTime(Math.max(getCreated(), getLastClearHistory().getTimestamp()));
+                // not setTime(); this placeholder must not invalidate the sort key it is used for
+                message.timeSent = Math.max(getCreated(), getLastClearHistory().getTimestamp());
                 return message;
             } else {
                 return this.messages.get(this.messages.size() - 1);
@@ -804,7 +896,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                     if (message.hasFileOnRemoteHost()) {
                         otherBody = message.getFileParams().url;
                     } else {
-                        otherBody = message.body;
+                        otherBody = message.getBody();
                     }
                     if (otherBody != null && otherBody.equals(body)) {
                         return message;
@@ -884,6 +976,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public boolean setAttribute(String key, String value) {
+        invalidateSortKey();
         synchronized (this.attributes) {
             try {
                 if (value == null) {
@@ -983,18 +1076,28 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         synchronized (this.messages) {
             this.messages.add(message);
         }
+        invalidateSortKey();
+    }
+
+    public void removeAll(final Collection<Message> messages) {
+        synchronized (this.messages) {
+            this.messages.removeAll(messages);
+        }
+        invalidateSortKey();
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
         }
+        invalidateSortKey();
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
         }
+        invalidateSortKey();
         account.getPgpDecryptionService().decrypt(messages);
     }
 
@@ -1007,6 +1110,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             }
             untieMessages();
         }
+        invalidateSortKey();
     }
 
     public void sort() {
@@ -1022,6 +1126,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             });
             untieMessages();
         }
+        invalidateSortKey();
     }
 
     private void untieMessages() {
@@ -1109,10 +1214,39 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return getName().toString();
     }
 
+    /** Part of the avatar cache keys; incrementing it makes all cached avatars stale. */
+    public int getAvatarGeneration() {
+        return avatarGeneration.get();
+    }
+
+    public void invalidateAvatar() {
+        avatarGeneration.incrementAndGet();
+    }
+
     public interface OnMessageFound {
         void onMessageFound(final Message message);
     }
 
+    public static final class SortKey implements Comparable<SortKey> {
+        private final boolean pinned;
+        private final long time;
+        private final int generation;
+
+        private SortKey(final boolean pinned, final long time, final int generation) {
+            this.pinned = pinned;
+            this.time = time;
+            this.generation = generation;
+        }
+
+        @Override
+        public int compareTo(@NonNull SortKey another) {
+            return ComparisonChain.start()
+                    .compareFalseFirst(another.pinned, pinned)
+                    .compare(another.time, time)
+                    .result();
+        }
+    }
+
     public static class Draft {
         private final String message;
         private final long timestamp;
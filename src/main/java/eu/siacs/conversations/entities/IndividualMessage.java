@@ -66,7 +66,8 @@ public class IndividualMessage extends Message {
 		final Message separator = new IndividualMessage(message.getConversation());
 		separator.setType(Message.TYPE_STATUS);
 		separator.body = MessageAdapter.DATE_SEPARATOR_BODY;
-		separator.setTime(message.getTimeSent());
+		// not setTime(); separators are not part of the conversation and do not change its order
+		separator.timeSent = message.getTimeSent();
 		return separator;
 	}
 
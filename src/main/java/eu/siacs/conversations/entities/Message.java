@@ -12,6 +12,7 @@ import com.google.common.primitives.Longs;
 
 import org.json.JSONException;
 
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -87,6 +88,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     public static final String DELETED = "deleted";
     public static final String ME_COMMAND = "/me ";
 
+    // bodies longer than this are not kept in memory but loaded from the database on demand
+    public static final int LAZY_BODY_THRESHOLD = 4096;
+    public static final String BODY_DEFERRED = "bodyDeferred";
+    private static final int APPROXIMATE_OVERHEAD = 512;
+
     public static final String ERROR_MESSAGE_CANCELLED = "eu.siacs.conversations.cancelled";
 
 
@@ -103,7 +109,8 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     protected boolean deleted = false;
     protected boolean carbon = false;
     protected boolean oob = false;
-    protected List<Edit> edits = new ArrayList<>();
+    private List<Edit> edits = null;
+    private String editsJson = null;
     protected String relativeFilePath;
     protected boolean read = true;
     protected String remoteMsgId = null;
@@ -115,10 +122,16 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     private Message mPreviousMessage = null;
     private String axolotlFingerprint = null;
     private String errorMessage = null;
-    private Set<ReadByMarker> readByMarkers = new CopyOnWriteArraySet<>();
+    private Set<ReadByMarker> readByMarkers = null;
+    private String readByMarkersJson = null;
+    private BodyLoader bodyLoader = null;
+    private SoftReference<String> cachedBody = null;
+    // the row of a deferred body was gone when it was loaded
+    private boolean bodyMissing = false;
+    private int bodyRevision = 0;
 
     private Boolean isGeoUri = null;
-    private Boolean isEmojisOnly = null;
+    private Integer emojiCount = null;
     private Boolean treatAsDownloadable = null;
     private FileParams fileParams = null;
     private List<MucOptions.User> counterparts;
@@ -205,22 +218,34 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         this.serverMsgId = serverMsgId;
         this.axolotlFingerprint = fingerprint;
         this.read = read;
-        this.edits = Edit.fromJson(edited);
+        this.editsJson = edited;
         this.oob = oob;
         this.errorMessage = errorMessage;
-        this.readByMarkers = readByMarkers == null ? new CopyOnWriteArraySet<>() : readByMarkers;
+        this.readByMarkers = readByMarkers;
         this.markable = markable;
         this.deleted = deleted;
         this.bodyLanguage = bodyLanguage;
     }
 
     public static Message fromCursor(Cursor cursor, Conversation conversation) {
-        return new Message(conversation,
+        return fromCursor(cursor, conversation, null);
+    }
+
+    /**
+     * @param bodyLoader used to load bodies that were left out of the cursor (see {@link
+     *     #BODY_DEFERRED}); may be null if the cursor always contains the full body
+     */
+    public static Message fromCursor(
+            final Cursor cursor, final Conversation conversation, final BodyLoader bodyLoader) {
+        final int deferredIndex = cursor.getColumnIndex(BODY_DEFERRED);
+        final boolean deferred =
+                bodyLoader != null && deferredIndex >= 0 && cursor.getInt(deferredIndex) > 0;
+        final Message message = new Message(conversation,
                 cursor.getString(cursor.getColumnIndex(UUID)),
                 cursor.getString(cursor.getColumnIndex(CONVERSATION)),
                 fromString(cursor.getString(cursor.getColumnIndex(COUNTERPART))),
                 fromString(cursor.getString(cursor.getColumnIndex(TRUE_COUNTERPART))),
-                cursor.getString(cursor.getColumnIndex(BODY)),
+                deferred ? null : cursor.getString(cursor.getColumnIndex(BODY)),
                 cursor.getLong(cursor.getColumnIndex(TIME_SENT)),
                 cursor.getInt(cursor.getColumnIndex(ENCRYPTION)),
                 cursor.getInt(cursor.getColumnIndex(STATUS)),
@@ -234,11 +259,17 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 cursor.getString(cursor.getColumnIndex(EDITED)),
                 cursor.getInt(cursor.getColumnIndex(OOB)) > 0,
                 cursor.getString(cursor.getColumnIndex(ERROR_MESSAGE)),
-                ReadByMarker.fromJsonString(cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS))),
+                null,
                 cursor.getInt(cursor.getColumnIndex(MARKABLE)) > 0,
                 cursor.getInt(cursor.getColumnIndex(DELETED)) > 0,
                 cursor.getString(cursor.getColumnIndex(BODY_LANGUAGE))
         );
+        message.readByMarkersJson = cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS));
+        if (deferred) {
+            message.body = null;
+            message.bodyLoader = bodyLoader;
+        }
+        return message;
     }
 
     private static Jid fromString(String value) {
@@ -282,7 +313,12 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         } else {
             values.put(TRUE_COUNTERPART, trueCounterpart.toString());
         }
-        values.put(BODY, body.length() > Config.MAX_STORAGE_MESSAGE_CHARS ? body.substring(0, Config.MAX_STORAGE_MESSAGE_CHARS) : body);
+        // a deferred body that is not in memory is still in the database; it is neither loaded
+        // nor overwritten just to store the other columns
+        final String body = peekBody();
+        if (body != null) {
+            values.put(BODY, body.length() > Config.MAX_STORAGE_MESSAGE_CHARS ? body.substring(0, Config.MAX_STORAGE_MESSAGE_CHARS) : body);
+        }
         values.put(TIME_SENT, timeSent);
         values.put(ENCRYPTION, encryption);
         values.put(STATUS, status);
@@ -294,13 +330,13 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         values.put(FINGERPRINT, axolotlFingerprint);
         values.put(READ, read ? 1 : 0);
         try {
-            values.put(EDITED, Edit.toJson(edits));
+            values.put(EDITED, Edit.toJson(edits()));
         } catch (JSONException e) {
             Log.e(Config.LOGTAG, "error persisting json for edits", e);
         }
         values.put(OOB, oob ? 1 : 0);
         values.put(ERROR_MESSAGE, errorMessage);
-        values.put(READ_BY_MARKERS, ReadByMarker.toJson(readByMarkers).toString());
+        values.put(READ_BY_MARKERS, ReadByMarker.toJson(readByMarkers()).toString());
         values.put(MARKABLE, markable ? 1 : 0);
         values.put(DELETED, deleted ? 1 : 0);
         values.put(BODY_LANGUAGE, bodyLanguage);
@@ -337,7 +373,70 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public String getBody() {
-        return body;
+        final BodyLoader bodyLoader;
+        synchronized (this) {
+            bodyLoader = this.bodyLoader;
+            if (bodyLoader == null) {
+                return body;
+            }
+            final String cached = this.cachedBody == null ? null : this.cachedBody.get();
+            if (cached != null) {
+                return cached;
+            }
+            if (bodyMissing) {
+                return "";
+            }
+        }
+        final String loaded = bodyLoader.loadBody(this.uuid);
+        synchronized (this) {
+            if (this.bodyLoader == null) {
+                // setBody() was called in the meantime
+                return body;
+            }
+            setDeferredBody(loaded);
+        }
+        return Strings.nullToEmpty(loaded);
+    }
+
+    /**
+     * Hands over a body that was left out of the cursor, typically loaded in a batch by {@link
+     * eu.siacs.conversations.persistance.DatabaseBackend#loadDeferredBodies(java.util.Collection)}.
+     *
+     * @param body the body or null if the message is no longer in the database
+     */
+    public synchronized void setDeferredBody(final String body) {
+        if (this.bodyLoader == null) {
+            return;
+        }
+        if (body == null) {
+            this.bodyMissing = true;
+        } else {
+            this.cachedBody = new SoftReference<>(body);
+        }
+    }
+
+    // deferred bodies are longer than LAZY_BODY_THRESHOLD, no matter if they are in memory or not;
+    // that is too long to be merged (see Config.MAX_DISPLAY_MESSAGE_CHARS) or to equal a short body
+    private synchronized boolean hasDeferredBody() {
+        return bodyLoader != null;
+    }
+
+    /** Whether {@link #getBody()} returns without going to the database. */
+    public synchronized boolean isBodyLoaded() {
+        return bodyLoader == null || bodyMissing || peekBody() != null;
+    }
+
+    // the body if it is in memory; null for deferred bodies that have not been loaded (or are gone)
+    private synchronized String peekBody() {
+        if (bodyLoader == null) {
+            return body;
+        }
+        return cachedBody == null ? null : cachedBody.get();
+    }
+
+    /** Changes whenever {@link #setBody(String)} is called; cheaper to compare than the body. */
+    public synchronized int getBodyRevision() {
+        return bodyRevision;
     }
 
     public synchronized void setBody(String body) {
@@ -345,12 +444,25 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
             throw new Error("You should not set the message body to null");
         }
         this.body = body;
+        this.bodyLoader = null;
+        this.cachedBody = null;
+        this.bodyMissing = false;
+        this.bodyRevision++;
         this.isGeoUri = null;
-        this.isEmojisOnly = null;
+        this.emojiCount = null;
         this.treatAsDownloadable = null;
         this.fileParams = null;
     }
 
+    /**
+     * Rough estimate of the heap retained by this message: a fixed amount for the object and its
+     * ids plus the body if it is held in memory. Deferred bodies are not counted since they can
+     * be collected at any time.
+     */
+    public synchronized long getApproximateMemory() {
+        return APPROXIMATE_OVERHEAD + (body == null ? 0 : 2L * body.length());
+    }
+
     public void setMucUser(MucOptions.User user) {
         this.user = new WeakReference<>(user);
     }
@@ -438,6 +550,10 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setTime(long time) {
         this.timeSent = time;
+        // the time of a message (e.g. a call log entry updated in place) can move its conversation
+        if (this.conversation instanceof Conversation) {
+            ((Conversation) this.conversation).invalidateSortKey();
+        }
     }
 
     public String getEncryptedBody() {
@@ -464,15 +580,36 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         this.carbon = carbon;
     }
 
-    public void putEdited(String edited, String serverMsgId) {
+    public synchronized void putEdited(String edited, String serverMsgId) {
         final Edit edit = new Edit(edited, serverMsgId);
-        if (this.edits.size() < 128 && !this.edits.contains(edit)) {
-            this.edits.add(edit);
+        final List<Edit> edits = edits();
+        if (edits.size() < 128 && !edits.contains(edit)) {
+            edits.add(edit);
+        }
+    }
+
+    // edits and read markers are only parsed once they are needed
+    private synchronized List<Edit> edits() {
+        if (this.edits == null) {
+            this.edits = Edit.fromJson(this.editsJson);
+            this.editsJson = null;
         }
+        return this.edits;
+    }
+
+    private synchronized Set<ReadByMarker> readByMarkers() {
+        if (this.readByMarkers == null) {
+            this.readByMarkers =
+                    this.readByMarkersJson == null
+                            ? new CopyOnWriteArraySet<>()
+                            : ReadByMarker.fromJsonString(this.readByMarkersJson);
+            this.readByMarkersJson = null;
+        }
+        return this.readByMarkers;
     }
 
     boolean remoteMsgIdMatchInEdit(String id) {
-        for (Edit edit : this.edits) {
+        for (Edit edit : edits()) {
             if (id.equals(edit.getEditedId())) {
                 return true;
             }
@@ -489,7 +626,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public boolean edited() {
-        return this.edits.size() > 0;
+        return edits().size() > 0;
     }
 
     public void setTrueCounterpart(Jid trueCounterpart) {
@@ -519,9 +656,10 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 return false;
             }
         }
-        if (this.readByMarkers.add(readByMarker)) {
+        final Set<ReadByMarker> readByMarkers = readByMarkers();
+        if (readByMarkers.add(readByMarker)) {
             if (readByMarker.getRealJid() != null && readByMarker.getFullJid() != null) {
-                Iterator<ReadByMarker> iterator = this.readByMarkers.iterator();
+                Iterator<ReadByMarker> iterator = readByMarkers.iterator();
                 while (iterator.hasNext()) {
                     ReadByMarker marker = iterator.next();
                     if (marker.getRealJid() == null && readByMarker.getFullJid().equals(marker.getFullJid())) {
@@ -536,43 +674,47 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public Set<ReadByMarker> getReadByMarkers() {
-        return ImmutableSet.copyOf(this.readByMarkers);
+        return ImmutableSet.copyOf(readByMarkers());
     }
 
     boolean similar(Message message) {
         if (!isPrivateMessage() && this.serverMsgId != null && message.getServerMsgId() != null) {
-            return this.serverMsgId.equals(message.getServerMsgId()) || Edit.wasPreviouslyEditedServerMsgId(edits, message.getServerMsgId());
-        } else if (Edit.wasPreviouslyEditedServerMsgId(edits, message.getServerMsgId())) {
+            return this.serverMsgId.equals(message.getServerMsgId()) || Edit.wasPreviouslyEditedServerMsgId(edits(), message.getServerMsgId());
+        } else if (Edit.wasPreviouslyEditedServerMsgId(edits(), message.getServerMsgId())) {
             return true;
-        } else if (this.body == null || this.counterpart == null) {
+        } else if (this.counterpart == null || (!hasDeferredBody() && this.getBody() == null)) {
             return false;
         } else {
-            String body, otherBody;
-            if (this.hasFileOnRemoteHost()) {
-                body = getFileParams().url;
-                otherBody = message.body == null ? null : message.body.trim();
-            } else {
-                body = this.body;
-                otherBody = message.body;
-            }
             final boolean matchingCounterpart = this.counterpart.equals(message.getCounterpart());
             if (message.getRemoteMsgId() != null) {
                 final boolean hasUuid = CryptoHelper.UUID_PATTERN.matcher(message.getRemoteMsgId()).matches();
-                if (hasUuid && matchingCounterpart && Edit.wasPreviouslyEditedRemoteMsgId(edits, message.getRemoteMsgId())) {
+                if (hasUuid && matchingCounterpart && Edit.wasPreviouslyEditedRemoteMsgId(edits(), message.getRemoteMsgId())) {
                     return true;
                 }
                 return (message.getRemoteMsgId().equals(this.remoteMsgId) || message.getRemoteMsgId().equals(this.uuid))
                         && matchingCounterpart
-                        && (body.equals(otherBody) || (message.getEncryption() == Message.ENCRYPTION_PGP && hasUuid));
+                        && ((message.getEncryption() == Message.ENCRYPTION_PGP && hasUuid) || sameBody(message));
             } else {
                 return this.remoteMsgId == null
                         && matchingCounterpart
-                        && body.equals(otherBody)
-                        && Math.abs(this.getTimeSent() - message.getTimeSent()) < Config.MESSAGE_MERGE_WINDOW * 1000;
+                        && Math.abs(this.getTimeSent() - message.getTimeSent()) < Config.MESSAGE_MERGE_WINDOW * 1000
+                        && sameBody(message);
             }
         }
     }
 
+    // checked last in similar() so that a deferred body is only loaded if everything else matches
+    private boolean sameBody(final Message message) {
+        final String otherBody = message.getBody();
+        if (this.hasFileOnRemoteHost()) {
+            return getFileParams().url.equals(otherBody == null ? null : otherBody.trim());
+        } else if (otherBody == null || (hasDeferredBody() && otherBody.length() <= LAZY_BODY_THRESHOLD)) {
+            return false;
+        } else {
+            return this.getBody().equals(otherBody);
+        }
+    }
+
     public Message next() {
         if (this.conversation instanceof Conversation) {
             final Conversation conversation = (Conversation) this.conversation;
@@ -640,6 +782,8 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                         this.getCounterpart().equals(message.getCounterpart()) &&
                         this.edited() == message.edited() &&
                         (message.getTimeSent() - this.getTimeSent()) <= (Config.MESSAGE_MERGE_WINDOW * 1000) &&
+                        !this.hasDeferredBody() &&
+                        !message.hasDeferredBody() &&
                         this.getBody().length() + message.getBody().length() <= Config.MAX_DISPLAY_MESSAGE_CHARS &&
                         !message.isGeoUri() &&
                         !this.isGeoUri() &&
@@ -700,11 +844,15 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         return oob;
     }
 
+    public interface BodyLoader {
+        String loadBody(String uuid);
+    }
+
     public static class MergeSeparator {
     }
 
     public SpannableStringBuilder getMergedBody() {
-        SpannableStringBuilder body = new SpannableStringBuilder(MessageUtils.filterLtrRtl(this.body).trim());
+        SpannableStringBuilder body = new SpannableStringBuilder(MessageUtils.filterLtrRtl(getBody()).trim());
         Message current = this;
         while (current.mergeable(current.next())) {
             current = current.next();
@@ -720,7 +868,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public boolean hasMeCommand() {
-        return this.body.trim().startsWith(ME_COMMAND);
+        return getBody().trim().startsWith(ME_COMMAND);
     }
 
     public int getMergedStatus() {
@@ -777,6 +925,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public String getEditedId() {
+        final List<Edit> edits = edits();
         if (edits.size() > 0) {
             return edits.get(edits.size() - 1).getEditedId();
         } else {
@@ -785,6 +934,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public String getEditedIdWireFormat() {
+        final List<Edit> edits = edits();
         if (edits.size() > 0) {
             return edits.get(Config.USE_LMC_VERSION_1_1 ? 0 : edits.size() - 1).getEditedId();
         } else {
@@ -801,7 +951,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         if (relativeFilePath != null) {
             extension = MimeUtils.extractRelevantExtension(relativeFilePath);
         } else {
-            final String url = URL.tryParse(body.split("\n")[0]);
+            final String url = URL.tryParse(getBody().split("\n")[0]);
             if (url == null) {
                 return null;
             }
@@ -810,23 +960,65 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         return MimeUtils.guessMimeTypeFromExtension(extension);
     }
 
-    public synchronized boolean treatAsDownloadable() {
-        if (treatAsDownloadable == null) {
-            treatAsDownloadable = MessageUtils.treatAsDownloadable(this.body, this.oob);
+    // the values derived from the body below are computed without holding the lock since
+    // getBody() may have to go to the database; they are only kept if the body did not change
+
+    public boolean treatAsDownloadable() {
+        final int revision;
+        synchronized (this) {
+            if (treatAsDownloadable != null) {
+                return treatAsDownloadable;
+            }
+            revision = bodyRevision;
+        }
+        final boolean treatAsDownloadable = MessageUtils.treatAsDownloadable(getBody(), this.oob);
+        synchronized (this) {
+            if (revision == bodyRevision) {
+                this.treatAsDownloadable = treatAsDownloadable;
+            }
         }
         return treatAsDownloadable;
     }
 
-    public synchronized boolean bodyIsOnlyEmojis() {
-        if (isEmojisOnly == null) {
-            isEmojisOnly = Emoticons.isOnlyEmoji(body.replaceAll("\\s", ""));
+    public boolean bodyIsOnlyEmojis() {
+        return getEmojiCount() > 0;
+    }
+
+    public boolean bodyIsSingleEmoji() {
+        return getEmojiCount() == 1;
+    }
+
+    // number of emoji if the body is nothing but emoji (and white space); 0 otherwise
+    private int getEmojiCount() {
+        final int revision;
+        synchronized (this) {
+            if (emojiCount != null) {
+                return emojiCount;
+            }
+            revision = bodyRevision;
         }
-        return isEmojisOnly;
+        final int emojiCount = Emoticons.countIfOnlyEmoji(getBody());
+        synchronized (this) {
+            if (revision == bodyRevision) {
+                this.emojiCount = emojiCount;
+            }
+        }
+        return emojiCount;
     }
 
-    public synchronized boolean isGeoUri() {
-        if (isGeoUri == null) {
-            isGeoUri = GeoHelper.GEO_URI.matcher(body).matches();
+    public boolean isGeoUri() {
+        final int revision;
+        synchronized (this) {
+            if (isGeoUri != null) {
+                return isGeoUri;
+            }
+            revision = bodyRevision;
+        }
+        final boolean isGeoUri = GeoHelper.GEO_URI.matcher(getBody()).matches();
+        synchronized (this) {
+            if (revision == bodyRevision) {
+                this.isGeoUri = isGeoUri;
+            }
         }
         return isGeoUri;
     }
@@ -835,36 +1027,55 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         this.fileParams = null;
     }
 
-    public synchronized FileParams getFileParams() {
-        if (fileParams == null) {
-            fileParams = new FileParams();
-            if (this.transferable != null) {
-                fileParams.size = this.transferable.getFileSize();
+    public FileParams getFileParams() {
+        final int revision;
+        synchronized (this) {
+            if (this.fileParams != null) {
+                return this.fileParams;
             }
-            final String[] parts = body == null ? new String[0] : body.split("\\|");
-            switch (parts.length) {
-                case 1:
-                    try {
-                        fileParams.size = Long.parseLong(parts[0]);
-                    } catch (final NumberFormatException e) {
-                        fileParams.url = URL.tryParse(parts[0]);
-                    }
-                    break;
-                case 5:
-                    fileParams.runtime = parseInt(parts[4]);
-                case 4:
-                    fileParams.width = parseInt(parts[2]);
-                    fileParams.height = parseInt(parts[3]);
-                case 2:
-                    fileParams.url = URL.tryParse(parts[0]);
-                    fileParams.size = Longs.tryParse(parts[1]);
-                    break;
-                case 3:
-                    fileParams.size = Longs.tryParse(parts[0]);
-                    fileParams.width = parseInt(parts[1]);
-                    fileParams.height = parseInt(parts[2]);
-                    break;
+            revision = bodyRevision;
+        }
+        final String body = getBody();
+        synchronized (this) {
+            if (this.fileParams != null) {
+                return this.fileParams;
             }
+            final FileParams fileParams = parseFileParams(body);
+            if (revision == bodyRevision) {
+                this.fileParams = fileParams;
+            }
+            return fileParams;
+        }
+    }
+
+    private FileParams parseFileParams(final String body) {
+        final FileParams fileParams = new FileParams();
+        if (this.transferable != null) {
+            fileParams.size = this.transferable.getFileSize();
+        }
+        final String[] parts = body == null ? new String[0] : body.split("\\|");
+        switch (parts.length) {
+            case 1:
+                try {
+                    fileParams.size = Long.parseLong(parts[0]);
+                } catch (final NumberFormatException e) {
+                    fileParams.url = URL.tryParse(parts[0]);
+                }
+                break;
+            case 5:
+                fileParams.runtime = parseInt(parts[4]);
+            case 4:
+                fileParams.width = parseInt(parts[2]);
+                fileParams.height = parseInt(parts[3]);
+            case 2:
+                fileParams.url = URL.tryParse(parts[0]);
+                fileParams.size = Longs.tryParse(parts[1]);
+                break;
+            case 3:
+                fileParams.size = Longs.tryParse(parts[0]);
+                fileParams.width = parseInt(parts[1]);
+                fileParams.height = parseInt(parts[2]);
+                break;
         }
         return fileParams;
     }
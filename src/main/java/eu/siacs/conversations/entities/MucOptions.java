@@ -217,7 +217,8 @@ public class MucOptions {
     }
 
     public boolean stableId() {
-        return getFeatures().contains("http://jabber.org/protocol/muc#stable_id");
+        return serviceDiscoveryResult != null
+                && serviceDiscoveryResult.hasFeature("http://jabber.org/protocol/muc#stable_id");
     }
 
     public User deleteUser(Jid jid) {
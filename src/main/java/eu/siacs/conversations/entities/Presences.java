@@ -126,7 +126,7 @@ public class Presences {
         synchronized (this.presences) {
             for (Presence presence : this.presences.values()) {
                 ServiceDiscoveryResult disco = presence.getServiceDiscoveryResult();
-                if (disco == null || !disco.getFeatures().contains(namespace)) {
+                if (disco == null || !disco.hasFeature(namespace)) {
                     return false;
                 }
             }
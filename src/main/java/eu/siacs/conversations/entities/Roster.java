@@ -74,11 +74,24 @@ public class Roster {
 		}
 	}
 
+	public List<Contact> getDirtyContacts() {
+		final List<Contact> dirty = new ArrayList<>();
+		synchronized (this.contacts) {
+			for (final Contact contact : this.contacts.values()) {
+				if (contact.isDirty()) {
+					dirty.add(contact);
+				}
+			}
+		}
+		return dirty;
+	}
+
 	public void initContact(final Contact contact) {
 		if (contact == null) {
 			return;
 		}
 		contact.setAccount(account);
+		contact.markPersisted(contact.getModifications());
 		synchronized (this.contacts) {
 			contacts.put(contact.getJid().asBareJid(), contact);
 		}
@@ -16,6 +16,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -34,6 +35,7 @@ public class ServiceDiscoveryResult {
 	protected final String hash;
 	protected final byte[] ver;
 	protected final List<String> features;
+	private final CapsRegistry.FeatureSet featureSet;
 	protected final List<Data> forms;
 	private final List<Identity> identities;
 	public ServiceDiscoveryResult(final IqPacket packet) {
@@ -59,6 +61,7 @@ public class ServiceDiscoveryResult {
 			}
 		}
 		this.ver = this.mkCapHash();
+		this.featureSet = CapsRegistry.features(this.features);
 	}
 	private ServiceDiscoveryResult(String hash, byte[] ver, JSONObject o) throws JSONException {
 		this.identities = new ArrayList<>();
@@ -85,11 +88,13 @@ public class ServiceDiscoveryResult {
 				this.forms.add(createFormFromJSONObject(forms.getJSONObject(i)));
 			}
 		}
+		this.featureSet = CapsRegistry.features(this.features);
 	}
 	
 	private ServiceDiscoveryResult() {
 		this.hash = "sha-1";
 		this.features = Collections.emptyList();
+		this.featureSet = CapsRegistry.features(this.features);
 		this.identities = Collections.emptyList();
 		this.ver = null;
 		this.forms = Collections.emptyList();
@@ -169,6 +174,14 @@ public class ServiceDiscoveryResult {
 		return this.features;
 	}
 
+	public boolean hasFeature(final String feature) {
+		return this.featureSet.contains(feature);
+	}
+
+	public boolean hasFeatures(final Collection<String> features) {
+		return this.featureSet.containsAll(features);
+	}
+
 	public boolean hasIdentity(String category, String type) {
 		for (Identity id : this.getIdentities()) {
 			if ((category == null || id.getCategory().equals(category)) &&
@@ -10,6 +10,8 @@ import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
@@ -29,6 +31,7 @@ import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.DownloadableFile;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.xml.Base64FileElement;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.Jid;
@@ -153,11 +156,11 @@ public class IqGenerator extends AbstractGenerator {
         return packet;
     }
 
-    public IqPacket publishAvatar(Avatar avatar, Bundle options) {
+    public IqPacket publishAvatar(Avatar avatar, Bundle options) throws IOException {
         final Element item = new Element("item");
         item.setAttribute("id", avatar.sha1sum);
-        final Element data = item.addChild("data", Namespace.AVATAR_DATA);
-        data.setContent(avatar.image);
+        final File file = mXmppConnectionService.getFileBackend().getAvatarFile(avatar.getFilename());
+        item.addChild(Base64FileElement.of("data", Namespace.AVATAR_DATA, file));
         return publish(Namespace.AVATAR_DATA, item, options);
     }
 
@@ -333,7 +336,7 @@ public class IqGenerator extends AbstractGenerator {
         } else if (mam.getReference() != null) {
             set.addChild("after").setContent(mam.getReference());
         }
-        set.addChild("max").setContent(String.valueOf(Config.PAGE_SIZE));
+        set.addChild("max").setContent(String.valueOf(mam.getPageSize()));
         return packet;
     }
 
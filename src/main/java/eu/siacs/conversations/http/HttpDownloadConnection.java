@@ -234,7 +234,7 @@ public class HttpDownloadConnection implements Transferable {
 
     private void updateProgress(long i) {
         this.mProgress = (int) i;
-        mHttpConnectionManager.updateConversationUi(false);
+        mHttpConnectionManager.updateConversationUi(false, message);
     }
 
     @Override
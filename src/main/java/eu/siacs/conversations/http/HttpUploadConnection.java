@@ -209,6 +209,6 @@ public class HttpUploadConnection implements Transferable, AbstractConnectionMan
     @Override
     public void onProgress(final long progress) {
         this.transmitted = progress;
-        mHttpConnectionManager.updateConversationUi(false);
+        mHttpConnectionManager.updateConversationUi(false, message);
     }
 }
\ No newline at end of file
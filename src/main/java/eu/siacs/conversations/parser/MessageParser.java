@@ -32,6 +32,7 @@ import eu.siacs.conversations.entities.ReadByMarker;
 import eu.siacs.conversations.entities.ReceiptRequest;
 import eu.siacs.conversations.entities.RtpSessionStatus;
 import eu.siacs.conversations.http.HttpConnectionManager;
+import eu.siacs.conversations.services.ConversationEvent;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.QuickConversationsService;
 import eu.siacs.conversations.services.XmppConnectionService;
@@ -735,7 +736,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
 
             if (query == null) {
                 extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet);
-                mXmppConnectionService.updateConversationUi();
+                mXmppConnectionService.updateConversationUi(ConversationEvent.messageAdded(message));
             }
 
             if (mXmppConnectionService.confirmMessages()
@@ -747,14 +748,15 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                 processMessageReceipts(account, packet, remoteMsgId, query);
             }
 
-            mXmppConnectionService.databaseBackend.createMessage(message);
-            final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
-            if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
-                manager.createNewDownloadConnection(message);
-            } else if (notify) {
-                if (query != null && query.isCatchup()) {
-                    mXmppConnectionService.getNotificationService().pushFromBacklog(message);
-                } else {
+            if (query != null) {
+                // stored in bulk once the page is complete
+                query.addToPage(message, notify);
+            } else {
+                mXmppConnectionService.databaseBackend.createMessage(message);
+                final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
+                if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
+                    manager.createNewDownloadConnection(message);
+                } else if (notify) {
                     mXmppConnectionService.getNotificationService().push(message);
                 }
             }
@@ -1076,7 +1078,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                         remoteMsgId,
                         receiptsNamespaces,
                         packet.getType());
-                mXmppConnectionService.sendMessagePacket(account, receipt);
+                mXmppConnectionService.sendReceiptPacket(account, receipt);
             }
         } else if (query.isCatchup()) {
             if (request) {
@@ -6,12 +6,16 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -31,8 +35,11 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,7 +71,7 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 51;
+    private static final int DATABASE_VERSION = 52;
 
     private static boolean requiresMessageIndexRebuild = false;
     private static DatabaseBackend instance = null;
@@ -82,6 +89,20 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + ") ON DELETE CASCADE, UNIQUE(" + Contact.ACCOUNT + ", "
             + Contact.JID + ") ON CONFLICT REPLACE);";
 
+    private static final String[] CONTACT_COLUMNS = {
+            Contact.ACCOUNT, Contact.SYSTEMNAME, Contact.SERVERNAME, Contact.PRESENCE_NAME,
+            Contact.JID, Contact.OPTIONS, Contact.SYSTEMACCOUNT, Contact.PHOTOURI, Contact.KEYS,
+            Contact.AVATAR, Contact.LAST_PRESENCE, Contact.LAST_TIME, Contact.GROUPS,
+            Contact.RTP_CAPABILITY
+    };
+
+    private static final String INSERT_CONTACT_STATEMENT = "insert into " + Contact.TABLENAME
+            + "(" + TextUtils.join(",", CONTACT_COLUMNS) + ") values ("
+            + TextUtils.join(",", Collections.nCopies(CONTACT_COLUMNS.length, "?")) + ")";
+
+    private static final String DELETE_CONTACT_STATEMENT = "delete from " + Contact.TABLENAME
+            + " where " + Contact.ACCOUNT + "=? and " + Contact.JID + "=?";
+
     private static final String CREATE_DISCOVERY_RESULTS_STATEMENT = "create table "
             + ServiceDiscoveryResult.TABLENAME + "("
             + ServiceDiscoveryResult.HASH + " TEXT, "
@@ -174,12 +195,53 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
     private static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
 
+    // numbers messages in the order they were stored. unlike the implicit rowid of messages these
+    // numbers are never reused (even after the newest messages were deleted) and survive VACUUM.
+    // incremental backups use them to find the messages stored since the last backup
+    public static final String MESSAGE_SEQUENCE_TABLENAME = "message_sequence";
+    public static final String MESSAGE_SEQUENCE = "sequence";
+    private static final String CREATE_MESSAGE_SEQUENCE_TABLE = "CREATE TABLE " + MESSAGE_SEQUENCE_TABLENAME + " (" + MESSAGE_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, " + Message.UUID + " TEXT UNIQUE)";
+    private static final String CREATE_MESSAGE_SEQUENCE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert_sequence AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT OR REPLACE INTO " + MESSAGE_SEQUENCE_TABLENAME + "(" + Message.UUID + ") VALUES(NEW.uuid); END;";
+    private static final String CREATE_MESSAGE_SEQUENCE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update_sequence AFTER UPDATE OF uuid ON " + Message.TABLENAME + " BEGIN UPDATE " + MESSAGE_SEQUENCE_TABLENAME + " SET " + Message.UUID + "=NEW.uuid WHERE " + Message.UUID + "=OLD.uuid; END;";
+    private static final String CREATE_MESSAGE_SEQUENCE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete_sequence AFTER DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM " + MESSAGE_SEQUENCE_TABLENAME + " WHERE " + Message.UUID + "=OLD.uuid; END;";
+
     private static final String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING fts4 (uuid,body,notindexed=\"uuid\",content=\"" + Message.TABLENAME + "\",tokenize='unicode61')";
     private static final String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index(rowid,uuid,body) VALUES(NEW.rowid,NEW.uuid,NEW.body); END;";
     private static final String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE OF uuid,body ON " + Message.TABLENAME + " BEGIN UPDATE messages_index SET body=NEW.body,uuid=NEW.uuid WHERE rowid=OLD.rowid; END;";
     private static final String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM messages_index WHERE rowid=OLD.rowid; END;";
+
+    // large bodies are left out when messages are loaded into memory; see Message.getBody()
+    private static final String[] MESSAGE_COLUMNS_WITH_DEFERRED_BODY = {
+            Message.UUID,
+            Message.CONVERSATION,
+            Message.COUNTERPART,
+            Message.TRUE_COUNTERPART,
+            "CASE WHEN length(" + Message.BODY + ")>" + Message.LAZY_BODY_THRESHOLD
+                    + " THEN NULL ELSE " + Message.BODY + " END AS " + Message.BODY,
+            "length(" + Message.BODY + ")>" + Message.LAZY_BODY_THRESHOLD
+                    + " AS " + Message.BODY_DEFERRED,
+            Message.TIME_SENT,
+            Message.ENCRYPTION,
+            Message.STATUS,
+            Message.TYPE,
+            Message.CARBON,
+            Message.REMOTE_MSG_ID,
+            Message.RELATIVE_FILE_PATH,
+            Message.SERVER_MSG_ID,
+            Message.FINGERPRINT,
+            Message.READ,
+            Message.EDITED,
+            Message.OOB,
+            Message.ERROR_MESSAGE,
+            Message.READ_BY_MARKERS,
+            Message.MARKABLE,
+            Message.DELETED,
+            Message.BODY_LANGUAGE
+    };
     private static final String COPY_PREEXISTING_ENTRIES = "INSERT INTO messages_index(messages_index) VALUES('rebuild');";
 
+    private final Message.BodyLoader messageBodyLoader = this::getMessageBody;
+
     private DatabaseBackend(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -283,6 +345,14 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
         db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
         db.execSQL(CREATE_MESSAGE_DELETE_TRIGGER);
+        createMessageSequence(db);
+    }
+
+    private static void createMessageSequence(final SQLiteDatabase db) {
+        db.execSQL(CREATE_MESSAGE_SEQUENCE_TABLE);
+        db.execSQL(CREATE_MESSAGE_SEQUENCE_INSERT_TRIGGER);
+        db.execSQL(CREATE_MESSAGE_SEQUENCE_UPDATE_TRIGGER);
+        db.execSQL(CREATE_MESSAGE_SEQUENCE_DELETE_TRIGGER);
     }
 
     @Override
@@ -601,6 +671,10 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.FAST_MECHANISM + " TEXT");
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.FAST_TOKEN + " TEXT");
         }
+        if (oldVersion < 52 && newVersion >= 52) {
+            createMessageSequence(db);
+            db.execSQL("INSERT INTO " + MESSAGE_SEQUENCE_TABLENAME + "(" + Message.UUID + ") SELECT " + Message.UUID + " FROM " + Message.TABLENAME + " ORDER BY rowid");
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -692,6 +766,40 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(Message.TABLENAME, null, message.getContentValues());
     }
 
+    public void createMessages(final Collection<Message> messages) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Message message : messages) {
+                db.insert(Message.TABLENAME, null, message.getContentValues());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public Set<String> findStoredServerMsgIds(final Conversation conversation, final Collection<String> serverMsgIds) {
+        final Set<String> stored = new HashSet<>();
+        if (serverMsgIds.isEmpty()) {
+            return stored;
+        }
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] selectionArgs = new String[serverMsgIds.size() + 1];
+        selectionArgs[0] = conversation.getUuid();
+        int i = 1;
+        for (final String serverMsgId : serverMsgIds) {
+            selectionArgs[i++] = serverMsgId;
+        }
+        final String placeholders = TextUtils.join(",", Collections.nCopies(serverMsgIds.size(), "?"));
+        try (final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.SERVER_MSG_ID}, Message.CONVERSATION + "=? and " + Message.SERVER_MSG_ID + " in (" + placeholders + ")", selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                stored.add(cursor.getString(0));
+            }
+        }
+        return stored;
+    }
+
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Account.TABLENAME, null, account.getContentValues());
@@ -799,13 +907,13 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Cursor cursor;
         if (timestamp == -1) {
             String[] selectionArgs = {conversation.getUuid()};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
+            cursor = db.query(Message.TABLENAME, MESSAGE_COLUMNS_WITH_DEFERRED_BODY, Message.CONVERSATION
                     + "=?", selectionArgs, null, null, Message.TIME_SENT
                     + " DESC", String.valueOf(limit));
         } else {
             String[] selectionArgs = {conversation.getUuid(),
                     Long.toString(timestamp)};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
+            cursor = db.query(Message.TABLENAME, MESSAGE_COLUMNS_WITH_DEFERRED_BODY, Message.CONVERSATION
                             + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
                     null, null, Message.TIME_SENT + " DESC",
                     String.valueOf(limit));
@@ -813,7 +921,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         CursorUtils.upgradeCursorWindowSize(cursor);
         while (cursor.moveToNext()) {
             try {
-                list.add(0, Message.fromCursor(cursor, conversation));
+                list.add(0, Message.fromCursor(cursor, conversation, messageBodyLoader));
             } catch (Exception e) {
                 Log.e(Config.LOGTAG, "unable to restore message");
             }
@@ -822,6 +930,79 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    private String getMessageBody(final String uuid) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        try (final Cursor cursor =
+                db.query(
+                        Message.TABLENAME,
+                        new String[] {Message.BODY},
+                        Message.UUID + "=?",
+                        new String[] {uuid},
+                        null,
+                        null,
+                        null)) {
+            CursorUtils.upgradeCursorWindowSize(cursor);
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    /**
+     * The highest message sequence number handed out so far. Grows with every stored message and
+     * never goes down, not even when the newest messages get deleted.
+     */
+    public long getMessageSequence() {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        return DatabaseUtils.longForQuery(
+                db,
+                "SELECT ifnull(max(seq),0) FROM sqlite_sequence WHERE name=?",
+                new String[] {MESSAGE_SEQUENCE_TABLENAME});
+    }
+
+    /**
+     * Loads the bodies that were left out when the given messages were read from the database
+     * with a handful of queries instead of one per message. Messages that already have their body
+     * in memory are skipped.
+     */
+    public void loadDeferredBodies(final Collection<Message> messages) {
+        final Map<String, Message> pending = new HashMap<>();
+        for (final Message message : messages) {
+            if (!message.isBodyLoaded()) {
+                pending.put(message.getUuid(), message);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final List<String> uuids = new ArrayList<>(pending.keySet());
+        // stay well below SQLITE_MAX_VARIABLE_NUMBER
+        for (final List<String> batch : Lists.partition(uuids, 256)) {
+            final String selection =
+                    Message.UUID + " IN (" + Joiner.on(',').join(Collections.nCopies(batch.size(), "?")) + ")";
+            try (final Cursor cursor =
+                    db.query(
+                            Message.TABLENAME,
+                            new String[] {Message.UUID, Message.BODY},
+                            selection,
+                            batch.toArray(new String[0]),
+                            null,
+                            null,
+                            null)) {
+                CursorUtils.upgradeCursorWindowSize(cursor);
+                while (cursor.moveToNext()) {
+                    final Message message = pending.remove(cursor.getString(0));
+                    if (message != null) {
+                        message.setDeferredBody(cursor.getString(1));
+                    }
+                }
+            }
+        }
+        // whatever is left has been deleted in the meantime
+        for (final Message message : pending.values()) {
+            message.setDeferredBody(null);
+        }
+    }
+
     public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
@@ -919,6 +1100,19 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return filesPaths;
     }
 
+    public static class ExpiredMessages {
+        public final int count;
+        public final long lastRowId;
+        // attachments no longer referenced by any remaining message
+        public final Set<String> filePaths;
+
+        private ExpiredMessages(final int count, final long lastRowId, final Set<String> filePaths) {
+            this.count = count;
+            this.lastRowId = lastRowId;
+            this.filePaths = filePaths;
+        }
+    }
+
     public static class FilePath {
         public final UUID uuid;
         public final String path;
@@ -1025,7 +1219,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (!includeBody) {
             contentValues.remove(Message.BODY);
         }
-        return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
+        return db.update(Message.TABLENAME, contentValues, Message.UUID + "=?", args) == 1;
     }
 
     public boolean updateMessage(Message message, String uuid) {
@@ -1048,23 +1242,46 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public void writeRoster(final Roster roster) {
         long start = SystemClock.elapsedRealtime();
         final Account account = roster.getAccount();
-        final SQLiteDatabase db = this.getWritableDatabase();
-        db.beginTransaction();
-        for (Contact contact : roster.getContacts()) {
-            if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
-                db.insert(Contact.TABLENAME, null, contact.getContentValues());
-            } else {
-                String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
-                String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
-                db.delete(Contact.TABLENAME, where, whereArgs);
+        final List<Contact> dirty = roster.getDirtyContacts();
+        int written = 0;
+        int deleted = 0;
+        if (!dirty.isEmpty()) {
+            final SQLiteDatabase db = this.getWritableDatabase();
+            final int[] modifications = new int[dirty.size()];
+            db.beginTransaction();
+            try (final SQLiteStatement insert = db.compileStatement(INSERT_CONTACT_STATEMENT);
+                    final SQLiteStatement delete = db.compileStatement(DELETE_CONTACT_STATEMENT)) {
+                for (int c = 0; c < dirty.size(); ++c) {
+                    final Contact contact = dirty.get(c);
+                    modifications[c] = contact.getModifications();
+                    if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
+                        final ContentValues values = contact.getContentValues();
+                        insert.clearBindings();
+                        for (int i = 0; i < CONTACT_COLUMNS.length; ++i) {
+                            DatabaseUtils.bindObjectToProgram(insert, i + 1, values.get(CONTACT_COLUMNS[i]));
+                        }
+                        insert.executeInsert();
+                        written++;
+                    } else {
+                        delete.bindString(1, account.getUuid());
+                        delete.bindString(2, contact.getJid().toString());
+                        delete.executeUpdateDelete();
+                        deleted++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            // only once committed; after a rollback the contacts have to stay dirty
+            for (int c = 0; c < dirty.size(); ++c) {
+                dirty.get(c).markPersisted(modifications[c]);
             }
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
         account.setRosterVersion(roster.getVersion());
         updateAccount(account);
         long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms (" + written + " written, " + deleted + " deleted, " + (roster.getContacts().size() - dirty.size()) + " unchanged)");
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
@@ -1078,13 +1295,89 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Log.d(Config.LOGTAG, "deleted " + num + " messages for " + conversation.getJid().asBareJid() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
-    public void expireOldMessages(long timestamp) {
-        final String[] args = {String.valueOf(timestamp)};
-        SQLiteDatabase db = this.getReadableDatabase();
+    /**
+     * Deletes up to {@code limit} messages sent before {@code timestamp} whose rowid is larger than
+     * {@code afterRowId} in one short transaction. Callers walk the table in rowid order by passing
+     * the {@link ExpiredMessages#lastRowId} of the previous batch.
+     *
+     * @return null once there are no more messages to expire
+     */
+    public ExpiredMessages expireOldMessages(
+            final long timestamp, final long afterRowId, final int limit) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final String[] args = {String.valueOf(timestamp), String.valueOf(afterRowId)};
+        final Set<String> filePaths = new HashSet<>();
+        long lastRowId = afterRowId;
+        int count = 0;
         db.beginTransaction();
-        db.delete(Message.TABLENAME, "timeSent<?", args);
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        try {
+            try (final Cursor cursor =
+                    db.query(
+                            Message.TABLENAME,
+                            new String[] {"rowid", Message.TYPE, Message.RELATIVE_FILE_PATH},
+                            "timeSent<? and rowid>?",
+                            args,
+                            null,
+                            null,
+                            "rowid",
+                            String.valueOf(limit))) {
+                while (cursor.moveToNext()) {
+                    count++;
+                    lastRowId = cursor.getLong(0);
+                    final int type = cursor.getInt(1);
+                    final String path = cursor.getString(2);
+                    if (path != null
+                            && (type == Message.TYPE_IMAGE
+                                    || type == Message.TYPE_FILE
+                                    || type == Message.TYPE_PRIVATE_FILE)) {
+                        filePaths.add(path);
+                    }
+                }
+            }
+            if (count == 0) {
+                db.setTransactionSuccessful();
+                return null;
+            }
+            db.delete(
+                    Message.TABLENAME,
+                    "timeSent<? and rowid>? and rowid<=?",
+                    new String[] {args[0], args[1], String.valueOf(lastRowId)});
+            // files can be shared between messages (e.g. forwarded or sent to several contacts)
+            final Iterator<String> iterator = filePaths.iterator();
+            while (iterator.hasNext()) {
+                if (DatabaseUtils.queryNumEntries(
+                                db,
+                                Message.TABLENAME,
+                                Message.RELATIVE_FILE_PATH + "=?",
+                                new String[] {iterator.next()})
+                        > 0) {
+                    iterator.remove();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return new ExpiredMessages(count, lastRowId, filePaths);
+    }
+
+    /**
+     * Releases up to {@code pages} free pages if the database uses incremental auto vacuum.
+     *
+     * @return false if auto vacuum is not set to incremental and nothing was done
+     */
+    public boolean incrementalVacuum(final int pages) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        try (final Cursor cursor = db.rawQuery("PRAGMA auto_vacuum", null)) {
+            if (!cursor.moveToFirst() || cursor.getInt(0) != 2) {
+                return false;
+            }
+        }
+        try (final Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null)) {
+            // pragmas run lazily; counting the rows steps through the whole statement
+            cursor.getCount();
+        }
+        return true;
     }
 
     public MamReference getLastMessageReceived(Account account) {
@@ -1109,6 +1402,26 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         }
     }
 
+    public MamReference getFirstMessageStored(final Conversation conversation) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] columns = {Message.TIME_SENT, Message.SERVER_MSG_ID};
+        final String[] args = {conversation.getUuid()};
+        try (final Cursor cursor = db.query(Message.TABLENAME, columns, Message.CONVERSATION + "=?", args, null, null, Message.TIME_SENT + " asc", "1")) {
+            if (cursor.moveToFirst()) {
+                return new MamReference(cursor.getLong(0), cursor.getString(1));
+            }
+            return null;
+        }
+    }
+
+    public long getMessageCount(final Conversation conversation) {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), Message.TABLENAME, Message.CONVERSATION + "=?", new String[]{conversation.getUuid()});
+    }
+
+    public long getMessageCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), Message.TABLENAME);
+    }
+
     public long getLastTimeFingerprintUsed(Account account, String fingerprint) {
         String SQL = "select messages.timeSent from accounts join conversations on accounts.uuid=conversations.accountUuid join messages on conversations.uuid=messages.conversationUuid where accounts.uuid=? and messages.axolotl_fingerprint=? order by messages.timesent desc limit 1";
         String[] args = {account.getUuid(), fingerprint};
@@ -22,7 +22,6 @@ import android.provider.OpenableColumns;
 import android.system.Os;
 import android.system.StructStat;
 import android.util.Base64;
-import android.util.Base64OutputStream;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.LruCache;
@@ -35,6 +34,7 @@ import androidx.exifinterface.media.ExifInterface;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
@@ -53,10 +53,13 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -82,6 +85,7 @@ public class FileBackend {
     private static final String FILE_PROVIDER = ".files";
     private static final float IGNORE_PADDING = 0.15f;
     private final XmppConnectionService mXmppConnectionService;
+    private final Set<String> verifiedAvatars = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     private static final List<String> STORAGE_TYPES;
 
@@ -428,7 +432,7 @@ public class FileBackend {
 
     public Bitmap getPreviewForUri(Attachment attachment, int size, boolean cacheOnly) {
         final String key = "attachment_" + attachment.getUuid().toString() + "_" + size;
-        final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
+        final LruCache<Object, Bitmap> cache = mXmppConnectionService.getBitmapCache();
         Bitmap bitmap = cache.get(key);
         if (bitmap != null || cacheOnly) {
             return bitmap;
@@ -953,7 +957,7 @@ public class FileBackend {
 
     public Bitmap getThumbnail(Message message, int size, boolean cacheOnly) throws IOException {
         final String uuid = message.getUuid();
-        final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
+        final LruCache<Object, Bitmap> cache = mXmppConnectionService.getBitmapCache();
         Bitmap thumbnail = cache.get(uuid);
         if ((thumbnail == null) && (!cacheOnly)) {
             synchronized (THUMBNAIL_LOCK) {
@@ -1170,16 +1174,16 @@ public class FileBackend {
 
     public Avatar getPepAvatar(Uri image, int size, Bitmap.CompressFormat format) {
 
-        final Avatar uncompressAvatar = getUncompressedAvatar(image);
+        final CompressedAvatar uncompressAvatar = getUncompressedAvatar(image);
         if (uncompressAvatar != null
-                && uncompressAvatar.image.length() <= Config.AVATAR_CHAR_LIMIT) {
-            return uncompressAvatar;
+                && uncompressAvatar.getBase64Length() <= Config.AVATAR_CHAR_LIMIT) {
+            return store(uncompressAvatar);
         }
         if (uncompressAvatar != null) {
             Log.d(
                     Config.LOGTAG,
                     "uncompressed avatar exceeded char limit by "
-                            + (uncompressAvatar.image.length() - Config.AVATAR_CHAR_LIMIT));
+                            + (uncompressAvatar.getBase64Length() - Config.AVATAR_CHAR_LIMIT));
         }
 
         Bitmap bm = cropCenterSquare(image, size);
@@ -1190,12 +1194,12 @@ public class FileBackend {
             Log.d(Config.LOGTAG, "alpha in avatar detected; uploading as PNG");
             bm.recycle();
             bm = cropCenterSquare(image, 96);
-            return getPepAvatar(bm, Bitmap.CompressFormat.PNG, 100);
+            return store(getPepAvatar(bm, Bitmap.CompressFormat.PNG, 100));
         }
-        return getPepAvatar(bm, format, 100);
+        return store(getPepAvatar(bm, format, 100));
     }
 
-    private Avatar getUncompressedAvatar(Uri uri) {
+    private CompressedAvatar getUncompressedAvatar(Uri uri) {
         Bitmap bitmap = null;
         try {
             bitmap =
@@ -1211,20 +1215,18 @@ public class FileBackend {
         }
     }
 
-    private Avatar getPepAvatar(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
+    private CompressedAvatar getPepAvatar(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
         try {
-            ByteArrayOutputStream mByteArrayOutputStream = new ByteArrayOutputStream();
-            Base64OutputStream mBase64OutputStream =
-                    new Base64OutputStream(mByteArrayOutputStream, Base64.DEFAULT);
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            DigestOutputStream mDigestOutputStream =
-                    new DigestOutputStream(mBase64OutputStream, digest);
+            final ByteArrayOutputStream mByteArrayOutputStream = new ByteArrayOutputStream();
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final DigestOutputStream mDigestOutputStream =
+                    new DigestOutputStream(mByteArrayOutputStream, digest);
             if (!bitmap.compress(format, quality, mDigestOutputStream)) {
                 return null;
             }
             mDigestOutputStream.flush();
             mDigestOutputStream.close();
-            long chars = mByteArrayOutputStream.size();
+            final long chars = getBase64Length(mByteArrayOutputStream.size());
             if (format != Bitmap.CompressFormat.PNG
                     && quality >= 50
                     && chars >= Config.AVATAR_CHAR_LIMIT) {
@@ -1237,7 +1239,7 @@ public class FileBackend {
             Log.d(Config.LOGTAG, "settled on char length " + chars + " with quality=" + quality);
             final Avatar avatar = new Avatar();
             avatar.sha1sum = CryptoHelper.bytesToHex(digest.digest());
-            avatar.image = new String(mByteArrayOutputStream.toByteArray());
+            avatar.size = mByteArrayOutputStream.size();
             if (format.equals(Bitmap.CompressFormat.WEBP)) {
                 avatar.type = "image/webp";
             } else if (format.equals(Bitmap.CompressFormat.JPEG)) {
@@ -1247,15 +1249,31 @@ public class FileBackend {
             }
             avatar.width = bitmap.getWidth();
             avatar.height = bitmap.getHeight();
-            return avatar;
+            return new CompressedAvatar(avatar, mByteArrayOutputStream.toByteArray());
         } catch (OutOfMemoryError e) {
-            Log.d(Config.LOGTAG, "unable to convert avatar to base64 due to low memory");
+            Log.d(Config.LOGTAG, "unable to compress avatar due to low memory");
             return null;
         } catch (Exception e) {
             return null;
         }
     }
 
+    private Avatar store(final CompressedAvatar compressed) {
+        if (compressed == null) {
+            return null;
+        }
+        final Avatar avatar = compressed.avatar;
+        if (isAvatarCached(avatar)
+                || writeAvatar(avatar, outputStream -> outputStream.write(compressed.bytes))) {
+            return avatar;
+        }
+        return null;
+    }
+
+    /**
+     * The avatar is published straight from this file (see {@link
+     * eu.siacs.conversations.xml.Base64FileElement}) so only its metadata is read here.
+     */
     public Avatar getStoredPepAvatar(String hash) {
         if (hash == null) {
             return null;
@@ -1269,20 +1287,7 @@ public class FileBackend {
             options.inJustDecodeBounds = true;
             BitmapFactory.decodeFile(file.getAbsolutePath(), options);
             is = new FileInputStream(file);
-            ByteArrayOutputStream mByteArrayOutputStream = new ByteArrayOutputStream();
-            Base64OutputStream mBase64OutputStream =
-                    new Base64OutputStream(mByteArrayOutputStream, Base64.DEFAULT);
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            DigestOutputStream os = new DigestOutputStream(mBase64OutputStream, digest);
-            byte[] buffer = new byte[4096];
-            int length;
-            while ((length = is.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
-            }
-            os.flush();
-            os.close();
-            avatar.sha1sum = CryptoHelper.bytesToHex(digest.digest());
-            avatar.image = new String(mByteArrayOutputStream.toByteArray());
+            avatar.sha1sum = sha1(is);
             avatar.height = options.outHeight;
             avatar.width = options.outWidth;
             avatar.type = options.outMimeType;
@@ -1294,68 +1299,172 @@ public class FileBackend {
         }
     }
 
+    /**
+     * Checks that the file named after the hash exists and actually has that hash. Each file is
+     * hashed only once per process; after that only its existence is checked.
+     */
     public boolean isAvatarCached(Avatar avatar) {
-        final File file = getAvatarFile(avatar.getFilename());
-        return file.exists();
+        final String filename = avatar.getFilename();
+        final File file = getAvatarFile(filename);
+        if (!file.exists()) {
+            return false;
+        }
+        if (verifiedAvatars.contains(filename)) {
+            return true;
+        }
+        if (avatar.size > 0 && file.length() != avatar.size) {
+            Log.d(Config.LOGTAG, "size of cached avatar " + filename + " does not match metadata");
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            if (sha1(is).equalsIgnoreCase(filename)) {
+                verifiedAvatars.add(filename);
+                return true;
+            }
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.d(Config.LOGTAG, "unable to verify cached avatar " + filename, e);
+            return false;
+        } finally {
+            close(is);
+        }
+        Log.d(Config.LOGTAG, "cached avatar " + filename + " is corrupted. deleting");
+        if (!file.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + file.getAbsolutePath());
+        }
+        return false;
     }
 
     public boolean save(final Avatar avatar) {
-        File file;
         if (isAvatarCached(avatar)) {
-            file = getAvatarFile(avatar.getFilename());
-            avatar.size = file.length();
+            avatar.size = getAvatarFile(avatar.getFilename()).length();
         } else {
-            file =
-                    new File(
-                            mXmppConnectionService.getCacheDir().getAbsolutePath()
-                                    + "/"
-                                    + UUID.randomUUID().toString());
-            if (file.getParentFile().mkdirs()) {
-                Log.d(Config.LOGTAG, "created cache directory");
+            final String image = avatar.image;
+            if (image == null || !writeAvatar(avatar, os -> decodeBase64(image, os))) {
+                return false;
             }
-            OutputStream os = null;
-            try {
-                if (!file.createNewFile()) {
+        }
+        // the avatar is read from disk from now on
+        avatar.image = null;
+        return true;
+    }
+
+    /** Saves an avatar downloaded from {@link Avatar#url}. */
+    public boolean save(final Avatar avatar, final InputStream inputStream) {
+        final long limit = avatar.size > 0 ? avatar.size : Config.AVATAR_DOWNLOAD_LIMIT;
+        return writeAvatar(
+                avatar,
+                os -> {
+                    if (ByteStreams.copy(ByteStreams.limit(inputStream, limit + 1), os) > limit) {
+                        throw new IOException("avatar exceeds " + limit + " bytes");
+                    }
+                });
+    }
+
+    private boolean writeAvatar(final Avatar avatar, final AvatarWriter writer) {
+        final File file =
+                new File(
+                        mXmppConnectionService.getCacheDir().getAbsolutePath()
+                                + "/"
+                                + UUID.randomUUID().toString());
+        if (file.getParentFile().mkdirs()) {
+            Log.d(Config.LOGTAG, "created cache directory");
+        }
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final CountingOutputStream countingOutputStream = new CountingOutputStream(os);
+            final DigestOutputStream mDigestOutputStream =
+                    new DigestOutputStream(countingOutputStream, digest);
+            writer.write(mDigestOutputStream);
+            mDigestOutputStream.flush();
+            mDigestOutputStream.close();
+            final String sha1sum = CryptoHelper.bytesToHex(digest.digest());
+            if (sha1sum.equalsIgnoreCase(avatar.sha1sum)) {
+                final File avatarFile = getAvatarFile(avatar.getFilename());
+                if (avatarFile.getParentFile().mkdirs()) {
+                    Log.d(Config.LOGTAG, "created avatar directory");
+                }
+                if (!file.renameTo(avatarFile)) {
                     Log.d(
                             Config.LOGTAG,
-                            "unable to create temporary file " + file.getAbsolutePath());
-                }
-                os = new FileOutputStream(file);
-                MessageDigest digest = MessageDigest.getInstance("SHA-1");
-                digest.reset();
-                DigestOutputStream mDigestOutputStream = new DigestOutputStream(os, digest);
-                final byte[] bytes = avatar.getImageAsBytes();
-                mDigestOutputStream.write(bytes);
-                mDigestOutputStream.flush();
-                mDigestOutputStream.close();
-                String sha1sum = CryptoHelper.bytesToHex(digest.digest());
-                if (sha1sum.equals(avatar.sha1sum)) {
-                    final File outputFile = getAvatarFile(avatar.getFilename());
-                    if (outputFile.getParentFile().mkdirs()) {
-                        Log.d(Config.LOGTAG, "created avatar directory");
-                    }
-                    final File avatarFile = getAvatarFile(avatar.getFilename());
-                    if (!file.renameTo(avatarFile)) {
-                        Log.d(
-                                Config.LOGTAG,
-                                "unable to rename " + file.getAbsolutePath() + " to " + outputFile);
-                        return false;
-                    }
-                } else {
-                    Log.d(Config.LOGTAG, "sha1sum mismatch for " + avatar.owner);
-                    if (!file.delete()) {
-                        Log.d(Config.LOGTAG, "unable to delete temporary file");
-                    }
+                            "unable to rename " + file.getAbsolutePath() + " to " + avatarFile);
                     return false;
                 }
-                avatar.size = bytes.length;
-            } catch (IllegalArgumentException | IOException | NoSuchAlgorithmException e) {
-                return false;
-            } finally {
-                close(os);
+                avatar.size = countingOutputStream.getCount();
+                verifiedAvatars.add(avatar.getFilename());
+                return true;
+            } else {
+                Log.d(Config.LOGTAG, "sha1sum mismatch for " + avatar.owner);
             }
+        } catch (IllegalArgumentException | IOException | NoSuchAlgorithmException e) {
+            Log.d(Config.LOGTAG, "unable to save avatar for " + avatar.owner, e);
+        } finally {
+            close(os);
+        }
+        if (file.exists() && !file.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete temporary file");
+        }
+        return false;
+    }
+
+    // decodes in chunks instead of turning the whole payload into one byte array first
+    private static void decodeBase64(final String base64, final OutputStream os)
+            throws IOException {
+        final byte[] chunk = new byte[4096];
+        int length = 0;
+        for (int i = 0; i < base64.length(); ++i) {
+            final char c = base64.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                continue;
+            }
+            if (c > 0x7f) {
+                throw new IllegalArgumentException("invalid base64 character");
+            }
+            chunk[length++] = (byte) c;
+            // a multiple of 4 so that every chunk but the last one decodes without padding
+            if (length == chunk.length) {
+                os.write(Base64.decode(chunk, 0, length, Base64.DEFAULT));
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            os.write(Base64.decode(chunk, 0, length, Base64.DEFAULT));
+        }
+    }
+
+    private static String sha1(final InputStream is) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        final byte[] buffer = new byte[4096];
+        int length;
+        while ((length = is.read(buffer)) > 0) {
+            digest.update(buffer, 0, length);
+        }
+        return CryptoHelper.bytesToHex(digest.digest());
+    }
+
+    // base64 without line breaks, as written by Base64FileElement
+    private static long getBase64Length(final long bytes) {
+        return 4 * ((bytes + 2) / 3);
+    }
+
+    private interface AvatarWriter {
+        void write(OutputStream outputStream) throws IOException;
+    }
+
+    private static final class CompressedAvatar {
+        private final Avatar avatar;
+        private final byte[] bytes;
+
+        private CompressedAvatar(final Avatar avatar, final byte[] bytes) {
+            this.avatar = avatar;
+            this.bytes = bytes;
+        }
+
+        private long getBase64Length() {
+            return FileBackend.getBase64Length(bytes.length);
         }
-        return true;
     }
 
     public void deleteHistoricAvatarPath() {
@@ -1380,7 +1489,7 @@ public class FileBackend {
         return new File(mXmppConnectionService.getFilesDir(), "/avatars/");
     }
 
-    private File getAvatarFile(String avatar) {
+    public File getAvatarFile(String avatar) {
         return new File(mXmppConnectionService.getCacheDir(), "/avatars/" + avatar);
     }
 
@@ -28,6 +28,7 @@ import javax.annotation.Nullable;
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.DownloadableFile;
+import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.utils.Compatibility;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
@@ -129,10 +130,18 @@ public class AbstractConnectionManager {
     }
 
     public void updateConversationUi(boolean force) {
+        updateConversationUi(force, ConversationEvent.EVERYTHING);
+    }
+
+    public void updateConversationUi(final boolean force, final Message message) {
+        updateConversationUi(force, ConversationEvent.transferProgress(message));
+    }
+
+    private void updateConversationUi(final boolean force, final ConversationEvent event) {
         synchronized (LAST_UI_UPDATE_CALL) {
             if (force || SystemClock.elapsedRealtime() - LAST_UI_UPDATE_CALL.get() >= UI_REFRESH_THRESHOLD) {
                 LAST_UI_UPDATE_CALL.set(SystemClock.elapsedRealtime());
-                mXmppConnectionService.updateConversationUi();
+                mXmppConnectionService.updateConversationUi(event);
             }
         }
     }
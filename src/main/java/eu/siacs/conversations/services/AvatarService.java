@@ -18,14 +18,17 @@ import android.util.Log;
 import android.util.LruCache;
 
 import androidx.annotation.ColorInt;
-import androidx.annotation.Nullable;
 import androidx.core.content.res.ResourcesCompat;
 
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -52,15 +55,9 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	public static final int SYSTEM_UI_AVATAR_SIZE = 48;
 
-	private static final String PREFIX_CONTACT = "contact";
-	private static final String PREFIX_CONVERSATION = "conversation";
-	private static final String PREFIX_ACCOUNT = "account";
-	private static final String PREFIX_GENERIC = "generic";
-
 	private static final String CHANNEL_SYMBOL = "#";
 
-	final private Set<Integer> sizes = new HashSet<>();
-	final private HashMap<String, Set<String>> conversationDependentKeys = new HashMap<>();
+	final private HashMap<AvatarKey, SettableFuture<Bitmap>> rendering = new HashMap<>();
 
 	protected XmppConnectionService mXmppConnectionService = null;
 
@@ -103,25 +100,22 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		if (contact.isSelf()) {
 			return get(contact.getAccount(), size, cachedOnly);
 		}
-		final String KEY = key(contact, size);
-		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().get(KEY);
-		if (avatar != null || cachedOnly) {
+		return getOrRender(key(contact, size), cachedOnly, () -> {
+			Bitmap avatar = null;
+			if (contact.getAvatarFilename() != null && QuickConversationsService.isQuicksy()) {
+				avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size);
+			}
+			if (avatar == null && contact.getProfilePhoto() != null) {
+				avatar = mXmppConnectionService.getFileBackend().cropCenterSquare(Uri.parse(contact.getProfilePhoto()), size);
+			}
+			if (avatar == null && contact.getAvatarFilename() != null) {
+				avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size);
+			}
+			if (avatar == null) {
+				avatar = get(contact.getDisplayName(), contact.getJid().asBareJid().toString(), size, false);
+			}
 			return avatar;
-		}
-		if (contact.getAvatarFilename() != null && QuickConversationsService.isQuicksy()) {
-			avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size);
-		}
-		if (avatar == null && contact.getProfilePhoto() != null) {
-			avatar = mXmppConnectionService.getFileBackend().cropCenterSquare(Uri.parse(contact.getProfilePhoto()), size);
-		}
-		if (avatar == null && contact.getAvatarFilename() != null) {
-			avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size);
-		}
-		if (avatar == null) {
-			avatar = get(contact.getDisplayName(), contact.getJid().asBareJid().toString(), size, false);
-		}
-		this.mXmppConnectionService.getBitmapCache().put(KEY, avatar);
-		return avatar;
+		});
 	}
 
 	public Bitmap getRoundedShortcut(final MucOptions mucOptions) {
@@ -212,33 +206,26 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	private Bitmap getImpl(final MucOptions.User user, final int size, boolean cachedOnly) {
-		final String KEY = key(user, size);
-		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().get(KEY);
-		if (avatar != null || cachedOnly) {
-			return avatar;
-		}
-		if (user.getAvatar() != null) {
-			avatar = mXmppConnectionService.getFileBackend().getAvatar(user.getAvatar(), size);
-		}
-		if (avatar == null) {
-			Contact contact = user.getContact();
-			if (contact != null) {
-				avatar = get(contact, size, false);
-			} else {
-				String seed = user.getRealJid() != null ? user.getRealJid().asBareJid().toString() : null;
-				avatar = get(user.getName(), seed, size, false);
+		return getOrRender(key(user, size), cachedOnly, () -> {
+			Bitmap avatar = null;
+			if (user.getAvatar() != null) {
+				avatar = mXmppConnectionService.getFileBackend().getAvatar(user.getAvatar(), size);
 			}
-		}
-		this.mXmppConnectionService.getBitmapCache().put(KEY, avatar);
-		return avatar;
+			if (avatar == null) {
+				Contact contact = user.getContact();
+				if (contact != null) {
+					avatar = get(contact, size, false);
+				} else {
+					String seed = user.getRealJid() != null ? user.getRealJid().asBareJid().toString() : null;
+					avatar = get(user.getName(), seed, size, false);
+				}
+			}
+			return avatar;
+		});
 	}
 
 	public void clear(Contact contact) {
-		synchronized (this.sizes) {
-			for (final Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(contact, size));
-			}
-		}
+		contact.invalidateAvatar();
 		for (Conversation conversation : mXmppConnectionService.findAllConferencesWith(contact)) {
 			MucOptions.User user = conversation.getMucOptions().findUserByRealJid(contact.getJid().asBareJid());
 			if (user != null) {
@@ -248,32 +235,15 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		}
 	}
 
-	private String key(Contact contact, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_CONTACT +
-				'\0' +
-				contact.getAccount().getJid().asBareJid() +
-				'\0' +
-				emptyOnNull(contact.getJid()) +
-				'\0' +
-				size;
-	}
-
-	private String key(MucOptions.User user, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_CONTACT +
-				'\0' +
-				user.getAccount().getJid().asBareJid() +
-				'\0' +
-				emptyOnNull(user.getFullJid()) +
-				'\0' +
-				emptyOnNull(user.getRealJid()) +
-				'\0' +
-				size;
+	private static AvatarKey key(Contact contact, int size) {
+		return new AvatarKey(AvatarKey.CONTACT, contact, null, null, contact.getAvatarGeneration(), size);
+	}
+
+	private static AvatarKey key(MucOptions.User user, int size) {
+		// users are looked up (and sometimes created) on the fly so they are identified by their
+		// addresses within the conversation rather than by instance
+		final Conversation conversation = user.getConversation();
+		return new AvatarKey(AvatarKey.PARTICIPANT, conversation, user.getFullJid(), user.getRealJid(), conversation.getAvatarGeneration(), size);
 	}
 
 	public Bitmap get(ListItem item, int size) {
@@ -321,58 +291,32 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		if (conversation.getMode() == Conversation.MODE_SINGLE) {
 			clear(conversation.getContact());
 		} else {
-			clear(conversation.getMucOptions());
-			synchronized (this.conversationDependentKeys) {
-				Set<String> keys = this.conversationDependentKeys.get(conversation.getUuid());
-				if (keys == null) {
-					return;
-				}
-				LruCache<String, Bitmap> cache = this.mXmppConnectionService.getBitmapCache();
-				for (String key : keys) {
-					cache.remove(key);
-				}
-				keys.clear();
-			}
+			conversation.invalidateAvatar();
 		}
 	}
 
 	private Bitmap get(MucOptions mucOptions, int size, boolean cachedOnly) {
-		final String KEY = key(mucOptions, size);
-		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().get(KEY);
-		if (bitmap != null || cachedOnly) {
-			return bitmap;
-		}
-
-		bitmap = mXmppConnectionService.getFileBackend().getAvatar(mucOptions.getAvatar(), size);
-
-		if (bitmap == null) {
+		return getOrRender(key(mucOptions, size), cachedOnly, () -> {
+			final Bitmap bitmap = mXmppConnectionService.getFileBackend().getAvatar(mucOptions.getAvatar(), size);
+			if (bitmap != null) {
+				return bitmap;
+			}
 			Conversation c = mucOptions.getConversation();
 			if (mucOptions.isPrivateAndNonAnonymous()) {
 				final List<MucOptions.User> users = mucOptions.getUsersRelevantForNameAndAvatar();
 				if (users.size() == 0) {
-					bitmap = getImpl(c.getName().toString(), c.getJid().asBareJid().toString(), size);
+					return getImpl(c.getName().toString(), c.getJid().asBareJid().toString(), size);
 				} else {
-					bitmap = getImpl(users, size);
+					return getImpl(users, size);
 				}
 			} else {
-				bitmap = getImpl(CHANNEL_SYMBOL, c.getJid().asBareJid().toString(), size);
+				return getImpl(CHANNEL_SYMBOL, c.getJid().asBareJid().toString(), size);
 			}
-		}
-
-		this.mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
-
-		return bitmap;
+		});
 	}
 
 	private Bitmap get(List<MucOptions.User> users, int size, boolean cachedOnly) {
-		final String KEY = key(users, size);
-		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().get(KEY);
-		if (bitmap != null || cachedOnly) {
-			return bitmap;
-		}
-		bitmap = getImpl(users, size);
-		this.mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
-		return bitmap;
+		return getOrRender(key(users, size), cachedOnly, () -> getImpl(users, size));
 	}
 
 	private Bitmap getImpl(List<MucOptions.User> users, int size) {
@@ -413,45 +357,22 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		if (options == null) {
 			return;
 		}
-		synchronized (this.sizes) {
-			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(options, size));
-			}
-		}
+		options.getConversation().invalidateAvatar();
 	}
 
-	private String key(final MucOptions options, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_CONVERSATION + "_" + options.getConversation().getUuid() + "_" + size;
+	private static AvatarKey key(final MucOptions options, int size) {
+		final Conversation conversation = options.getConversation();
+		return new AvatarKey(AvatarKey.ROOM, conversation, null, null, conversation.getAvatarGeneration(), size);
 	}
 
-	private String key(List<MucOptions.User> users, int size) {
+	private static AvatarKey key(List<MucOptions.User> users, int size) {
 		final Conversation conversation = users.get(0).getConversation();
-		StringBuilder builder = new StringBuilder("TILE_");
-		builder.append(conversation.getUuid());
-
+		final List<Jid> addresses = new ArrayList<>(users.size() * 2);
 		for (MucOptions.User user : users) {
-			builder.append("\0");
-			builder.append(emptyOnNull(user.getRealJid()));
-			builder.append("\0");
-			builder.append(emptyOnNull(user.getFullJid()));
+			addresses.add(user.getRealJid());
+			addresses.add(user.getFullJid());
 		}
-		builder.append('\0');
-		builder.append(size);
-		final String key = builder.toString();
-		synchronized (this.conversationDependentKeys) {
-			Set<String> keys;
-			if (this.conversationDependentKeys.containsKey(conversation.getUuid())) {
-				keys = this.conversationDependentKeys.get(conversation.getUuid());
-			} else {
-				keys = new HashSet<>();
-				this.conversationDependentKeys.put(conversation.getUuid(), keys);
-			}
-			keys.add(key);
-		}
-		return key;
+		return new AvatarKey(AvatarKey.TILE, conversation, addresses, null, conversation.getAvatarGeneration(), size);
 	}
 
 	public Bitmap get(Account account, int size) {
@@ -459,23 +380,19 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	public Bitmap get(Account account, int size, boolean cachedOnly) {
-		final String KEY = key(account, size);
-		Bitmap avatar = mXmppConnectionService.getBitmapCache().get(KEY);
-		if (avatar != null || cachedOnly) {
-			return avatar;
-		}
-		avatar = mXmppConnectionService.getFileBackend().getAvatar(account.getAvatar(), size);
-		if (avatar == null) {
+		return getOrRender(key(account, size), cachedOnly, () -> {
+			final Bitmap avatar = mXmppConnectionService.getFileBackend().getAvatar(account.getAvatar(), size);
+			if (avatar != null) {
+				return avatar;
+			}
 			final String displayName = account.getDisplayName();
 			final String jid = account.getJid().asBareJid().toEscapedString();
 			if (QuickConversationsService.isQuicksy() && !TextUtils.isEmpty(displayName)) {
-				avatar = get(displayName, jid, size, false);
+				return get(displayName, jid, size, false);
 			} else {
-				avatar = get(jid, null, size, false);
+				return get(jid, null, size, false);
 			}
-		}
-		mXmppConnectionService.getBitmapCache().put(KEY, avatar);
-		return avatar;
+		});
 	}
 
 	public Bitmap get(Message message, int size, boolean cachedOnly) {
@@ -510,27 +427,17 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	public void clear(Account account) {
-		synchronized (this.sizes) {
-			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(account, size));
-			}
-		}
+		account.invalidateAvatar();
 	}
 
 	public void clear(MucOptions.User user) {
-		synchronized (this.sizes) {
-			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(user, size));
-			}
-		}
+		// participants share the generation of their conversation; the room avatar and the tiles
+		// might show this participant as well
+		user.getConversation().invalidateAvatar();
 	}
 
-	private String key(Account account, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_ACCOUNT + "_" + account.getUuid() + "_"
-				+ size;
+	private static AvatarKey key(Account account, int size) {
+		return new AvatarKey(AvatarKey.ACCOUNT, account, null, null, account.getAvatarGeneration(), size);
 	}
 
 	/*public Bitmap get(String name, int size) {
@@ -538,14 +445,56 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}*/
 
 	public Bitmap get(final String name, String seed, final int size, boolean cachedOnly) {
-		final String KEY = key(seed == null ? name : name+"\0"+seed, size);
-		Bitmap bitmap = mXmppConnectionService.getBitmapCache().get(KEY);
-		if (bitmap != null || cachedOnly) {
+		final AvatarKey key = new AvatarKey(AvatarKey.GENERIC, null, name, seed, 0, size);
+		return getOrRender(key, cachedOnly, () -> getImpl(name, seed, size));
+	}
+
+	/**
+	 * Returns the cached bitmap for the key or renders it. Concurrent misses for the same key
+	 * (for example many message rows of the same participant) wait for the first render instead
+	 * of all drawing the same avatar.
+	 */
+	private Bitmap getOrRender(final AvatarKey key, final boolean cachedOnly, final Supplier<Bitmap> renderer) {
+		final LruCache<Object, Bitmap> cache = mXmppConnectionService.getBitmapCache();
+		final Bitmap cached = cache.get(key);
+		if (cached != null || cachedOnly) {
+			return cached;
+		}
+		final SettableFuture<Bitmap> future = SettableFuture.create();
+		final SettableFuture<Bitmap> inProgress;
+		synchronized (this.rendering) {
+			inProgress = this.rendering.get(key);
+			if (inProgress == null) {
+				this.rendering.put(key, future);
+			}
+		}
+		if (inProgress != null) {
+			try {
+				return inProgress.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (final ExecutionException e) {
+				Log.d(Config.LOGTAG, "concurrent avatar render failed. rendering again", e);
+				return renderer.get();
+			}
+		}
+		try {
+			final Bitmap bitmap = renderer.get();
+			if (bitmap != null) {
+				cache.put(key, bitmap);
+			}
+			future.set(bitmap);
 			return bitmap;
+		} catch (final Throwable t) {
+			// includes errors like OutOfMemoryError; waiting threads must never be left hanging
+			future.setException(t);
+			throw t;
+		} finally {
+			synchronized (this.rendering) {
+				this.rendering.remove(key);
+			}
 		}
-		bitmap = getImpl(name, seed, size);
-		mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
-		return bitmap;
 	}
 
 	public static Bitmap get(final Jid jid, final int size) {
@@ -560,13 +509,6 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		return bitmap;
 	}
 
-	private String key(String name, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_GENERIC + "_" + name + "_" + size;
-	}
-
 	private static boolean drawTile(Canvas canvas, String letter, int tileColor, int left, int top, int right, int bottom) {
 		letter = letter.toUpperCase(Locale.getDefault());
 		Paint tilePaint = new Paint(), textPaint = new Paint();
@@ -678,8 +620,61 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		}
 	}
 
-	private static String emptyOnNull(@Nullable Jid value) {
-		return value == null ? "" : value.toString();
+	/**
+	 * Identifies a rendered avatar. Entities are compared by instance and carry a generation that
+	 * is incremented when their avatar changes, so invalidating does not have to touch the cache;
+	 * stale entries are simply never looked up again and age out.
+	 */
+	private static final class AvatarKey {
+		private static final int CONTACT = 0;
+		private static final int ACCOUNT = 1;
+		private static final int ROOM = 2;
+		private static final int PARTICIPANT = 3;
+		private static final int TILE = 4;
+		private static final int GENERIC = 5;
+
+		private final int type;
+		private final Object owner;
+		private final Object first;
+		private final Object second;
+		private final int generation;
+		private final int size;
+
+		private AvatarKey(final int type, final Object owner, final Object first, final Object second, final int generation, final int size) {
+			this.type = type;
+			this.owner = owner;
+			this.first = first;
+			this.second = second;
+			this.generation = generation;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof AvatarKey)) {
+				return false;
+			}
+			final AvatarKey other = (AvatarKey) o;
+			return type == other.type
+					&& owner == other.owner
+					&& generation == other.generation
+					&& size == other.size
+					&& Objects.equals(first, other.first)
+					&& Objects.equals(second, other.second);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = type;
+			result = 31 * result + System.identityHashCode(owner);
+			result = 31 * result + Objects.hashCode(first);
+			result = 31 * result + Objects.hashCode(second);
+			result = 31 * result + generation;
+			return 31 * result + size;
+		}
 	}
 
 	public interface Avatarable {
@@ -0,0 +1,265 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.xmpp.XmppConnection;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts connection threads for all accounts. Instead of every account hitting DNS, TCP, TLS and
+ * SASL at the same moment (for example after a network change) connection attempts are spaced
+ * out by a small random delay and accounts the user is waiting for are started first.
+ *
+ * <p>The scheduler also owns the internal deadline timer that re-evaluates account connection
+ * states exactly when the next ping, timeout or reconnect attempt is due.
+ */
+public class ConnectionScheduler {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // minimum and maximum gap between two consecutive connection starts
+    private static final long MIN_STAGGER = 100;
+    private static final long MAX_STAGGER = 600;
+
+    // more than STORM_THRESHOLD connection starts within STORM_WINDOW are logged as a storm
+    private static final long STORM_WINDOW = 10_000;
+    private static final int STORM_THRESHOLD = 4;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Runnable deadlineCallback;
+
+    private final PriorityQueue<PendingConnection> pendingConnections = new PriorityQueue<>();
+    private final ArrayDeque<Long> recentStarts = new ArrayDeque<>();
+    private final TreeSet<Long> deadlines = new TreeSet<>();
+    private ScheduledFuture<?> drainFuture = null;
+    private ScheduledFuture<?> deadlineFuture = null;
+    private long scheduledDeadline = Long.MAX_VALUE;
+    private long lastStart = 0;
+    private long sequence = 0;
+    private int storms = 0;
+
+    public ConnectionScheduler(final Runnable deadlineCallback) {
+        this.deadlineCallback = deadlineCallback;
+    }
+
+    public enum Priority {
+        // interactive reconnects, accounts that just received a push or that the user is looking at
+        URGENT,
+        // the UI is visible but shows something unrelated to this account
+        NORMAL,
+        BACKGROUND
+    }
+
+    /**
+     * Queues the connection thread of an account. A connection that is still waiting to be started
+     * is only queued once; its priority is raised if necessary.
+     */
+    public synchronized void connect(
+            final Account account, final XmppConnection connection, final Priority priority) {
+        Priority effectivePriority = priority;
+        long position = sequence++;
+        final Iterator<PendingConnection> iterator = pendingConnections.iterator();
+        while (iterator.hasNext()) {
+            final PendingConnection pending = iterator.next();
+            if (pending.account == account) {
+                iterator.remove();
+                if (pending.priority.compareTo(effectivePriority) < 0) {
+                    effectivePriority = pending.priority;
+                }
+                position = Math.min(position, pending.sequence);
+            }
+        }
+        pendingConnections.add(
+                new PendingConnection(account, connection, effectivePriority, position));
+        if (drainFuture == null) {
+            drain();
+        }
+    }
+
+    private synchronized void onDrain() {
+        this.drainFuture = null;
+        drain();
+    }
+
+    private void drain() {
+        if (pendingConnections.isEmpty()) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (now - lastStart < MIN_STAGGER) {
+            schedule(lastStart + stagger() - now);
+            return;
+        }
+        final PendingConnection pending = pendingConnections.poll();
+        if (!pending.account.isConnectionEnabled()) {
+            drain();
+            return;
+        }
+        lastStart = now;
+        recordStart(now);
+        new Thread(pending.connection).start();
+        if (!pendingConnections.isEmpty()) {
+            schedule(stagger());
+        }
+    }
+
+    private static long stagger() {
+        return MIN_STAGGER + (long) (RANDOM.nextDouble() * (MAX_STAGGER - MIN_STAGGER));
+    }
+
+    private void schedule(final long delay) {
+        if (this.drainFuture != null) {
+            return;
+        }
+        try {
+            this.drainFuture = executor.schedule(this::onDrain, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            Log.d(Config.LOGTAG, "unable to schedule connection start", e);
+        }
+    }
+
+    private void recordStart(final long now) {
+        while (!recentStarts.isEmpty() && recentStarts.peekFirst() < now - STORM_WINDOW) {
+            recentStarts.removeFirst();
+        }
+        recentStarts.addLast(now);
+        if (recentStarts.size() == STORM_THRESHOLD + 1) {
+            storms++;
+            Log.d(
+                    Config.LOGTAG,
+                    "reconnect storm: "
+                            + recentStarts.size()
+                            + " connection attempts within "
+                            + STORM_WINDOW
+                            + "ms ("
+                            + storms
+                            + " storms so far, "
+                            + pendingConnections.size()
+                            + " still pending)");
+        }
+    }
+
+    /**
+     * Makes sure account connection states are re-evaluated at the given time (in {@link
+     * SystemClock#elapsedRealtime()} milliseconds).
+     */
+    public synchronized void scheduleDeadline(final long elapsedRealtime) {
+        // coalesce deadlines into one second buckets
+        final long deadline = ((elapsedRealtime / 1000) + 1) * 1000;
+        deadlines.add(deadline);
+        rescheduleDeadline();
+    }
+
+    private void rescheduleDeadline() {
+        final Long next = deadlines.isEmpty() ? null : deadlines.first();
+        if (next == null || next == scheduledDeadline) {
+            return;
+        }
+        if (deadlineFuture != null) {
+            deadlineFuture.cancel(false);
+        }
+        scheduledDeadline = next;
+        try {
+            deadlineFuture =
+                    executor.schedule(
+                            this::onDeadline,
+                            Math.max(0, next - SystemClock.elapsedRealtime()),
+                            TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            Log.d(Config.LOGTAG, "unable to schedule connection deadline", e);
+        }
+    }
+
+    private void onDeadline() {
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            deadlines.headSet(now, true).clear();
+            deadlineFuture = null;
+            scheduledDeadline = Long.MAX_VALUE;
+        }
+        try {
+            deadlineCallback.run();
+        } finally {
+            synchronized (this) {
+                rescheduleDeadline();
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class PendingConnection implements Comparable<PendingConnection> {
+        private final Account account;
+        private final XmppConnection connection;
+        private final Priority priority;
+        private final long sequence;
+
+        private PendingConnection(
+                final Account account,
+                final XmppConnection connection,
+                final Priority priority,
+                final long sequence) {
+            this.account = account;
+            this.connection = connection;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(final PendingConnection other) {
+            final int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Decorrelated jitter backoff: every delay is picked at random between the base delay and
+     * three times the previous delay, capped at a maximum. Accounts that fail at the same time
+     * therefore drift apart instead of retrying in lock step. No attempt waits less than the base
+     * delay.
+     */
+    public static class Backoff {
+
+        private int attempt = -1;
+        private boolean aggressive = false;
+        private int previous = 0;
+        private int current = 0;
+
+        public synchronized int interval(
+                final int attempt, final boolean aggressive, final int additional) {
+            final int base = aggressive ? 3 : (int) (25 * Math.pow(1.3, additional));
+            if (attempt <= 0) {
+                // first attempt after a success; the jitter starts from the base delay again
+                this.attempt = attempt;
+                this.aggressive = aggressive;
+                this.previous = base;
+                this.current = base;
+                return base;
+            }
+            if (attempt != this.attempt || aggressive != this.aggressive) {
+                final int cap = aggressive ? 60 : 300;
+                final int upper = Math.max(base, this.previous * 3);
+                this.current = Math.min(cap, base + RANDOM.nextInt(upper - base + 1));
+                this.previous = this.current;
+                this.attempt = attempt;
+                this.aggressive = aggressive;
+            }
+            return this.current;
+        }
+    }
+}
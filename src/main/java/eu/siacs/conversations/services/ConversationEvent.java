@@ -0,0 +1,142 @@
+package eu.siacs.conversations.services;
+
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.entities.Message;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes what changed when {@link XmppConnectionService#updateConversationUi(ConversationEvent)}
+ * is called so that listeners can skip unrelated conversations and rebind single messages instead
+ * of rebuilding their whole message list.
+ */
+public final class ConversationEvent {
+
+    public enum Type {
+        // anything could have changed; listeners have to reload everything they show
+        CHANGED,
+        MESSAGE_ADDED,
+        // status, body or read markers of a message that is already shown changed
+        MESSAGE_UPDATED,
+        TRANSFER_PROGRESS
+    }
+
+    public static final ConversationEvent EVERYTHING = new ConversationEvent(Type.CHANGED, null, null);
+
+    private final Type type;
+    private final Conversation conversation;
+    private final String messageUuid;
+
+    private ConversationEvent(
+            final Type type, final Conversation conversation, final String messageUuid) {
+        this.type = type;
+        this.conversation = conversation;
+        this.messageUuid = messageUuid;
+    }
+
+    public static ConversationEvent changed(final Conversation conversation) {
+        return new ConversationEvent(Type.CHANGED, conversation, null);
+    }
+
+    public static ConversationEvent messageAdded(final Message message) {
+        return of(Type.MESSAGE_ADDED, message);
+    }
+
+    public static ConversationEvent messageUpdated(final Message message) {
+        return of(Type.MESSAGE_UPDATED, message);
+    }
+
+    public static ConversationEvent transferProgress(final Message message) {
+        return of(Type.TRANSFER_PROGRESS, message);
+    }
+
+    private static ConversationEvent of(final Type type, final Message message) {
+        final Conversational conversational = message.getConversation();
+        if (conversational instanceof Conversation) {
+            return new ConversationEvent(type, (Conversation) conversational, message.getUuid());
+        }
+        return EVERYTHING;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the affected conversation or null if the event concerns all conversations */
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    public String getMessageUuid() {
+        return messageUuid;
+    }
+
+    /**
+     * Events collected while the UI refresh is throttled. Updates of single messages are kept per
+     * conversation; everything else marks the conversation (or all of them) for a full reload.
+     */
+    public static final class Batch {
+
+        private boolean everything = false;
+        private final Set<Conversation> changed =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Map<Conversation, Set<String>> updatedMessages = new IdentityHashMap<>();
+
+        public synchronized void add(final ConversationEvent event) {
+            final Conversation conversation = event.conversation;
+            if (conversation == null) {
+                everything = true;
+                return;
+            }
+            switch (event.type) {
+                case MESSAGE_UPDATED:
+                case TRANSFER_PROGRESS:
+                    Set<String> uuids = updatedMessages.get(conversation);
+                    if (uuids == null) {
+                        uuids = new HashSet<>();
+                        updatedMessages.put(conversation, uuids);
+                    }
+                    uuids.add(event.messageUuid);
+                    break;
+                default:
+                    changed.add(conversation);
+                    break;
+            }
+        }
+
+        /** Returns the events collected so far and starts a new batch. */
+        public synchronized Batch drain() {
+            final Batch batch = new Batch();
+            batch.everything = everything;
+            batch.changed.addAll(changed);
+            batch.updatedMessages.putAll(updatedMessages);
+            everything = false;
+            changed.clear();
+            updatedMessages.clear();
+            return batch;
+        }
+
+        public synchronized boolean isEmpty() {
+            return !everything && changed.isEmpty() && updatedMessages.isEmpty();
+        }
+
+        /** @return true if anything, not just single conversations, may have changed */
+        public synchronized boolean isEverythingChanged() {
+            return everything;
+        }
+
+        public synchronized boolean isReloadRequired(final Conversation conversation) {
+            return everything || changed.contains(conversation);
+        }
+
+        public synchronized Set<String> getUpdatedMessages(final Conversation conversation) {
+            final Set<String> uuids = updatedMessages.get(conversation);
+            return uuids == null ? Collections.emptySet() : new HashSet<>(uuids);
+        }
+    }
+}
@@ -8,26 +8,24 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Strings;
-import com.google.gson.stream.JsonWriter;
 
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
@@ -39,7 +37,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPOutputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
@@ -57,11 +54,25 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.BinaryBackup;
+import eu.siacs.conversations.utils.CompressedBlockOutputStream;
 import eu.siacs.conversations.utils.Compatibility;
 
 public class ExportBackupService extends Service {
 
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    private static final SimpleDateFormat DATE_TIME_FORMAT =
+            new SimpleDateFormat("yyyy-MM-dd-HHmmss", Locale.US);
+
+    /**
+     * Only write messages stored since the last backup of the account. Restoring such a backup
+     * requires the account to be restored from the previous backups first.
+     */
+    public static final String EXTRA_INCREMENTAL = "incremental";
+
+    // highest message sequence number (see DatabaseBackend#getMessageSequence()) included in the
+    // last backup of an account
+    private static final String CHECKPOINT_PREFIX = "backup_sequence_";
 
     public static final String KEYTYPE = "AES";
     public static final String CIPHERMODE = "AES/GCM/NoPadding";
@@ -102,7 +113,7 @@ public class ExportBackupService extends Service {
     }
 
     private static void accountExport(
-            final SQLiteDatabase db, final String uuid, final JsonWriter writer)
+            final SQLiteDatabase db, final String uuid, final BinaryBackup.Writer writer)
             throws IOException {
         final Cursor accountCursor =
                 db.query(
@@ -114,28 +125,21 @@ public class ExportBackupService extends Service {
                         null,
                         null);
         while (accountCursor != null && accountCursor.moveToNext()) {
-            writer.beginObject();
-            writer.name("table");
-            writer.value(Account.TABLENAME);
-            writer.name("values");
-            writer.beginObject();
+            writer.writeTable(Account.TABLENAME, accountCursor.getColumnNames());
+            writer.beginRow();
             for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
                 final String name = accountCursor.getColumnName(i);
-                writer.name(name);
                 final String value = accountCursor.getString(i);
-                if (value == null || Account.ROSTERVERSION.equals(accountCursor.getColumnName(i))) {
-                    writer.nullValue();
-                } else if (Account.OPTIONS.equals(accountCursor.getColumnName(i))
-                        && value.matches("\\d+")) {
+                if (value == null || Account.ROSTERVERSION.equals(name)) {
+                    writer.writeNull();
+                } else if (Account.OPTIONS.equals(name) && value.matches("\\d+")) {
                     int intValue = Integer.parseInt(value);
                     intValue |= 1 << Account.OPTION_DISABLED;
-                    writer.value(intValue);
+                    writer.writeLong(intValue);
                 } else {
-                    writer.value(value);
+                    writer.writeValue(accountCursor, i);
                 }
             }
-            writer.endObject();
-            writer.endObject();
         }
         if (accountCursor != null) {
             accountCursor.close();
@@ -147,24 +151,13 @@ public class ExportBackupService extends Service {
             final String table,
             final String column,
             final String uuid,
-            final JsonWriter writer)
+            final BinaryBackup.Writer writer)
             throws IOException {
         final Cursor cursor =
                 db.query(table, null, column + "=?", new String[] {uuid}, null, null, null);
         while (cursor != null && cursor.moveToNext()) {
-            writer.beginObject();
-            writer.name("table");
-            writer.value(table);
-            writer.name("values");
-            writer.beginObject();
-            for (int i = 0; i < cursor.getColumnCount(); ++i) {
-                final String name = cursor.getColumnName(i);
-                writer.name(name);
-                final String value = cursor.getString(i);
-                writer.value(value);
-            }
-            writer.endObject();
-            writer.endObject();
+            writer.writeTable(table, cursor.getColumnNames());
+            writer.writeRow(cursor);
         }
         if (cursor != null) {
             cursor.close();
@@ -192,13 +185,15 @@ public class ExportBackupService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        final boolean incremental =
+                intent != null && intent.getBooleanExtra(EXTRA_INCREMENTAL, false);
         if (RUNNING.compareAndSet(false, true)) {
             new Thread(
                             () -> {
                                 boolean success;
                                 List<File> files;
                                 try {
-                                    files = export();
+                                    files = export(incremental);
                                     success = true;
                                 } catch (final Exception e) {
                                     Log.d(Config.LOGTAG, "unable to create backup", e);
@@ -225,31 +220,36 @@ public class ExportBackupService extends Service {
     private void messageExport(
             final SQLiteDatabase db,
             final String uuid,
-            final JsonWriter writer,
+            final long checkpoint,
+            final long sequence,
+            final BinaryBackup.Writer writer,
             final Progress progress)
             throws IOException {
+        // unlike time_sent (which is the original timestamp of messages fetched from the archive)
+        // sequence numbers tell which messages were stored after a backup
         Cursor cursor =
                 db.rawQuery(
-                        "select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?",
-                        new String[] {uuid});
+                        "select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid join "
+                                + DatabaseBackend.MESSAGE_SEQUENCE_TABLENAME
+                                + " on "
+                                + DatabaseBackend.MESSAGE_SEQUENCE_TABLENAME
+                                + ".uuid=messages.uuid where conversations.accountUuid=? and "
+                                + DatabaseBackend.MESSAGE_SEQUENCE
+                                + ">? and "
+                                + DatabaseBackend.MESSAGE_SEQUENCE
+                                + "<=?",
+                        new String[] {
+                            uuid, String.valueOf(checkpoint), String.valueOf(sequence)
+                        });
         int size = cursor != null ? cursor.getCount() : 0;
         Log.d(Config.LOGTAG, "exporting " + size + " messages for account " + uuid);
         int i = 0;
         int p = 0;
+        if (cursor != null) {
+            writer.writeTable(Message.TABLENAME, cursor.getColumnNames());
+        }
         while (cursor != null && cursor.moveToNext()) {
-            writer.beginObject();
-            writer.name("table");
-            writer.value(Message.TABLENAME);
-            writer.name("values");
-            writer.beginObject();
-            for (int j = 0; j < cursor.getColumnCount(); ++j) {
-                final String name = cursor.getColumnName(j);
-                writer.name(name);
-                final String value = cursor.getString(j);
-                writer.value(value);
-            }
-            writer.endObject();
-            writer.endObject();
+            writer.writeRow(cursor);
             final int percentage = i * 100 / size;
             if (p < percentage) {
                 p = percentage;
@@ -262,7 +262,7 @@ public class ExportBackupService extends Service {
         }
     }
 
-    private List<File> export() throws Exception {
+    private List<File> export(final boolean incremental) throws Exception {
         NotificationCompat.Builder mBuilder =
                 new NotificationCompat.Builder(getBaseContext(), "backup");
         mBuilder.setContentTitle(getString(R.string.notification_create_backup_title))
@@ -273,6 +273,9 @@ public class ExportBackupService extends Service {
         final int max = this.mAccounts.size();
         final SecureRandom secureRandom = new SecureRandom();
         final List<File> files = new ArrayList<>();
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
+        final long sequence = this.mDatabaseBackend.getMessageSequence();
         Log.d(Config.LOGTAG, "starting backup for " + max + " accounts");
         for (final Account account : this.mAccounts) {
             final String password = account.getPassword();
@@ -293,19 +296,31 @@ public class ExportBackupService extends Service {
             final byte[] salt = new byte[16];
             secureRandom.nextBytes(IV);
             secureRandom.nextBytes(salt);
+            final long checkpoint =
+                    incremental ? preferences.getLong(CHECKPOINT_PREFIX + account.getUuid(), 0) : 0;
             final BackupFileHeader backupFileHeader =
                     new BackupFileHeader(
                             getString(R.string.app_name),
                             account.getJid(),
                             System.currentTimeMillis(),
                             IV,
-                            salt);
+                            salt,
+                            checkpoint);
             final Progress progress = new Progress(mBuilder, max, count);
-            final String filename =
-                    String.format(
-                            "%s.%s.ceb",
-                            account.getJid().asBareJid().toEscapedString(),
-                            DATE_FORMAT.format(new Date()));
+            final String filename;
+            if (backupFileHeader.isIncremental()) {
+                filename =
+                        String.format(
+                                "%s.%s.incremental.ceb",
+                                account.getJid().asBareJid().toEscapedString(),
+                                DATE_TIME_FORMAT.format(new Date()));
+            } else {
+                filename =
+                        String.format(
+                                "%s.%s.ceb",
+                                account.getJid().asBareJid().toEscapedString(),
+                                DATE_FORMAT.format(new Date()));
+            }
             final File file =
                     new File(
                             FileBackend.getBackupDirectory(this), filename);
@@ -314,11 +329,6 @@ public class ExportBackupService extends Service {
             if (directory != null && directory.mkdirs()) {
                 Log.d(Config.LOGTAG, "created backup directory " + directory.getAbsolutePath());
             }
-            final FileOutputStream fileOutputStream = new FileOutputStream(file);
-            final DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream);
-            backupFileHeader.write(dataOutputStream);
-            dataOutputStream.flush();
-
             final Cipher cipher =
                     Compatibility.twentyEight()
                             ? Cipher.getInstance(CIPHERMODE)
@@ -327,30 +337,41 @@ public class ExportBackupService extends Service {
             SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
             IvParameterSpec ivSpec = new IvParameterSpec(IV);
             cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-            CipherOutputStream cipherOutputStream =
-                    new CipherOutputStream(fileOutputStream, cipher);
-
-            final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(cipherOutputStream);
-            final JsonWriter jsonWriter =
-                    new JsonWriter(
-                            new OutputStreamWriter(gzipOutputStream, StandardCharsets.UTF_8));
-            jsonWriter.beginArray();
-            final SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
+
             final String uuid = account.getUuid();
-            accountExport(db, uuid, jsonWriter);
-            simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, jsonWriter);
-            messageExport(db, uuid, jsonWriter, progress);
-            for (final String table :
-                    Arrays.asList(
-                            SQLiteAxolotlStore.PREKEY_TABLENAME,
-                            SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
-                            SQLiteAxolotlStore.SESSION_TABLENAME,
-                            SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
-                simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, jsonWriter);
+            try (final FileOutputStream fileOutputStream = new FileOutputStream(file)) {
+                final DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream);
+                backupFileHeader.write(dataOutputStream);
+                dataOutputStream.flush();
+                // closing the block stream shuts its compression threads down and writes the
+                // authentication tag
+                try (final DataOutputStream blockOutputStream =
+                        new DataOutputStream(
+                                new CompressedBlockOutputStream(
+                                        new CipherOutputStream(fileOutputStream, cipher)))) {
+                    final BinaryBackup.Writer writer = new BinaryBackup.Writer(blockOutputStream);
+                    // conversations are small and get updated in place; they are always written
+                    // completely
+                    accountExport(db, uuid, writer);
+                    simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
+                    messageExport(db, uuid, checkpoint, sequence, writer, progress);
+                    // incremental imports never touch the live axolotl state of an account
+                    if (!backupFileHeader.isIncremental()) {
+                        for (final String table : SQLiteAxolotlStore.TABLENAMES) {
+                            simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                        }
+                    }
+                    writer.finish();
+                }
+            } catch (final Exception e) {
+                // closing still completes the file; don't leave a truncated backup around that
+                // looks valid
+                if (file.delete()) {
+                    Log.d(Config.LOGTAG, "deleted incomplete backup " + file.getAbsolutePath());
+                }
+                throw e;
             }
-            jsonWriter.endArray();
-            jsonWriter.flush();
-            jsonWriter.close();
+            preferences.edit().putLong(CHECKPOINT_PREFIX + uuid, sequence).apply();
             mediaScannerScanFile(file);
             Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile());
             count++;
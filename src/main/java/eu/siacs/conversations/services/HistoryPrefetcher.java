@@ -0,0 +1,196 @@
+package eu.siacs.conversations.services;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.R;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
+import eu.siacs.conversations.xmpp.mam.MamReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fills in older history of recently active conversations while the device is charging on an
+ * unmetered Wi-Fi so that scrolling back can be served from the database instead of waiting for
+ * a MAM round trip per page. Pages are fetched one at a time, older than the oldest message that
+ * is already stored, until either the conversation or the database as a whole reaches its budget.
+ */
+public class HistoryPrefetcher {
+
+    private static final int MAX_CONVERSATIONS = 10;
+    private static final long RECENT_ACTIVITY = 14 * Config.MILLISECONDS_IN_DAY;
+
+    private final XmppConnectionService service;
+    private final MessageArchiveService messageArchiveService;
+    private final SerialSingleThreadExecutor executor =
+            new SerialSingleThreadExecutor(HistoryPrefetcher.class.getSimpleName());
+
+    // conversations that reached their budget or ran out of history during this run
+    private final Set<Conversation> exhausted = new HashSet<>();
+    private Conversation current = null;
+    private int fetched = 0;
+
+    HistoryPrefetcher(
+            final XmppConnectionService service,
+            final MessageArchiveService messageArchiveService) {
+        this.service = service;
+        this.messageArchiveService = messageArchiveService;
+    }
+
+    public void schedule() {
+        executor.execute(this::prefetchNext);
+    }
+
+    void onQueryFinished(final MessageArchiveService.Query query) {
+        synchronized (this) {
+            if (query.getConversation() != current) {
+                return;
+            }
+            if (query.getActualMessageCount() == 0) {
+                exhausted.add(current);
+            }
+            fetched += query.getActualMessageCount();
+        }
+        schedule();
+    }
+
+    private void prefetchNext() {
+        synchronized (this) {
+            if (current != null && messageArchiveService.queryInProgress(current)) {
+                return;
+            }
+            current = null;
+        }
+        if (!service.getBooleanPreference("prefetch_history", R.bool.prefetch_history)) {
+            return;
+        }
+        if (!isCharging() || !isOnUnmeteredWifi()) {
+            reset("device is no longer charging on Wi-Fi");
+            return;
+        }
+        final long budget =
+                service.getLongPreference("prefetch_history_budget", R.integer.prefetch_history_budget);
+        if (service.databaseBackend.getMessageCount() >= budget) {
+            reset("global budget of " + budget + " messages reached");
+            return;
+        }
+        final long conversationBudget =
+                service.getLongPreference(
+                        "prefetch_history_conversation_budget",
+                        R.integer.prefetch_history_conversation_budget);
+        final long deletionDate = service.getAutomaticMessageDeletionDate();
+        for (final Conversation conversation : getCandidates()) {
+            if (service.databaseBackend.getMessageCount(conversation) >= conversationBudget) {
+                markExhausted(conversation);
+                continue;
+            }
+            final MamReference oldest = service.databaseBackend.getFirstMessageStored(conversation);
+            if (oldest == null || (deletionDate != 0 && oldest.getTimestamp() <= deletionDate)) {
+                markExhausted(conversation);
+                continue;
+            }
+            synchronized (this) {
+                current = conversation;
+            }
+            if (messageArchiveService.prefetch(conversation, oldest) != null) {
+                Log.d(
+                        Config.LOGTAG,
+                        conversation.getAccount().getJid().asBareJid()
+                                + ": prefetching history of "
+                                + conversation.getJid().asBareJid());
+                return;
+            }
+            synchronized (this) {
+                current = null;
+            }
+            markExhausted(conversation);
+        }
+        reset("no more conversations to prefetch");
+    }
+
+    private List<Conversation> getCandidates() {
+        final long recent = System.currentTimeMillis() - RECENT_ACTIVITY;
+        final List<Conversation> candidates = new ArrayList<>();
+        final Set<Conversation> exhausted;
+        synchronized (this) {
+            exhausted = new HashSet<>(this.exhausted);
+        }
+        for (final Conversation conversation : service.getConversations()) {
+            if (exhausted.contains(conversation)
+                    || conversation.getStatus() == Conversation.STATUS_ARCHIVED
+                    || !conversation.hasMessagesLeftOnServer()
+                    || conversation.getLastClearHistory().getTimestamp() != 0
+                    || conversation.getLatestMessage().getTimeSent() < recent
+                    || !isMamAvailable(conversation)
+                    || messageArchiveService.queryInProgress(conversation)) {
+                continue;
+            }
+            candidates.add(conversation);
+        }
+        Collections.sort(
+                candidates,
+                (a, b) ->
+                        Long.compare(
+                                b.getLatestMessage().getTimeSent(),
+                                a.getLatestMessage().getTimeSent()));
+        return candidates.subList(0, Math.min(MAX_CONVERSATIONS, candidates.size()));
+    }
+
+    private static boolean isMamAvailable(final Conversation conversation) {
+        final Account account = conversation.getAccount();
+        if (!account.isOnlineAndConnected()) {
+            return false;
+        }
+        if (conversation.getMode() == Conversation.MODE_SINGLE) {
+            return account.getXmppConnection().getFeatures().mam()
+                    && !conversation.getContact().isBlocked();
+        } else {
+            return conversation.getMucOptions().mamSupport();
+        }
+    }
+
+    private synchronized void markExhausted(final Conversation conversation) {
+        exhausted.add(conversation);
+    }
+
+    private synchronized void reset(final String reason) {
+        if (fetched > 0 || !exhausted.isEmpty()) {
+            Log.d(
+                    Config.LOGTAG,
+                    "history prefetch stopped after " + fetched + " messages: " + reason);
+        }
+        fetched = 0;
+        exhausted.clear();
+    }
+
+    private boolean isCharging() {
+        final Intent battery =
+                service.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private boolean isOnUnmeteredWifi() {
+        final ConnectivityManager cm =
+                ContextCompat.getSystemService(service, ConnectivityManager.class);
+        if (cm == null || cm.isActiveNetworkMetered()) {
+            return false;
+        }
+        final NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        return networkInfo != null
+                && networkInfo.isConnected()
+                && networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+}
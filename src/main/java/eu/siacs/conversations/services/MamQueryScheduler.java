@@ -0,0 +1,236 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which MAM page is sent next. Only a few pages per account are in flight at the same
+ * time; everything else waits in a queue ordered by priority so that the conversation the user is
+ * looking at does not wait behind a long background catch up. The RSM page size of catch up
+ * queries grows with the measured round trip time to keep the number of round trips on slow links
+ * down.
+ */
+class MamQueryScheduler {
+
+    private static final int MAX_IN_FLIGHT = 2;
+
+    // catch up pages grow from PAGE_SIZE up to MAX_PAGE_SIZE once the round trip exceeds this
+    private static final long TARGET_ROUND_TRIP = 400;
+    private static final int MAX_PAGE_SIZE = Config.PAGE_SIZE * 4;
+
+    private final XmppConnectionService service;
+    private final Sender sender;
+
+    private final List<MessageArchiveService.Query> queue = new ArrayList<>();
+    private final Map<Account, Set<MessageArchiveService.Query>> inFlight = new HashMap<>();
+    private final Map<Account, Long> roundTripTimes = new HashMap<>();
+    // until we hear otherwise; background queries still run whenever an account is idle
+    private boolean inBackground = true;
+
+    MamQueryScheduler(final XmppConnectionService service, final Sender sender) {
+        this.service = service;
+        this.sender = sender;
+    }
+
+    enum Priority {
+        // the user is waiting for this query (open conversation or scrolling back)
+        INTERACTIVE,
+        // conversations with unread messages
+        UNREAD,
+        // the account wide catch up and catch up of all other conversations
+        CATCHUP,
+        // filling in older history; while the app is in the background only sent once the account
+        // has no other MAM query running or queued
+        BACKGROUND,
+        // history prefetched while charging on Wi-Fi; runs regardless of the app state
+        PREFETCH
+    }
+
+    interface Sender {
+        /**
+         * @return false if the query could not be sent (for example because the account went
+         *     offline) and does not occupy a slot
+         */
+        boolean send(MessageArchiveService.Query query, int pageSize);
+    }
+
+    void submit(final MessageArchiveService.Query query) {
+        synchronized (this) {
+            query.queued = SystemClock.elapsedRealtime();
+            queue.add(query);
+        }
+        dispatch();
+    }
+
+    void onResponse(final MessageArchiveService.Query query, final boolean success) {
+        synchronized (this) {
+            final Set<MessageArchiveService.Query> running = inFlight.get(query.getAccount());
+            if (running == null || !running.remove(query)) {
+                return;
+            }
+            final long roundTrip = SystemClock.elapsedRealtime() - query.sent;
+            query.addPageTime(roundTrip);
+            // timeouts and errors say nothing about the page size the link can handle
+            if (success) {
+                final Long previous = roundTripTimes.get(query.getAccount());
+                roundTripTimes.put(
+                        query.getAccount(),
+                        previous == null ? roundTrip : (previous * 3 + roundTrip) / 4);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Forgets all queued and running queries of an account, e.g. after a new session started. The
+     * caller is responsible for finalizing them.
+     */
+    synchronized void reset(final Account account) {
+        inFlight.remove(account);
+        final Iterator<MessageArchiveService.Query> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getAccount() == account) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void remove(final Conversation conversation) {
+        final Iterator<MessageArchiveService.Query> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getConversation() == conversation) {
+                iterator.remove();
+            }
+        }
+    }
+
+    void setInBackground(final boolean inBackground) {
+        synchronized (this) {
+            this.inBackground = inBackground;
+        }
+        if (!inBackground) {
+            dispatch();
+        }
+    }
+
+    Priority getPriority(final MessageArchiveService.Query query) {
+        final Conversation conversation = query.getConversation();
+        if (query.isPrefetch()) {
+            return Priority.PREFETCH;
+        }
+        if (query.hasCallback()
+                || (conversation != null
+                        && conversation == service.getNotificationService().getOpenConversation())) {
+            return Priority.INTERACTIVE;
+        }
+        if (conversation != null && query.isCatchup() && !conversation.isRead()) {
+            return Priority.UNREAD;
+        }
+        if (query.isCatchup()) {
+            return Priority.CATCHUP;
+        }
+        return Priority.BACKGROUND;
+    }
+
+    private int getPageSize(final MessageArchiveService.Query query) {
+        final Long roundTrip = roundTripTimes.get(query.getAccount());
+        if (!query.isCatchup() || roundTrip == null || roundTrip <= TARGET_ROUND_TRIP) {
+            return Config.PAGE_SIZE;
+        }
+        return (int) Math.min(MAX_PAGE_SIZE, Config.PAGE_SIZE * roundTrip / TARGET_ROUND_TRIP);
+    }
+
+    private void dispatch() {
+        while (true) {
+            final List<MessageArchiveService.Query> candidates;
+            synchronized (this) {
+                candidates = new ArrayList<>(queue);
+            }
+            if (candidates.isEmpty()) {
+                return;
+            }
+            // getPriority() looks at conversation state (and its locks); keep that out of ours
+            final Map<MessageArchiveService.Query, Priority> priorities = new HashMap<>();
+            for (final MessageArchiveService.Query query : candidates) {
+                priorities.put(query, getPriority(query));
+            }
+            final MessageArchiveService.Query next;
+            final int pageSize;
+            synchronized (this) {
+                next = next(priorities);
+                if (next == null) {
+                    return;
+                }
+                queue.remove(next);
+                pageSize = getPageSize(next);
+                next.sent = SystemClock.elapsedRealtime();
+                running(next.getAccount()).add(next);
+            }
+            boolean sent = false;
+            try {
+                sent = sender.send(next, pageSize);
+            } finally {
+                if (!sent) {
+                    synchronized (this) {
+                        running(next.getAccount()).remove(next);
+                    }
+                }
+            }
+        }
+    }
+
+    private Set<MessageArchiveService.Query> running(final Account account) {
+        Set<MessageArchiveService.Query> running = inFlight.get(account);
+        if (running == null) {
+            running = new HashSet<>();
+            inFlight.put(account, running);
+        }
+        return running;
+    }
+
+    /**
+     * @param priorities priorities of the queries that were queued when dispatching started;
+     *     queries submitted since are picked up by the dispatch() following their submission
+     */
+    private MessageArchiveService.Query next(
+            final Map<MessageArchiveService.Query, Priority> priorities) {
+        MessageArchiveService.Query best = null;
+        Priority bestPriority = null;
+        MessageArchiveService.Query idleBackground = null;
+        for (final MessageArchiveService.Query query : queue) {
+            final Priority priority = priorities.get(query);
+            if (priority == null) {
+                continue;
+            }
+            final Set<MessageArchiveService.Query> running = inFlight.get(query.getAccount());
+            if (running != null && running.size() >= MAX_IN_FLIGHT) {
+                continue;
+            }
+            if (priority == Priority.BACKGROUND && inBackground) {
+                if (idleBackground == null && (running == null || running.isEmpty())) {
+                    idleBackground = query;
+                }
+                continue;
+            }
+            // the queue is in submission order; ties go to the query that has waited longest
+            if (bestPriority == null || priority.compareTo(bestPriority) < 0) {
+                best = query;
+                bestPriority = priority;
+            }
+        }
+        // headless wake ups (push) never bring the UI to the foreground; without this, history
+        // queries would wait for that indefinitely
+        return best != null ? best : idleBackground;
+    }
+}
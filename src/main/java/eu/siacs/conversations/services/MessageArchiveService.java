@@ -2,23 +2,30 @@ package eu.siacs.conversations.services;
 
 import static eu.siacs.conversations.utils.Random.SECURE_RANDOM;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.ReceiptRequest;
 import eu.siacs.conversations.generator.AbstractGenerator;
+import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.OnAdvancedStreamFeaturesLoaded;
@@ -32,6 +39,8 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 
     private final HashSet<Query> queries = new HashSet<>();
     private final ArrayList<Query> pendingQueries = new ArrayList<>();
+    private final MamQueryScheduler scheduler;
+    private final HistoryPrefetcher historyPrefetcher;
 
     public enum Version {
         MAM_0("urn:xmpp:mam:0", true),
@@ -95,17 +104,29 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 
     MessageArchiveService(final XmppConnectionService service) {
         this.mXmppConnectionService = service;
+        this.scheduler = new MamQueryScheduler(service, this::send);
+        this.historyPrefetcher = new HistoryPrefetcher(service, this);
     }
 
     private void catchup(final Account account) {
+        this.scheduler.reset(account);
+        final List<Query> dropped = new ArrayList<>();
         synchronized (this.queries) {
-            for (Iterator<Query> iterator = this.queries.iterator(); iterator.hasNext(); ) {
-                Query query = iterator.next();
+            for (final Query query : this.queries) {
                 if (query.getAccount() == account) {
-                    iterator.remove();
+                    dropped.add(query);
                 }
             }
         }
+        // running and queued queries of the previous session won't get an answer anymore. store
+        // what they collected so far and let their callbacks know
+        for (final Query query : dropped) {
+            try {
+                finalizeQuery(query, false);
+            } catch (final IllegalStateException e) {
+                // finished concurrently
+            }
+        }
         MamReference mamReference = MamReference.max(
                 mXmppConnectionService.databaseBackend.getLastMessageReceived(account),
                 mXmppConnectionService.databaseBackend.getLastClearDate(account)
@@ -210,6 +231,29 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         }
     }
 
+    /**
+     * Fetches one page of history older than the oldest stored message. The result is written to
+     * the database only; it is not kept in memory.
+     */
+    Query prefetch(final Conversation conversation, final MamReference oldestStored) {
+        synchronized (this.queries) {
+            final MamReference start = MamReference.max(new MamReference(0), mXmppConnectionService.getAutomaticMessageDeletionDate());
+            if (start.greaterThan(oldestStored)) {
+                return null;
+            }
+            final Query query = new Query(conversation, start, oldestStored.getTimestamp(), false);
+            query.reference = oldestStored.getReference() != null ? oldestStored.getReference() : conversation.getFirstMamReference();
+            query.prefetch = true;
+            this.queries.add(query);
+            this.execute(query);
+            return query;
+        }
+    }
+
+    public void prefetchHistory() {
+        this.historyPrefetcher.schedule();
+    }
+
     void executePendingQueries(final Account account) {
         final List<Query> pending = new ArrayList<>();
         synchronized (this.pendingQueries) {
@@ -226,23 +270,42 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         }
     }
 
+    void setInBackground(final boolean inBackground) {
+        this.scheduler.setInBackground(inBackground);
+    }
+
     private void execute(final Query query) {
+        this.scheduler.submit(query);
+    }
+
+    private boolean send(final Query query, final int pageSize) {
         final Account account = query.getAccount();
         if (account.getStatus() == Account.State.ONLINE) {
             final Conversation conversation = query.getConversation();
             if (conversation != null && conversation.getStatus() == Conversation.STATUS_ARCHIVED) {
                 throw new IllegalStateException("Attempted to run MAM query for archived conversation");
             }
-            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": running mam query " + query.toString());
+            query.pageSize = pageSize;
+            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": running mam query " + query.toString() + " after " + (SystemClock.elapsedRealtime() - query.queued) + "ms in queue");
             final IqPacket packet = this.mXmppConnectionService.getIqGenerator().queryMessageArchiveManagement(query);
             this.mXmppConnectionService.sendIqPacket(account, packet, (a, p) -> {
+                this.scheduler.onResponse(query, p.getType() == IqPacket.TYPE.RESULT);
                 final Element fin = p.findChild("fin", query.version.namespace);
                 if (p.getType() == IqPacket.TYPE.TIMEOUT) {
+                    this.storePage(query);
+                    final boolean removed;
                     synchronized (this.queries) {
-                        this.queries.remove(query);
+                        removed = this.queries.remove(query);
+                    }
+                    // catchup() finalizes the queries of a dead session as well; only whoever
+                    // removes the query reports its end
+                    if (removed) {
                         if (query.hasCallback()) {
                             query.callback(false);
                         }
+                        if (query.isPrefetch()) {
+                            this.historyPrefetcher.onQueryFinished(query);
+                        }
                     }
                 } else if (p.getType() == IqPacket.TYPE.RESULT && fin != null) {
                     final boolean running;
@@ -252,6 +315,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
                     if (running) {
                         processFin(query, fin);
                     } else {
+                        this.storePage(query);
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ignoring MAM iq result because query had been killed");
                     }
                 } else if (p.getType() == IqPacket.TYPE.RESULT && query.isLegacy()) {
@@ -265,14 +329,17 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
                     }
                 }
             });
+            return true;
         } else {
             synchronized (this.pendingQueries) {
                 this.pendingQueries.add(query);
             }
+            return false;
         }
     }
 
     private void finalizeQuery(final Query query, boolean done) {
+        this.storePage(query);
         synchronized (this.queries) {
             if (!this.queries.remove(query)) {
                 throw new IllegalStateException("Unable to remove query from queries");
@@ -294,6 +361,9 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         } else {
             this.mXmppConnectionService.updateConversationUi();
         }
+        if (query.isPrefetch()) {
+            this.historyPrefetcher.onQueryFinished(query);
+        }
     }
 
     boolean inCatchup(Account account) {
@@ -347,6 +417,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     private void processFin(Query query, Element fin) {
+        this.storePage(query);
         boolean complete = fin.getAttributeAsBoolean("complete");
         Element set = fin.findChild("set", "http://jabber.org/protocol/rsm");
         Element last = set == null ? null : set.findChild("last");
@@ -377,10 +448,14 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             this.finalizeQuery(query, done);
 
             Log.d(Config.LOGTAG, query.getAccount().getJid().asBareJid() + ": finished mam after " + query.getTotalCount() + "(" + query.getActualMessageCount() + ") messages. messages left=" + !done + " count=" + count);
+            Log.d(Config.LOGTAG, query.getAccount().getJid().asBareJid() + ": mam query " + query.getStatistics(scheduler.getPriority(query)));
             if (query.isCatchup() && query.getActualMessageCount() > 0) {
                 mXmppConnectionService.getNotificationService().finishBacklog(true, query.getAccount());
             }
             processPostponed(query);
+            if (query.isCatchup() && query.getWith() == null) {
+                this.historyPrefetcher.schedule();
+            }
         } else {
             final Query nextQuery;
             if (query.getPagingOrder() == PagingOrder.NORMAL) {
@@ -388,11 +463,83 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             } else {
                 nextQuery = query.prev(first == null ? null : first.getContent());
             }
-            this.execute(nextQuery);
-            this.finalizeQuery(query, false);
             synchronized (this.queries) {
                 this.queries.add(nextQuery);
             }
+            this.execute(nextQuery);
+            this.finalizeQuery(query, false);
+        }
+    }
+
+    /**
+     * Stores all messages collected from the current page of a query at once: messages that are
+     * already in the database are dropped with a single lookup per conversation, the rest is
+     * inserted in one transaction and only then handed to the download manager and notification
+     * backlog.
+     */
+    private void storePage(final Query query) {
+        final List<PageEntry> entries = query.drainPage();
+        if (entries.isEmpty()) {
+            return;
+        }
+        final Map<Conversation, List<PageEntry>> byConversation = new HashMap<>();
+        for (final PageEntry entry : entries) {
+            final Conversation conversation = (Conversation) entry.message.getConversation();
+            List<PageEntry> list = byConversation.get(conversation);
+            if (list == null) {
+                list = new ArrayList<>();
+                byConversation.put(conversation, list);
+            }
+            list.add(entry);
+        }
+        final List<PageEntry> fresh = new ArrayList<>(entries.size());
+        for (final Map.Entry<Conversation, List<PageEntry>> group : byConversation.entrySet()) {
+            final Conversation conversation = group.getKey();
+            final Set<String> serverMsgIds = new HashSet<>();
+            for (final PageEntry entry : group.getValue()) {
+                if (entry.message.getServerMsgId() != null) {
+                    serverMsgIds.add(entry.message.getServerMsgId());
+                }
+            }
+            final Set<String> stored = mXmppConnectionService.databaseBackend.findStoredServerMsgIds(conversation, serverMsgIds);
+            final Set<Message> duplicates = new HashSet<>();
+            for (final PageEntry entry : group.getValue()) {
+                if (stored.contains(entry.message.getServerMsgId())) {
+                    duplicates.add(entry.message);
+                } else {
+                    fresh.add(entry);
+                }
+            }
+            if (!duplicates.isEmpty()) {
+                conversation.removeAll(duplicates);
+                query.actualCount -= duplicates.size();
+                Log.d(Config.LOGTAG, query.getAccount().getJid().asBareJid() + ": skipped " + duplicates.size() + " messages from " + conversation.getJid().asBareJid() + " that had already been stored");
+            }
+        }
+        final List<Message> messages = new ArrayList<>(fresh.size());
+        for (final PageEntry entry : fresh) {
+            messages.add(entry.message);
+        }
+        mXmppConnectionService.databaseBackend.createMessages(messages);
+        if (query.isPrefetch()) {
+            // prefetched history is read from the database once the user scrolls back
+            final Conversation conversation = query.getConversation();
+            if (conversation != null) {
+                conversation.removeAll(new HashSet<>(messages));
+            }
+        }
+        final HttpConnectionManager manager = mXmppConnectionService.getHttpConnectionManager();
+        for (final PageEntry entry : fresh) {
+            final Message message = entry.message;
+            if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
+                manager.createNewDownloadConnection(message);
+            } else if (entry.notify) {
+                if (query.isCatchup()) {
+                    mXmppConnectionService.getNotificationService().pushFromBacklog(message);
+                } else {
+                    mXmppConnectionService.getNotificationService().push(message);
+                }
+            }
         }
     }
 
@@ -407,6 +554,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
                 }
             }
         }
+        this.scheduler.remove(conversation);
         synchronized (this.queries) {
             for (final Query q : queries) {
                 if (q.conversation == conversation) {
@@ -436,7 +584,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         Iterator<ReceiptRequest> iterator = query.pendingReceiptRequests.iterator();
         while (iterator.hasNext()) {
             ReceiptRequest rr = iterator.next();
-            mXmppConnectionService.sendMessagePacket(query.account, mXmppConnectionService.getMessageGenerator().received(query.account, rr.getJid(), rr.getId()));
+            mXmppConnectionService.sendReceiptPacket(query.account, mXmppConnectionService.getMessageGenerator().received(query.account, rr.getJid(), rr.getId()));
             iterator.remove();
         }
     }
@@ -462,6 +610,16 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         }
     }
 
+    private static class PageEntry {
+        private final Message message;
+        private final boolean notify;
+
+        private PageEntry(final Message message, final boolean notify) {
+            this.message = message;
+            this.notify = notify;
+        }
+    }
+
     public enum PagingOrder {
         NORMAL,
         REVERSE
@@ -483,6 +641,14 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         private XmppConnectionService.OnMoreMessagesLoaded callback = null;
         private boolean catchup = true;
         public final Version version;
+        private int pageSize = Config.PAGE_SIZE;
+        private boolean prefetch = false;
+        private long created = SystemClock.elapsedRealtime();
+        private int pages = 0;
+        private long networkTime = 0;
+        private final List<PageEntry> page = new ArrayList<>();
+        long queued;
+        long sent;
 
 
         Query(Conversation conversation, MamReference start, long end, boolean catchup) {
@@ -517,9 +683,27 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             query.receiptRequests = receiptRequests;
             query.callback = callback;
             query.catchup = catchup;
+            query.prefetch = prefetch;
+            query.created = created;
+            query.pages = pages;
+            query.networkTime = networkTime;
             return query;
         }
 
+        public void addToPage(final Message message, final boolean notify) {
+            synchronized (this.page) {
+                this.page.add(new PageEntry(message, notify));
+            }
+        }
+
+        private List<PageEntry> drainPage() {
+            synchronized (this.page) {
+                final List<PageEntry> entries = new ArrayList<>(this.page);
+                this.page.clear();
+                return entries;
+            }
+        }
+
         public void removePendingReceiptRequest(ReceiptRequest receiptRequest) {
             if (!this.pendingReceiptRequests.remove(receiptRequest)) {
                 this.receiptRequests.add(receiptRequest);
@@ -554,6 +738,28 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             return reference;
         }
 
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        void addPageTime(final long roundTrip) {
+            this.pages++;
+            this.networkTime += roundTrip;
+        }
+
+        String getStatistics(final MamQueryScheduler.Priority priority) {
+            return String.format(
+                    Locale.ROOT,
+                    "%s (%s) took %dms. %d pages, %dms on the network, %d messages (%d new)",
+                    getWith() == null ? "*" : getWith().toString(),
+                    priority,
+                    SystemClock.elapsedRealtime() - created,
+                    pages,
+                    networkTime,
+                    totalCount,
+                    actualCount);
+        }
+
         public PagingOrder getPagingOrder() {
             return this.pagingOrder;
         }
@@ -578,6 +784,10 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             return catchup;
         }
 
+        boolean isPrefetch() {
+            return prefetch;
+        }
+
         public void setCallback(XmppConnectionService.OnMoreMessagesLoaded callback) {
             this.callback = callback;
         }
@@ -665,6 +875,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
                 builder.append(this.reference);
             }
             builder.append(", catchup=").append(catchup);
+            builder.append(", max=").append(pageSize);
             builder.append(", ns=").append(version.namespace);
             return builder.toString();
         }
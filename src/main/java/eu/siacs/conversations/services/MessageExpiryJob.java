@@ -0,0 +1,129 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.DatabaseBackend;
+import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
+
+import java.io.File;
+
+/**
+ * Deletes messages that are older than the automatic deletion date in small batches. Every batch
+ * is its own short transaction (the FTS rows are removed by the delete trigger) followed by a
+ * short pause so that loading conversations and messages is not blocked while a large backlog is
+ * expired. Since every batch commits on its own a job that is interrupted simply picks up the
+ * remaining messages on its next run. Attachments that were stored by us and are no longer
+ * referenced by any message are deleted as well.
+ */
+public class MessageExpiryJob {
+
+    private static final int BATCH_SIZE = 250;
+    private static final long PAUSE_BETWEEN_BATCHES = 50;
+    private static final int VACUUM_PAGES = 1024;
+
+    private final XmppConnectionService service;
+    private final SerialSingleThreadExecutor executor =
+            new SerialSingleThreadExecutor(MessageExpiryJob.class.getSimpleName());
+
+    private long pendingTimestamp = 0;
+    private volatile boolean cancelled = false;
+
+    MessageExpiryJob(final XmppConnectionService service) {
+        this.service = service;
+    }
+
+    /**
+     * Expires all messages sent before the given timestamp. Requests that arrive while a run is
+     * still queued are merged into that run.
+     *
+     * @param onFinished runs on the job thread once everything up to the timestamp is deleted
+     */
+    public void expire(final long timestamp, final Runnable onFinished) {
+        synchronized (this) {
+            pendingTimestamp = Math.max(pendingTimestamp, timestamp);
+        }
+        executor.execute(
+                () -> {
+                    final long next;
+                    synchronized (this) {
+                        next = pendingTimestamp;
+                        pendingTimestamp = 0;
+                    }
+                    if (next > 0 && run(next)) {
+                        onFinished.run();
+                    }
+                });
+    }
+
+    private boolean run(final long timestamp) {
+        final DatabaseBackend databaseBackend = service.databaseBackend;
+        final long start = SystemClock.elapsedRealtime();
+        long lastRowId = 0;
+        int messages = 0;
+        int files = 0;
+        int batches = 0;
+        while (true) {
+            if (cancelled) {
+                Log.d(Config.LOGTAG, "message expiry cancelled after " + messages + " messages");
+                return false;
+            }
+            final DatabaseBackend.ExpiredMessages expired =
+                    databaseBackend.expireOldMessages(timestamp, lastRowId, BATCH_SIZE);
+            if (expired == null) {
+                break;
+            }
+            lastRowId = expired.lastRowId;
+            messages += expired.count;
+            files += deleteFiles(expired.filePaths);
+            batches++;
+            if (batches % 10 == 0) {
+                Log.d(
+                        Config.LOGTAG,
+                        "message expiry in progress: "
+                                + messages
+                                + " messages and "
+                                + files
+                                + " files deleted so far");
+            }
+            SystemClock.sleep(PAUSE_BETWEEN_BATCHES);
+        }
+        final boolean vacuumed = messages > 0 && databaseBackend.incrementalVacuum(VACUUM_PAGES);
+        Log.d(
+                Config.LOGTAG,
+                "expired "
+                        + messages
+                        + " messages and "
+                        + files
+                        + " files in "
+                        + batches
+                        + " batches within "
+                        + (SystemClock.elapsedRealtime() - start)
+                        + "ms (vacuumed="
+                        + vacuumed
+                        + ")");
+        return true;
+    }
+
+    private int deleteFiles(final Iterable<String> paths) {
+        int deleted = 0;
+        for (final String path : paths) {
+            // never touch files that merely got shared from somewhere else on the device
+            if (!path.startsWith("/") || !FileBackend.inConversationsDirectory(service, path)) {
+                continue;
+            }
+            final File file = new File(path);
+            if (file.delete()) {
+                service.getFileBackend().updateMediaScanner(file);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+}
@@ -0,0 +1,179 @@
+package eu.siacs.conversations.services;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the messages held in memory by all conversations within a service wide budget. When the
+ * budget is exceeded (or the system asks us to trim memory) the message lists of the conversations
+ * that have not been looked at for the longest time are reduced to their latest message. Once such
+ * a conversation is opened again its messages are reloaded from the database.
+ */
+public class MessageMemoryManager {
+
+    // share of the maximum heap that messages may occupy
+    private static final int BUDGET_FRACTION = 8;
+    // delay before reloading again if messages were being loaded by someone else; after the last
+    // attempt the reload stays pending until the conversation is opened again
+    private static final long RELOAD_RETRY_DELAY = 500;
+    private static final int RELOAD_ATTEMPTS = 10;
+
+    private final XmppConnectionService service;
+    private final long budget = Runtime.getRuntime().maxMemory() / BUDGET_FRACTION;
+    private final SerialSingleThreadExecutor executor =
+            new SerialSingleThreadExecutor(MessageMemoryManager.class.getSimpleName());
+    private final ScheduledExecutorService retryScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<Conversation, Long> lastViewed = new WeakHashMap<>();
+
+    MessageMemoryManager(final XmppConnectionService service) {
+        this.service = service;
+    }
+
+    /** Must be called when a conversation is shown to the user. */
+    public void onConversationOpened(final Conversation conversation) {
+        synchronized (lastViewed) {
+            lastViewed.put(conversation, SystemClock.elapsedRealtime());
+        }
+        scheduleReload(conversation, 1);
+        enforceBudget();
+    }
+
+    private void scheduleReload(final Conversation conversation, final int attempt) {
+        if (conversation.consumeMessagesUnloaded()) {
+            executor.execute(() -> reload(conversation, attempt));
+        }
+    }
+
+    public void enforceBudget() {
+        executor.execute(() -> trim(budget, "budget of " + budget / 1024 + "KiB exceeded"));
+    }
+
+    public void onTrimMemory(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            executor.execute(() -> trim(0, "trim memory level " + level));
+        }
+    }
+
+    private void reload(final Conversation conversation, final int attempt) {
+        // shares the flag with scrolling back so that the same page is not loaded twice
+        if (!conversation.messagesLoaded.compareAndSet(true, false)) {
+            // keep the unload pending and try again once the other load is done. If the
+            // conversation gets opened in the meantime the flag is consumed there instead
+            conversation.restoreMessagesUnloaded();
+            if (attempt < RELOAD_ATTEMPTS) {
+                retryScheduler.schedule(
+                        () -> scheduleReload(conversation, attempt + 1),
+                        RELOAD_RETRY_DELAY,
+                        TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        final List<Message> messages;
+        try {
+            final Message first = conversation.getFirstMessage();
+            messages =
+                    first == null
+                            ? service.databaseBackend.getMessages(conversation, Config.PAGE_SIZE)
+                            : service.databaseBackend.getMessages(
+                                    conversation, Config.PAGE_SIZE - 1, first.getTimeSent());
+            conversation.addAll(0, messages);
+        } finally {
+            conversation.messagesLoaded.set(true);
+        }
+        Log.d(
+                Config.LOGTAG,
+                "reloaded "
+                        + messages.size()
+                        + " messages of "
+                        + conversation.getJid().asBareJid());
+        service.updateConversationUi();
+    }
+
+    private void trim(final long budget, final String reason) {
+        final Conversation open = service.getNotificationService().getOpenConversation();
+        final List<Candidate> candidates = new ArrayList<>();
+        long total = 0;
+        for (final Conversation conversation : service.getConversations()) {
+            final long memory = conversation.getApproximateMessageMemory();
+            total += memory;
+            if (conversation != open && conversation.isRead()) {
+                candidates.add(new Candidate(conversation, memory, getLastViewed(conversation)));
+            }
+        }
+        if (total <= budget) {
+            return;
+        }
+        Collections.sort(candidates);
+        final long before = total;
+        int unloaded = 0;
+        int messages = 0;
+        for (final Candidate candidate : candidates) {
+            if (total <= budget) {
+                break;
+            }
+            final int dropped = candidate.conversation.unloadMessages();
+            if (dropped > 0) {
+                total -= candidate.memory - candidate.conversation.getApproximateMessageMemory();
+                messages += dropped;
+                unloaded++;
+            }
+        }
+        Log.d(
+                Config.LOGTAG,
+                reason
+                        + ": unloaded "
+                        + messages
+                        + " messages of "
+                        + unloaded
+                        + " conversations. ~"
+                        + before / 1024
+                        + "KiB -> ~"
+                        + total / 1024
+                        + "KiB");
+    }
+
+    private long getLastViewed(final Conversation conversation) {
+        synchronized (lastViewed) {
+            final Long timestamp = lastViewed.get(conversation);
+            return timestamp == null ? 0 : timestamp;
+        }
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        private final Conversation conversation;
+        private final long memory;
+        private final long lastViewed;
+
+        private Candidate(final Conversation conversation, final long memory, final long lastViewed) {
+            this.conversation = conversation;
+            this.memory = memory;
+            this.lastViewed = lastViewed;
+        }
+
+        @Override
+        public int compareTo(final Candidate other) {
+            // conversations that were never opened go first, larger ones before smaller ones
+            final int byLastViewed = Long.compare(lastViewed, other.lastViewed);
+            return byLastViewed != 0 ? byLastViewed : Long.compare(other.memory, memory);
+        }
+    }
+}
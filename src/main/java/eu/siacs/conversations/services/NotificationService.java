@@ -27,6 +27,7 @@ import android.text.SpannableString;
 import android.text.style.StyleSpan;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
 
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
@@ -50,6 +51,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -105,8 +107,18 @@ public class NotificationService {
     public static final int ONGOING_CALL_NOTIFICATION_ID = NOTIFICATION_ID_MULTIPLIER * 10;
     public static final int MISSED_CALL_NOTIFICATION_ID = NOTIFICATION_ID_MULTIPLIER * 12;
     private static final int DELIVERY_FAILED_NOTIFICATION_ID = NOTIFICATION_ID_MULTIPLIER * 13;
+
+    // updates arriving in quick succession (catching up on many chats after a reconnect) are
+    // merged into a single rebuild that is posted at most UPDATE_MAX_LATENCY after the first one
+    private static final long UPDATE_DEBOUNCE = 250;
+    private static final long UPDATE_MAX_LATENCY = 1000;
     private final XmppConnectionService mXmppConnectionService;
     private final LinkedHashMap<String, ArrayList<Message>> notifications = new LinkedHashMap<>();
+    // conversations whose child notification needs to be rebuilt; guarded by notifications
+    private final Set<String> dirtyConversations = new HashSet<>();
+    // guarded by notifications
+    private PendingUpdate pendingUpdate = null;
+    private final LruCache<String, CachedPerson> persons = new LruCache<>(64);
     private final HashMap<Conversation, AtomicInteger> mBacklogMessageCounter = new HashMap<>();
     private final LinkedHashMap<Conversational, MissedCallsInfo> mMissedCalls =
             new LinkedHashMap<>();
@@ -435,6 +447,7 @@ public class NotificationService {
             mList.add(message);
             notifications.put(conversationUuid, mList);
         }
+        dirtyConversations.add(conversationUuid);
     }
 
     public void push(final Message message) {
@@ -759,6 +772,7 @@ public class NotificationService {
                 markAsReadIfHasDirectReply(messages);
             }
             notifications.clear();
+            dirtyConversations.clear();
             updateNotification(false);
         }
     }
@@ -769,6 +783,7 @@ public class NotificationService {
         }
         synchronized (notifications) {
             markAsReadIfHasDirectReply(conversation);
+            dirtyConversations.remove(conversation.getUuid());
             if (notifications.remove(conversation.getUuid()) != null) {
                 cancel(conversation.getUuid(), NOTIFICATION_ID);
                 updateNotification(false, null, true);
@@ -835,6 +850,8 @@ public class NotificationService {
 
     public void updateNotification() {
         synchronized (notifications) {
+            // we don't know what changed (a message correction for example); rebuild everything
+            dirtyConversations.addAll(notifications.keySet());
             updateNotification(false);
         }
     }
@@ -849,6 +866,37 @@ public class NotificationService {
 
     private void updateNotification(
             final boolean notify, final List<String> conversations, final boolean summaryOnly) {
+        final long now = SystemClock.elapsedRealtime();
+        if (pendingUpdate == null) {
+            pendingUpdate = new PendingUpdate(now);
+        } else if (pendingUpdate.future != null) {
+            pendingUpdate.future.cancel(false);
+        }
+        pendingUpdate.merge(notify, conversations, summaryOnly);
+        final long deadline = pendingUpdate.since + UPDATE_MAX_LATENCY;
+        final long delay = Math.max(0, Math.min(UPDATE_DEBOUNCE, deadline - now));
+        pendingUpdate.future =
+                SCHEDULED_EXECUTOR_SERVICE.schedule(
+                        this::flushPendingUpdate, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushPendingUpdate() {
+        synchronized (notifications) {
+            final PendingUpdate update = this.pendingUpdate;
+            if (update == null) {
+                return;
+            }
+            this.pendingUpdate = null;
+            try {
+                updateNotificationNow(update.notify, update.getConversations(), update.summaryOnly);
+            } catch (final RuntimeException e) {
+                Log.d(Config.LOGTAG, "unable to update notification", e);
+            }
+        }
+    }
+
+    private void updateNotificationNow(
+            final boolean notify, final List<String> conversations, final boolean summaryOnly) {
         final SharedPreferences preferences =
                 PreferenceManager.getDefaultSharedPreferences(mXmppConnectionService);
 
@@ -862,6 +910,7 @@ public class NotificationService {
         // create one notification per conversation
 
         if (notifications.size() == 0) {
+            dirtyConversations.clear();
             cancel(NOTIFICATION_ID);
         } else {
             if (notify) {
@@ -881,8 +930,15 @@ public class NotificationService {
                 }
                 modifyForSoundVibrationAndLight(mBuilder, notify, quiteHours, preferences);
                 if (!summaryOnly) {
+                    // below N a single conversation is posted without children; the first
+                    // update with more than one conversation has to post all of them
+                    final boolean rebuildAll = Build.VERSION.SDK_INT < Build.VERSION_CODES.N;
                     for (Map.Entry<String, ArrayList<Message>> entry : notifications.entrySet()) {
                         String uuid = entry.getKey();
+                        if (!rebuildAll && !dirtyConversations.contains(uuid)) {
+                            // unchanged children stay as they are; the summary alerts for them
+                            continue;
+                        }
                         final boolean notifyThis =
                                 notifyOnlyOneChild ? conversations.contains(uuid) : notify;
                         Builder singleBuilder =
@@ -897,6 +953,7 @@ public class NotificationService {
                         setNotificationColor(singleBuilder);
                         notify(entry.getKey(), NOTIFICATION_ID, singleBuilder.build());
                     }
+                    dirtyConversations.clear();
                 }
                 notify(NOTIFICATION_ID, mBuilder.build());
             }
@@ -1370,46 +1427,72 @@ public class NotificationService {
 
     private Person getPerson(Message message) {
         final Contact contact = message.getContact();
-        final Person.Builder builder = new Person.Builder();
+        final String name;
+        final String uri;
         if (contact != null) {
-            builder.setName(contact.getDisplayName());
-            final Uri uri = contact.getSystemAccount();
-            if (uri != null) {
-                builder.setUri(uri.toString());
-            }
+            name = contact.getDisplayName();
+            final Uri systemAccount = contact.getSystemAccount();
+            uri = systemAccount == null ? null : systemAccount.toString();
         } else {
-            builder.setName(UIHelper.getMessageDisplayName(message));
+            name = UIHelper.getMessageDisplayName(message);
+            uri = null;
         }
+        final Bitmap avatar;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            builder.setIcon(
-                    IconCompat.createWithBitmap(
-                            mXmppConnectionService
-                                    .getAvatarService()
-                                    .get(
-                                            message,
-                                            AvatarService.getSystemUiAvatarSize(
-                                                    mXmppConnectionService),
-                                            false)));
+            avatar =
+                    mXmppConnectionService
+                            .getAvatarService()
+                            .get(
+                                    message,
+                                    AvatarService.getSystemUiAvatarSize(mXmppConnectionService),
+                                    false);
+        } else {
+            avatar = null;
         }
-        return builder.build();
+        return getPerson(name, uri, avatar);
+    }
+
+    /**
+     * Persons are reused across updates for as long as name, uri and avatar stay the same. The
+     * avatar comes out of the bitmap cache, so a changed or invalidated avatar is a different
+     * bitmap instance.
+     */
+    private Person getPerson(final String name, final String uri, final Bitmap avatar) {
+        final String key = Strings.nullToEmpty(name) + '\u0000' + Strings.nullToEmpty(uri);
+        final CachedPerson cached = persons.get(key);
+        if (cached != null && cached.avatar == avatar) {
+            return cached.person;
+        }
+        final Person.Builder builder = new Person.Builder().setName(name);
+        if (uri != null) {
+            builder.setUri(uri);
+        }
+        if (avatar != null) {
+            builder.setIcon(IconCompat.createWithBitmap(avatar));
+        }
+        final Person person = builder.build();
+        persons.put(key, new CachedPerson(avatar, person));
+        return person;
     }
 
     private void modifyForTextOnly(final Builder builder, final ArrayList<Message> messages) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             final Conversation conversation = (Conversation) messages.get(0).getConversation();
-            final Person.Builder meBuilder =
-                    new Person.Builder().setName(mXmppConnectionService.getString(R.string.me));
+            final Bitmap myAvatar;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                meBuilder.setIcon(
-                        IconCompat.createWithBitmap(
-                                mXmppConnectionService
-                                        .getAvatarService()
-                                        .get(
-                                                conversation.getAccount(),
-                                                AvatarService.getSystemUiAvatarSize(
-                                                        mXmppConnectionService))));
+                myAvatar =
+                        mXmppConnectionService
+                                .getAvatarService()
+                                .get(
+                                        conversation.getAccount(),
+                                        AvatarService.getSystemUiAvatarSize(
+                                                mXmppConnectionService));
+            } else {
+                myAvatar = null;
             }
-            final Person me = meBuilder.build();
+            final Person me =
+                    getPerson(
+                            mXmppConnectionService.getString(R.string.me), null, myAvatar);
             NotificationCompat.MessagingStyle messagingStyle =
                     new NotificationCompat.MessagingStyle(me);
             final boolean multiple = conversation.getMode() == Conversation.MODE_MULTI;
@@ -1710,6 +1793,10 @@ public class NotificationService {
         this.mOpenConversation = conversation;
     }
 
+    public Conversation getOpenConversation() {
+        return this.mOpenConversation;
+    }
+
     public void setIsInForeground(final boolean foreground) {
         this.mIsInForeground = foreground;
     }
@@ -1950,6 +2037,48 @@ public class NotificationService {
         }
     }
 
+    private static final class CachedPerson {
+        private final Bitmap avatar;
+        private final Person person;
+
+        private CachedPerson(final Bitmap avatar, final Person person) {
+            this.avatar = avatar;
+            this.person = person;
+        }
+    }
+
+    /** Notification updates requested since the last rebuild, merged into one. */
+    private static final class PendingUpdate {
+        private final long since;
+        private boolean notify = false;
+        private boolean summaryOnly = true;
+        // conversations that asked to alert; null if all of them may alert
+        private Set<String> alerting = new HashSet<>();
+        private ScheduledFuture<?> future;
+
+        private PendingUpdate(final long since) {
+            this.since = since;
+        }
+
+        private void merge(
+                final boolean notify, final List<String> conversations, final boolean summaryOnly) {
+            this.summaryOnly &= summaryOnly;
+            if (!notify) {
+                return;
+            }
+            this.notify = true;
+            if (conversations == null) {
+                this.alerting = null;
+            } else if (this.alerting != null) {
+                this.alerting.addAll(conversations);
+            }
+        }
+
+        private List<String> getConversations() {
+            return alerting == null ? null : new ArrayList<>(alerting);
+        }
+    }
+
     private static class MissedCallsInfo {
         private int numberOfCalls;
         private long lastTime;
@@ -0,0 +1,112 @@
+package eu.siacs.conversations.services;
+
+import eu.siacs.conversations.entities.Conversation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The conversation overview in sort order. Instead of sorting all conversations whenever the UI
+ * is updated only conversations whose {@link Conversation.SortKey} changed since the last call are
+ * removed and inserted again at the position found by binary search.
+ */
+class OrderedConversations {
+
+    private final ArrayList<Entry> ordered = new ArrayList<>();
+    private final IdentityHashMap<Conversation, Entry> entries = new IdentityHashMap<>();
+
+    synchronized List<Conversation> update(final Collection<Conversation> conversations) {
+        final IdentityHashMap<Conversation, Conversation.SortKey> changed =
+                new IdentityHashMap<>();
+        for (final Conversation conversation : conversations) {
+            final Conversation.SortKey key = conversation.getSortKey();
+            final Entry entry = entries.get(conversation);
+            if (entry == null || entry.key != key) {
+                changed.put(conversation, key);
+            }
+        }
+        if (entries.size() + countNew(changed) != conversations.size()) {
+            removeMissing(conversations);
+        }
+        for (final Map.Entry<Conversation, Conversation.SortKey> change : changed.entrySet()) {
+            final Entry previous = entries.remove(change.getKey());
+            if (previous != null) {
+                ordered.remove(indexOf(previous));
+            }
+            final Entry entry = new Entry(change.getKey(), change.getValue());
+            final int position = Collections.binarySearch(ordered, entry);
+            ordered.add(position < 0 ? -position - 1 : position, entry);
+            entries.put(entry.conversation, entry);
+        }
+        final List<Conversation> result = new ArrayList<>(ordered.size());
+        for (final Entry entry : ordered) {
+            result.add(entry.conversation);
+        }
+        return result;
+    }
+
+    private int countNew(final Map<Conversation, Conversation.SortKey> changed) {
+        int count = 0;
+        for (final Conversation conversation : changed.keySet()) {
+            if (!entries.containsKey(conversation)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void removeMissing(final Collection<Conversation> conversations) {
+        final IdentityHashMap<Conversation, Boolean> present = new IdentityHashMap<>();
+        for (final Conversation conversation : conversations) {
+            present.put(conversation, Boolean.TRUE);
+        }
+        final Iterator<Entry> iterator = ordered.iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (!present.containsKey(entry.conversation)) {
+                iterator.remove();
+                entries.remove(entry.conversation);
+            }
+        }
+    }
+
+    private int indexOf(final Entry entry) {
+        final int position = Collections.binarySearch(ordered, entry);
+        if (position >= 0) {
+            // entries with equal keys can be in any order; look around the hit
+            for (int i = position; i >= 0 && ordered.get(i).compareTo(entry) == 0; --i) {
+                if (ordered.get(i) == entry) {
+                    return i;
+                }
+            }
+            for (int i = position + 1;
+                    i < ordered.size() && ordered.get(i).compareTo(entry) == 0;
+                    ++i) {
+                if (ordered.get(i) == entry) {
+                    return i;
+                }
+            }
+        }
+        return ordered.indexOf(entry);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final Conversation conversation;
+        private final Conversation.SortKey key;
+
+        private Entry(final Conversation conversation, final Conversation.SortKey key) {
+            this.conversation = conversation;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(final Entry other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
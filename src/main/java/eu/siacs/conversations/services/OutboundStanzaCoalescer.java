@@ -0,0 +1,241 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.xmpp.Jid;
+import eu.siacs.conversations.xmpp.XmppConnection;
+import eu.siacs.conversations.xmpp.chatstate.ChatState;
+import eu.siacs.conversations.xmpp.stanzas.MessagePacket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back chat states, delivery receipts and displayed markers for a short time before sending
+ * them. Within that window only the latest displayed marker per conversation survives, chat states
+ * that flip back to what the recipient already knows are dropped, and everything that is left is
+ * written in one batch. Each kind of stanza has a budget; once a kind exceeds its budget (typically
+ * during catch-up) its window is stretched so that fewer radio wake ups are needed.
+ */
+public class OutboundStanzaCoalescer {
+
+    private static final long BUDGET_INTERVAL = 60_000;
+
+    private final XmppConnectionService service;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private final HashMap<String, ChatState> lastSentChatStates = new HashMap<>();
+    private final EnumMap<Kind, ArrayDeque<Long>> recentlySent = new EnumMap<>(Kind.class);
+    private ScheduledFuture<?> flushFuture = null;
+    private long scheduledFlush = Long.MAX_VALUE;
+    private long sequence = 0;
+
+    public OutboundStanzaCoalescer(final XmppConnectionService service) {
+        this.service = service;
+        for (final Kind kind : Kind.values()) {
+            this.recentlySent.put(kind, new ArrayDeque<>());
+        }
+    }
+
+    private enum Kind {
+        CHAT_STATE(250, 2_000, 30),
+        RECEIPT(500, 5_000, 30),
+        DISPLAYED(1_000, 5_000, 10);
+
+        private final long window;
+        private final long catchUpWindow;
+        private final int budget;
+
+        Kind(final long window, final long catchUpWindow, final int budget) {
+            this.window = window;
+            this.catchUpWindow = catchUpWindow;
+            this.budget = budget;
+        }
+    }
+
+    private static class Pending {
+        private final Account account;
+        private final Kind kind;
+        private final MessagePacket packet;
+        private final long deadline;
+
+        private Pending(
+                final Account account,
+                final Kind kind,
+                final MessagePacket packet,
+                final long deadline) {
+            this.account = account;
+            this.kind = kind;
+            this.packet = packet;
+            this.deadline = deadline;
+        }
+    }
+
+    public void sendChatState(final Account account, final MessagePacket packet) {
+        enqueue(account, Kind.CHAT_STATE, key(account, Kind.CHAT_STATE, packet.getTo()), packet);
+    }
+
+    public void sendDisplayedMarker(final Account account, final MessagePacket packet) {
+        enqueue(account, Kind.DISPLAYED, key(account, Kind.DISPLAYED, packet.getTo()), packet);
+    }
+
+    public void sendReceipt(final Account account, final MessagePacket packet) {
+        final String key;
+        synchronized (this) {
+            key = key(account, Kind.RECEIPT, packet.getTo()) + '#' + (sequence++);
+        }
+        enqueue(account, Kind.RECEIPT, key, packet);
+    }
+
+    /**
+     * Must be called for every other message packet that is sent. Message bodies carry a chat state
+     * of their own, which supersedes any chat state notification still waiting to be sent.
+     */
+    public synchronized void onMessagePacketSent(final Account account, final MessagePacket packet) {
+        final ChatState chatState = ChatState.parse(packet);
+        if (chatState == null || packet.getTo() == null) {
+            return;
+        }
+        final String key = key(account, Kind.CHAT_STATE, packet.getTo());
+        pending.remove(key);
+        lastSentChatStates.put(key, chatState);
+    }
+
+    // chat states and markers of one conversation supersede each other, no matter which resource
+    // they were addressed to
+    private static String key(final Account account, final Kind kind, final Jid to) {
+        return account.getUuid() + '|' + kind.name() + '|' + (to == null ? null : to.asBareJid());
+    }
+
+    private synchronized void enqueue(
+            final Account account, final Kind kind, final String key, final MessagePacket packet) {
+        final long now = SystemClock.elapsedRealtime();
+        final Pending previous = pending.remove(key);
+        final long deadline;
+        if (previous != null) {
+            // the newer stanza replaces the older one but does not push the deadline back
+            deadline = previous.deadline;
+        } else {
+            deadline = now + (isOverBudget(kind, now) ? kind.catchUpWindow : kind.window);
+        }
+        pending.put(key, new Pending(account, kind, packet, deadline));
+        scheduleFlush(deadline);
+    }
+
+    private boolean isOverBudget(final Kind kind, final long now) {
+        final ArrayDeque<Long> sent = recentlySent.get(kind);
+        while (!sent.isEmpty() && sent.peekFirst() < now - BUDGET_INTERVAL) {
+            sent.removeFirst();
+        }
+        return sent.size() >= kind.budget;
+    }
+
+    private void scheduleFlush(final long deadline) {
+        if (deadline >= scheduledFlush) {
+            return;
+        }
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+        }
+        scheduledFlush = deadline;
+        try {
+            flushFuture =
+                    executor.schedule(
+                            this::flush,
+                            Math.max(0, deadline - SystemClock.elapsedRealtime()),
+                            TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            Log.d(Config.LOGTAG, "unable to schedule outbound stanza flush", e);
+        }
+    }
+
+    private void flush() {
+        final ListMultimap<Account, MessagePacket> batches = ArrayListMultimap.create();
+        int dropped = 0;
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            flushFuture = null;
+            scheduledFlush = Long.MAX_VALUE;
+            long next = Long.MAX_VALUE;
+            final Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Pending> entry = iterator.next();
+                final Pending p = entry.getValue();
+                if (p.deadline > now) {
+                    next = Math.min(next, p.deadline);
+                    continue;
+                }
+                iterator.remove();
+                if (p.kind == Kind.CHAT_STATE) {
+                    final ChatState chatState = ChatState.parse(p.packet);
+                    if (chatState == lastSentChatStates.put(entry.getKey(), chatState)) {
+                        dropped++;
+                        continue;
+                    }
+                }
+                recentlySent.get(p.kind).addLast(now);
+                batches.put(p.account, p.packet);
+            }
+            if (next != Long.MAX_VALUE) {
+                scheduleFlush(next);
+            }
+        }
+        for (final Account account : batches.keySet()) {
+            final XmppConnection connection = account.getXmppConnection();
+            final List<MessagePacket> packets = batches.get(account);
+            if (connection == null) {
+                continue;
+            }
+            if (Config.EXTENDED_SM_LOGGING) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": sending "
+                                + packets.size()
+                                + " coalesced stanzas ("
+                                + dropped
+                                + " chat states dropped)");
+            }
+            connection.sendMessagePackets(new ArrayList<>(packets));
+        }
+    }
+
+    /**
+     * Must be called whenever the account binds or resumes a session. Chat states sent before may
+     * never have reached the recipient, so the next one must not be suppressed.
+     */
+    public synchronized void onSessionEstablished(final Account account) {
+        final String prefix = account.getUuid() + '|';
+        Iterables.removeIf(lastSentChatStates.keySet(), key -> key.startsWith(prefix));
+    }
+
+    /** Forgets everything that is still pending for this account, e.g. when it gets disabled. */
+    public synchronized void clear(final Account account) {
+        final String prefix = account.getUuid() + '|';
+        Iterables.removeIf(pending.keySet(), key -> key.startsWith(prefix));
+        Iterables.removeIf(lastSentChatStates.keySet(), key -> key.startsWith(prefix));
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
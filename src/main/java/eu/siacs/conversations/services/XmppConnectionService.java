@@ -66,6 +66,8 @@ import org.openintents.openpgp.util.OpenPgpApi;
 import org.openintents.openpgp.util.OpenPgpServiceConnection;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.Security;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -85,8 +87,6 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -103,6 +103,7 @@ import eu.siacs.conversations.crypto.axolotl.XmppAxolotlMessage;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Blockable;
 import eu.siacs.conversations.entities.Bookmark;
+import eu.siacs.conversations.entities.CapsRegistry;
 import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
@@ -150,6 +151,7 @@ import eu.siacs.conversations.utils.StringUtils;
 import eu.siacs.conversations.utils.TorServiceUtils;
 import eu.siacs.conversations.utils.WakeLockHelper;
 import eu.siacs.conversations.utils.XmppUri;
+import eu.siacs.conversations.xml.Base64FileElement;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.LocalizedContent;
 import eu.siacs.conversations.xml.Namespace;
@@ -203,16 +205,19 @@ public class XmppConnectionService extends Service {
     public static final String ACTION_QUICK_LOG = "eu.siacs.conversations.QUICK_LOG";
 
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
+    // roughly one screen; the bodies of these are loaded along with the messages
+    private static final int INITIALLY_VISIBLE_MESSAGES = 20;
 
     public final CountDownLatch restoredFromDatabaseLatch = new CountDownLatch(1);
     private final static Executor FILE_OBSERVER_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
 
-    private final ScheduledExecutorService internalPingExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ConnectionScheduler connectionScheduler = new ConnectionScheduler(this::manageAccountConnectionStatesInternal);
     private final static SerialSingleThreadExecutor VIDEO_COMPRESSION_EXECUTOR = new SerialSingleThreadExecutor("VideoCompression");
     private final SerialSingleThreadExecutor mDatabaseWriterExecutor = new SerialSingleThreadExecutor("DatabaseWriter");
     private final SerialSingleThreadExecutor mDatabaseReaderExecutor = new SerialSingleThreadExecutor("DatabaseReader");
     private final SerialSingleThreadExecutor mNotificationExecutor = new SerialSingleThreadExecutor("NotificationExecutor");
+    private final SerialSingleThreadExecutor mReconnectExecutor = new SerialSingleThreadExecutor("Reconnect");
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
     private final IBinder mBinder = new XmppConnectionBinder();
     private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
@@ -262,6 +267,10 @@ public class XmppConnectionService extends Service {
     private final HttpConnectionManager mHttpConnectionManager = new HttpConnectionManager(this);
     private final AvatarService mAvatarService = new AvatarService(this);
     private final MessageArchiveService mMessageArchiveService = new MessageArchiveService(this);
+    private final OutboundStanzaCoalescer mOutboundStanzaCoalescer = new OutboundStanzaCoalescer(this);
+    private final MessageExpiryJob mMessageExpiryJob = new MessageExpiryJob(this);
+    private final MessageMemoryManager mMessageMemoryManager = new MessageMemoryManager(this);
+    private final OrderedConversations orderedConversations = new OrderedConversations();
     private final PushManagementService mPushManagementService = new PushManagementService(this);
     private final QuickConversationsService mQuickConversationsService = new QuickConversationsService(this);
     private final ConversationsFileObserver fileObserver = new ConversationsFileObserver(
@@ -398,7 +407,6 @@ public class XmppConnectionService extends Service {
         }
     };
     private final AtomicLong mLastExpiryRun = new AtomicLong(0);
-    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(20);
     private final OnStatusChanged statusListener = new OnStatusChanged() {
 
         @Override
@@ -419,6 +427,7 @@ public class XmppConnectionService extends Service {
                 if (account.setShowErrorNotification(true)) {
                     databaseBackend.updateAccount(account);
                 }
+                mOutboundStanzaCoalescer.onSessionEstablished(account);
                 mMessageArchiveService.executePendingQueries(account);
                 if (connection != null && connection.getFeatures().csi()) {
                     if (checkListeners()) {
@@ -489,13 +498,6 @@ public class XmppConnectionService extends Service {
                         final int attempt = connection.getAttempt() + 1;
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": error connecting account. try again in " + next + "s for the " + attempt + " time. lowPingTimeout=" + lowPingTimeoutMode+", aggressive="+aggressive);
                         scheduleWakeUpCall(next, account.getUuid().hashCode());
-                        if (aggressive) {
-                            internalPingExecutor.schedule(
-                                    XmppConnectionService.this::manageAccountConnectionStatesInternal,
-                                    (next * 1000L) + 50,
-                                    TimeUnit.MILLISECONDS
-                            );
-                        }
                     }
                 }
             }
@@ -505,7 +507,8 @@ public class XmppConnectionService extends Service {
     private OpenPgpServiceConnection pgpServiceConnection;
     private PgpEngine mPgpEngine = null;
     private WakeLock wakeLock;
-    private LruCache<String, Bitmap> mBitmapCache;
+    // avatars are keyed by AvatarService, previews and thumbnails by strings
+    private LruCache<Object, Bitmap> mBitmapCache;
     private final BroadcastReceiver mInternalEventReceiver = new InternalEventReceiver();
     private final BroadcastReceiver mInternalRestrictedEventReceiver = new RestrictedEventReceiver(Arrays.asList(TorServiceUtils.ACTION_STATUS));
     private final BroadcastReceiver mInternalScreenEventReceiver = new InternalEventReceiver();
@@ -691,8 +694,12 @@ public class XmppConnectionService extends Service {
                         resetAllAttemptCounts(true, false);
                     }
                     Resolver.clearCache();
+                    mMessageArchiveService.prefetchHistory();
                 }
                 break;
+            case Intent.ACTION_POWER_CONNECTED:
+                mMessageArchiveService.prefetchHistory();
+                break;
             case Intent.ACTION_SHUTDOWN:
                 logoutAndSave(true);
                 return START_NOT_STICKY;
@@ -1197,16 +1204,20 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     private void expireOldMessages() {
         expireOldMessages(false);
     }
 
     public void expireOldMessages(final boolean resetHasMessagesLeftOnServer) {
         mLastExpiryRun.set(SystemClock.elapsedRealtime());
-        mDatabaseWriterExecutor.execute(() -> {
-            long timestamp = getAutomaticMessageDeletionDate();
-            if (timestamp > 0) {
-                databaseBackend.expireOldMessages(timestamp);
+        final long timestamp = getAutomaticMessageDeletionDate();
+        if (timestamp > 0) {
+            mMessageExpiryJob.expire(timestamp, () -> {
                 synchronized (XmppConnectionService.this.conversations) {
                     for (Conversation conversation : XmppConnectionService.this.conversations) {
                         conversation.expireOldMessages(timestamp);
@@ -1217,8 +1228,8 @@ public class XmppConnectionService extends Service {
                     }
                 }
                 updateConversationUi();
-            }
-        });
+            });
+        }
     }
 
     public boolean hasInternetConnection() {
@@ -1263,9 +1274,9 @@ public class XmppConnectionService extends Service {
         updateMemorizingTrustmanager();
         final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
         final int cacheSize = maxMemory / 8;
-        this.mBitmapCache = new LruCache<String, Bitmap>(cacheSize) {
+        this.mBitmapCache = new LruCache<Object, Bitmap>(cacheSize) {
             @Override
-            protected int sizeOf(final String key, final Bitmap bitmap) {
+            protected int sizeOf(final Object key, final Bitmap bitmap) {
                 return bitmap.getByteCount() / 1024;
             }
         };
@@ -1337,6 +1348,7 @@ public class XmppConnectionService extends Service {
             }
             systemBroadcastFilter.addAction(NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED);
         }
+        systemBroadcastFilter.addAction(Intent.ACTION_POWER_CONNECTED);
         ContextCompat.registerReceiver(
                 this,
                 this.mInternalEventReceiver,
@@ -1352,7 +1364,6 @@ public class XmppConnectionService extends Service {
         mForceDuringOnCreate.set(false);
         toggleForegroundService();
         setupPhoneStateListener();
-        internalPingExecutor.scheduleAtFixedRate(this::manageAccountConnectionStatesInternal,10,10,TimeUnit.SECONDS);
     }
 
 
@@ -1409,6 +1420,7 @@ public class XmppConnectionService extends Service {
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        mMessageMemoryManager.onTrimMemory(level);
         if (level >= TRIM_MEMORY_COMPLETE) {
             Log.d(Config.LOGTAG, "clear cache due to low memory");
             getBitmapCache().evictAll();
@@ -1426,7 +1438,9 @@ public class XmppConnectionService extends Service {
         }
         destroyed = false;
         fileObserver.stopWatching();
-        internalPingExecutor.shutdown();
+        connectionScheduler.shutdown();
+        mOutboundStanzaCoalescer.shutdown();
+        mMessageExpiryJob.cancel();
         super.onDestroy();
     }
 
@@ -1587,6 +1601,7 @@ public class XmppConnectionService extends Service {
 
     public void scheduleWakeUpCall(final int seconds, final int requestCode) {
         final long timeToWake = SystemClock.elapsedRealtime() + (seconds < 0 ? 1 : seconds + 1) * 1000L;
+        connectionScheduler.scheduleDeadline(timeToWake);
         final AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
         if (alarmManager == null) {
             return;
@@ -1643,7 +1658,7 @@ public class XmppConnectionService extends Service {
     public void sendChatState(Conversation conversation) {
         if (sendChatStates()) {
             MessagePacket packet = mMessageGenerator.generateChatState(conversation);
-            sendMessagePacket(conversation.getAccount(), packet);
+            mOutboundStanzaCoalescer.sendChatState(conversation.getAccount(), packet);
         }
     }
 
@@ -2093,12 +2108,6 @@ public class XmppConnectionService extends Service {
                 if (DatabaseBackend.requiresMessageIndexRebuild()) {
                     DatabaseBackend.getInstance(this).rebuildMessagesIndex();
                 }
-                final long deletionDate = getAutomaticMessageDeletionDate();
-                mLastExpiryRun.set(SystemClock.elapsedRealtime());
-                if (deletionDate > 0) {
-                    Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
-                    databaseBackend.expireOldMessages(deletionDate);
-                }
                 Log.d(Config.LOGTAG, "restoring roster...");
                 for (final Account account : accounts) {
                     databaseBackend.readRoster(account.getRoster());
@@ -2108,6 +2117,7 @@ public class XmppConnectionService extends Service {
                 loadPhoneContacts();
                 Log.d(Config.LOGTAG, "restoring messages...");
                 final long startMessageRestore = SystemClock.elapsedRealtime();
+                final long heapBeforeMessageRestore = getUsedHeap();
                 final Conversation quickLoad = QuickLoader.get(this.conversations);
                 if (quickLoad != null) {
                     restoreMessages(quickLoad);
@@ -2123,19 +2133,46 @@ public class XmppConnectionService extends Service {
                 mNotificationService.finishBacklog();
                 restoredFromDatabaseLatch.countDown();
                 final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms. heap grew by ~" + (getUsedHeap() - heapBeforeMessageRestore) / 1024 + "KiB");
                 updateConversationUi();
+                mMessageMemoryManager.enforceBudget();
+                final long deletionDate = getAutomaticMessageDeletionDate();
+                if (deletionDate > 0) {
+                    Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
+                }
+                expireOldMessages();
             };
-            mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
+            mDatabaseReaderExecutor.execute(runnable);
         }
     }
 
     private void restoreMessages(Conversation conversation) {
-        conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
+        conversation.addAll(0, getMessagesWithVisibleBodies(conversation));
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
         conversation.findUnreadMessagesAndCalls(mNotificationService::pushFromBacklog);
     }
 
+    private List<Message> getMessagesWithVisibleBodies(final Conversation conversation) {
+        final List<Message> messages = databaseBackend.getMessages(conversation, Config.PAGE_SIZE);
+        databaseBackend.loadDeferredBodies(
+                messages.subList(
+                        Math.max(0, messages.size() - INITIALLY_VISIBLE_MESSAGES),
+                        messages.size()));
+        return messages;
+    }
+
+    /**
+     * Loads the bodies that were left out when the given messages were read from the database.
+     * Runs on the database reader thread; onLoaded is called from there as well.
+     */
+    public void loadDeferredBodies(final List<Message> messages, final Runnable onLoaded) {
+        mDatabaseReaderExecutor.execute(
+                () -> {
+                    databaseBackend.loadDeferredBodies(messages);
+                    onLoaded.run();
+                });
+    }
+
     public void loadPhoneContacts() {
         mContactMergerExecutor.execute(() -> {
             final Map<Jid, JabberIdContact> contacts = JabberIdContact.load(this);
@@ -2228,10 +2265,11 @@ public class XmppConnectionService extends Service {
             }
         }
         list.clear();
+        final List<Conversation> conversations = sort ? orderedConversations.update(getConversations()) : getConversations();
         if (includeNoFileUpload) {
-            list.addAll(getConversations());
+            list.addAll(conversations);
         } else {
-            for (Conversation conversation : getConversations()) {
+            for (Conversation conversation : conversations) {
                 if (conversation.getMode() == Conversation.MODE_SINGLE
                         || (conversation.getAccount().httpUploadAvailable() && conversation.getMucOptions().participating())) {
                     list.add(conversation);
@@ -2248,8 +2286,6 @@ public class XmppConnectionService extends Service {
                     }
                     return indexA - indexB;
                 });
-            } else {
-                Collections.sort(list);
             }
         } catch (IllegalArgumentException e) {
             //ignore
@@ -2267,6 +2303,8 @@ public class XmppConnectionService extends Service {
             final Account account = conversation.getAccount();
             List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
             if (messages.size() > 0) {
+                // these are about to be scrolled into view
+                databaseBackend.loadDeferredBodies(messages);
                 conversation.addAll(0, messages);
                 callback.onMoreMessagesLoaded(messages.size(), conversation);
             } else if (conversation.hasMessagesLeftOnServer()
@@ -2404,7 +2442,7 @@ public class XmppConnectionService extends Service {
             final Conversation c = conversation;
             final Runnable runnable = () -> {
                 if (loadMessagesFromDb) {
-                    c.addAll(0, databaseBackend.getMessages(c, Config.PAGE_SIZE));
+                    c.addAll(0, getMessagesWithVisibleBodies(c));
                     updateConversationUi();
                     c.messagesLoaded.set(true);
                 }
@@ -2654,6 +2692,7 @@ public class XmppConnectionService extends Service {
                     mNotificationService.clear(conversation);
                 }
             }
+            mOutboundStanzaCoalescer.clear(account);
             if (account.getXmppConnection() != null) {
                 new Thread(() -> disconnect(account, !connected)).start();
             }
@@ -2926,6 +2965,7 @@ public class XmppConnectionService extends Service {
                 }
             }
         }
+        mMessageArchiveService.setInBackground(false);
         Log.d(Config.LOGTAG, "app switched into foreground");
     }
 
@@ -2951,6 +2991,7 @@ public class XmppConnectionService extends Service {
             }
         }
         this.mNotificationService.setIsInForeground(false);
+        mMessageArchiveService.setInBackground(true);
         Log.d(Config.LOGTAG, "app switched into background");
     }
 
@@ -3713,7 +3754,7 @@ public class XmppConnectionService extends Service {
 
     public void updateMessage(Message message, boolean includeBody) {
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(ConversationEvent.messageUpdated(message));
     }
 
     public void createMessageAsync(final Message message) {
@@ -3829,11 +3870,18 @@ public class XmppConnectionService extends Service {
                 }
                 photo.clearChildren();
                 photo.addChild("TYPE").setContent(avatar.type);
-                photo.addChild("BINVAL").setContent(avatar.image);
+                try {
+                    photo.addChild(Base64FileElement.of("BINVAL", null, getFileBackend().getAvatarFile(avatar.getFilename())));
+                } catch (final IOException e) {
+                    Log.d(Config.LOGTAG, "unable to read avatar " + avatar.getFilename(), e);
+                    callback.onAvatarPublicationFailed(R.string.error_saving_avatar);
+                    return;
+                }
                 IqPacket publication = new IqPacket(IqPacket.TYPE.SET);
                 publication.setTo(conversation.getJid().asBareJid());
                 publication.addChild(vcard);
                 sendIqPacket(account, publication, (a1, publicationResponse) -> {
+                    Base64FileElement.release(publication);
                     if (publicationResponse.getType() == IqPacket.TYPE.RESULT) {
                         callback.onAvatarPublicationSucceeded();
                     } else {
@@ -3860,11 +3908,22 @@ public class XmppConnectionService extends Service {
 
     public void publishAvatar(Account account, final Avatar avatar, final Bundle options, final boolean retry, final OnAvatarPublication callback) {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": publishing avatar. options=" + options);
-        IqPacket packet = this.mIqGenerator.publishAvatar(avatar, options);
+        final IqPacket packet;
+        try {
+            packet = this.mIqGenerator.publishAvatar(avatar, options);
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to read avatar " + avatar.getFilename(), e);
+            if (callback != null) {
+                callback.onAvatarPublicationFailed(R.string.error_saving_avatar);
+            }
+            return;
+        }
         this.sendIqPacket(account, packet, new OnIqPacketReceived() {
 
             @Override
             public void onIqPacketReceived(Account account, IqPacket result) {
+                // answered (or timed out); the avatar file is no longer needed for resending
+                Base64FileElement.release(packet);
                 if (result.getType() == IqPacket.TYPE.RESULT) {
                     publishAvatarMetadata(account, avatar, options, true, callback);
                 } else if (retry && PublishOptions.preconditionNotMet(result)) {
@@ -3985,7 +4044,11 @@ public class XmppConnectionService extends Service {
                 switch (avatar.origin) {
                     case PEP:
                         this.mInProgressAvatarFetches.add(KEY);
-                        fetchAvatarPep(account, avatar, callback);
+                        if (avatar.url != null) {
+                            fetchAvatarHttp(account, avatar, callback);
+                        } else {
+                            fetchAvatarPep(account, avatar, callback);
+                        }
                         break;
                     case VCARD:
                         this.mInProgressAvatarFetches.add(KEY);
@@ -4011,24 +4074,7 @@ public class XmppConnectionService extends Service {
                 avatar.image = mIqParser.avatarData(result);
                 if (avatar.image != null) {
                     if (getFileBackend().save(avatar)) {
-                        if (a.getJid().asBareJid().equals(avatar.owner)) {
-                            if (a.setAvatar(avatar.getFilename())) {
-                                databaseBackend.updateAccount(a);
-                            }
-                            getAvatarService().clear(a);
-                            updateConversationUi();
-                            updateAccountUi();
-                        } else {
-                            final Contact contact = a.getRoster().getContact(avatar.owner);
-                            contact.setAvatar(avatar);
-                            syncRoster(account);
-                            getAvatarService().clear(contact);
-                            updateConversationUi();
-                            updateRosterUi();
-                        }
-                        if (callback != null) {
-                            callback.success(avatar);
-                        }
+                        onPepAvatarFetched(a, avatar, callback);
                         Log.d(Config.LOGTAG, a.getJid().asBareJid() + ": successfully fetched pep avatar for " + avatar.owner);
                         return;
                     }
@@ -4051,6 +4097,47 @@ public class XmppConnectionService extends Service {
         });
     }
 
+    private void fetchAvatarHttp(final Account account, final Avatar avatar, final UiCallback<Avatar> callback) {
+        HttpConnectionManager.EXECUTOR.execute(() -> {
+            boolean saved = false;
+            try (final InputStream inputStream = HttpConnectionManager.open(avatar.url, account.isOnion() || useTorToConnect())) {
+                saved = getFileBackend().save(avatar, inputStream);
+            } catch (final IOException | IllegalArgumentException e) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to download avatar from " + avatar.url, e);
+            }
+            if (saved) {
+                synchronized (mInProgressAvatarFetches) {
+                    mInProgressAvatarFetches.remove(generateFetchKey(account, avatar));
+                }
+                onPepAvatarFetched(account, avatar, callback);
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": successfully downloaded avatar for " + avatar.owner);
+            } else {
+                fetchAvatarPep(account, avatar, callback);
+            }
+        });
+    }
+
+    private void onPepAvatarFetched(final Account account, final Avatar avatar, final UiCallback<Avatar> callback) {
+        if (account.getJid().asBareJid().equals(avatar.owner)) {
+            if (account.setAvatar(avatar.getFilename())) {
+                databaseBackend.updateAccount(account);
+            }
+            getAvatarService().clear(account);
+            updateConversationUi();
+            updateAccountUi();
+        } else {
+            final Contact contact = account.getRoster().getContact(avatar.owner);
+            contact.setAvatar(avatar);
+            syncRoster(account);
+            getAvatarService().clear(contact);
+            updateConversationUi();
+            updateRosterUi();
+        }
+        if (callback != null) {
+            callback.success(avatar);
+        }
+    }
+
     private void fetchAvatarVcard(final Account account, final Avatar avatar, final UiCallback<Avatar> callback) {
         IqPacket packet = this.mIqGenerator.retrieveVcardAvatar(avatar);
         this.sendIqPacket(account, packet, new OnIqPacketReceived() {
@@ -4133,6 +4220,8 @@ public class XmppConnectionService extends Service {
                                     }
                                     getAvatarService().clear(account);
                                     callback.success(avatar);
+                                } else if (avatar.url != null) {
+                                    fetchAvatarHttp(account, avatar, callback);
                                 } else {
                                     fetchAvatarPep(account, avatar, callback);
                                 }
@@ -4198,11 +4287,10 @@ public class XmppConnectionService extends Service {
                 if (!force) {
                     disconnect(account, false);
                 }
-                Thread thread = new Thread(connection);
                 connection.setInteractive(interactive);
                 connection.prepareNewConnection();
                 connection.interrupt();
-                thread.start();
+                connectionScheduler.connect(account, connection, getConnectionPriority(account, interactive));
                 scheduleWakeUpCall(Config.CONNECT_DISCO_TIMEOUT, account.getUuid().hashCode());
             } else {
                 disconnect(account, force || account.getTrueStatus().isError() || !hasInternet);
@@ -4219,8 +4307,21 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    private ConnectionScheduler.Priority getConnectionPriority(final Account account, final boolean interactive) {
+        final Conversation openConversation = mNotificationService.getOpenConversation();
+        if (interactive
+                || isInLowPingTimeoutMode(account)
+                || (openConversation != null && openConversation.getAccount() == account)) {
+            return ConnectionScheduler.Priority.URGENT;
+        } else if (!checkListeners()) {
+            return ConnectionScheduler.Priority.NORMAL;
+        } else {
+            return ConnectionScheduler.Priority.BACKGROUND;
+        }
+    }
+
     public void reconnectAccountInBackground(final Account account) {
-        new Thread(() -> reconnectAccount(account, false, true)).start();
+        mReconnectExecutor.execute(() -> reconnectAccount(account, false, true));
     }
 
     public void invite(final Conversation conversation, final Jid contact) {
@@ -4324,7 +4425,7 @@ public class XmppConnectionService extends Service {
         message.setErrorMessage(errorMessage);
         message.setStatus(status);
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(ConversationEvent.messageUpdated(message));
         if (oldStatus != status && status == Message.STATUS_SEND_FAILED) {
             mNotificationService.pushFailedDelivery(message);
         }
@@ -4402,8 +4503,12 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateConversationUi() {
+        updateConversationUi(ConversationEvent.EVERYTHING);
+    }
+
+    public void updateConversationUi(final ConversationEvent event) {
         for (OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
-            listener.onConversationUpdate();
+            listener.onConversationUpdate(event);
         }
     }
 
@@ -4554,7 +4659,7 @@ public class XmppConnectionService extends Service {
             Log.d(Config.LOGTAG, conversation.getAccount().getJid().asBareJid() + ": sending read marker to " + markable.getCounterpart().toString());
             final Account account = conversation.getAccount();
             final MessagePacket packet = mMessageGenerator.confirm(markable);
-            this.sendMessagePacket(account, packet);
+            mOutboundStanzaCoalescer.sendDisplayedMarker(account, packet);
         }
     }
 
@@ -4577,7 +4682,7 @@ public class XmppConnectionService extends Service {
         setMemorizingTrustManager(tm);
     }
 
-    public LruCache<String, Bitmap> getBitmapCache() {
+    public LruCache<Object, Bitmap> getBitmapCache() {
         return this.mBitmapCache;
     }
 
@@ -4626,10 +4731,19 @@ public class XmppConnectionService extends Service {
     public void sendMessagePacket(Account account, MessagePacket packet) {
         final XmppConnection connection = account.getXmppConnection();
         if (connection != null) {
+            mOutboundStanzaCoalescer.onMessagePacketSent(account, packet);
             connection.sendMessagePacket(packet);
         }
     }
 
+    /**
+     * Delivery receipts are not time critical. They are held back briefly so that receipts for
+     * several incoming messages leave in a single write.
+     */
+    public void sendReceiptPacket(final Account account, final MessagePacket packet) {
+        mOutboundStanzaCoalescer.sendReceipt(account, packet);
+    }
+
     public void sendPresencePacket(Account account, PresencePacket packet) {
         XmppConnection connection = account.getXmppConnection();
         if (connection != null) {
@@ -4758,6 +4872,10 @@ public class XmppConnectionService extends Service {
         return null;
     }
 
+    public MessageMemoryManager getMessageMemoryManager() {
+        return this.mMessageMemoryManager;
+    }
+
     public NotificationService getNotificationService() {
         return this.mNotificationService;
     }
@@ -4885,13 +5003,14 @@ public class XmppConnectionService extends Service {
     }
 
     public ServiceDiscoveryResult getCachedServiceDiscoveryResult(Pair<String, String> key) {
-        ServiceDiscoveryResult result = discoCache.get(key);
+        final CapsRegistry registry = CapsRegistry.getInstance();
+        ServiceDiscoveryResult result = registry.get(key.first, key.second);
         if (result != null) {
             return result;
         } else {
             result = databaseBackend.findDiscoveryResult(key.first, key.second);
             if (result != null) {
-                discoCache.put(key, result);
+                registry.put(key.first, key.second, result);
             }
             return result;
         }
@@ -4921,6 +5040,7 @@ public class XmppConnectionService extends Service {
                     final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
                     if (presence.getVer().equals(discoveryResult.getVer())) {
                         databaseBackend.insertDiscoveryResult(discoveryResult);
+                        CapsRegistry.getInstance().put(presence.getHash(), presence.getVer(), discoveryResult);
                         injectServiceDiscoveryResult(a.getRoster(), presence.getHash(), presence.getVer(), discoveryResult);
                     } else {
                         Log.d(Config.LOGTAG, a.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + presence.getVer() + " vs " + discoveryResult.getVer());
@@ -5105,6 +5225,14 @@ public class XmppConnectionService extends Service {
 
     public interface OnConversationUpdate {
         void onConversationUpdate();
+
+        /**
+         * Listeners that are able to apply single changes override this; everybody else simply
+         * reloads whatever they show.
+         */
+        default void onConversationUpdate(final ConversationEvent event) {
+            onConversationUpdate();
+        }
     }
 
     public interface OnJingleRtpConnectionUpdate {
@@ -86,6 +86,7 @@ import eu.siacs.conversations.entities.Transferable;
 import eu.siacs.conversations.entities.TransferablePlaceholder;
 import eu.siacs.conversations.http.HttpDownloadConnection;
 import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.services.ConversationEvent;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.QuickConversationsService;
 import eu.siacs.conversations.services.XmppConnectionService;
@@ -114,6 +115,7 @@ import eu.siacs.conversations.utils.MessageUtils;
 import eu.siacs.conversations.utils.NickValidityChecker;
 import eu.siacs.conversations.utils.PermissionUtils;
 import eu.siacs.conversations.utils.QuickLoader;
+import eu.siacs.conversations.utils.ReplacingSerialSingleThreadExecutor;
 import eu.siacs.conversations.utils.StylingHelper;
 import eu.siacs.conversations.utils.TimeFrameUtils;
 import eu.siacs.conversations.utils.UIHelper;
@@ -173,8 +175,17 @@ public class ConversationFragment extends XmppFragment
     public static final String STATE_MEDIA_PREVIEWS =
             ConversationFragment.class.getName() + ".take_photo_uri";
     private static final String STATE_LAST_MESSAGE_UUID = "state_last_message_uuid";
+    // number of rows above and below the visible ones that are rendered ahead of time
+    private static final int PREFETCH_DISTANCE = 10;
+
+    // builds the rows of the message list; only the latest pending snapshot is of interest
+    private static final ReplacingSerialSingleThreadExecutor SNAPSHOT_EXECUTOR =
+            new ReplacingSerialSingleThreadExecutor(ConversationFragment.class.getSimpleName());
 
     private final List<Message> messageList = new ArrayList<>();
+    // incremented whenever the message list changes; outdated snapshots are not applied
+    private int messageListGeneration = 0;
+    private int lastPrefetchPosition = -1;
     private final PendingItem<ActivityResult> postponedActivityResult = new PendingItem<>();
     private final PendingItem<String> pendingConversationsUuid = new PendingItem<>();
     private final PendingItem<ArrayList<Attachment>> pendingMediaPreviews = new PendingItem<>();
@@ -263,6 +274,12 @@ public class ConversationFragment extends XmppFragment
                         int visibleItemCount,
                         int totalItemCount) {
                     toggleScrollDownButton(view);
+                    if (firstVisibleItem != lastPrefetchPosition && messageListAdapter != null) {
+                        lastPrefetchPosition = firstVisibleItem;
+                        messageListAdapter.prefetch(
+                                firstVisibleItem - PREFETCH_DISTANCE,
+                                firstVisibleItem + visibleItemCount + PREFETCH_DISTANCE);
+                    }
                     synchronized (ConversationFragment.this.messageList) {
                         if (firstVisibleItem < 5
                                 && conversation != null
@@ -290,6 +307,7 @@ public class ConversationFragment extends XmppFragment
                                             runOnUiThread(
                                                     () -> {
                                                         synchronized (messageList) {
+                                                            messageListGeneration++;
                                                             final int oldPosition =
                                                                     binding.messagesView
                                                                             .getFirstVisiblePosition();
@@ -1239,6 +1257,14 @@ public class ConversationFragment extends XmppFragment
         return binding.getRoot();
     }
 
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        if (messageListAdapter != null) {
+            messageListAdapter.onTrimMemory(level);
+        }
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
@@ -2521,6 +2547,9 @@ public class ConversationFragment extends XmppFragment
         activity.xmppConnectionService
                 .getNotificationService()
                 .setOpenConversation(this.conversation);
+        activity.xmppConnectionService
+                .getMessageMemoryManager()
+                .onConversationOpened(this.conversation);
         return true;
     }
 
@@ -2809,26 +2838,165 @@ public class ConversationFragment extends XmppFragment
         this.refresh(true);
     }
 
+    /**
+     * Applies the given events. Events for other conversations are ignored and if only the status
+     * or transfer progress of single messages changed just the visible rows showing them are bound
+     * again instead of rebuilding the whole list.
+     */
+    public void refresh(final ConversationEvent.Batch events) {
+        final Conversation conversation = this.conversation;
+        if (this.binding == null || conversation == null || events.isEverythingChanged()) {
+            refresh();
+            return;
+        }
+        if (events.isReloadRequired(conversation)) {
+            // messages of this conversation were added or removed; nothing else changed
+            refreshInBackground(conversation);
+            return;
+        }
+        final Set<String> updated = events.getUpdatedMessages(conversation);
+        if (updated.isEmpty()) {
+            return;
+        }
+        synchronized (this.messageList) {
+            if (mergingChanged(conversation, updated)) {
+                refresh();
+                return;
+            }
+            final ListView listView = this.binding.messagesView;
+            final int first = listView.getFirstVisiblePosition();
+            for (int i = 0; i < listView.getChildCount(); ++i) {
+                final int position = first + i;
+                if (position >= this.messageList.size()) {
+                    break;
+                }
+                if (showsAnyOf(this.messageList.get(position), updated)) {
+                    this.messageListAdapter.bindRow(position, listView.getChildAt(i), listView);
+                }
+            }
+        }
+    }
+
+    // a status change can make a message (or its successor) merge or stop merging with the
+    // previous one which changes the rows and requires a full refresh
+    private boolean mergingChanged(final Conversation conversation, final Set<String> uuids) {
+        for (final String uuid : uuids) {
+            final Message message = conversation.findMessageWithUuid(uuid);
+            if (message == null) {
+                continue;
+            }
+            for (final Message m : Arrays.asList(message, message.next())) {
+                if (m != null && m.wasMergedIntoPrevious() == this.messageList.contains(m)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean showsAnyOf(final Message row, final Set<String> uuids) {
+        Message current = row;
+        while (current != null) {
+            if (uuids.contains(current.getUuid())) {
+                return true;
+            }
+            final Message next = current.next();
+            current = current.mergeable(next) ? next : null;
+        }
+        return false;
+    }
+
     private void refresh(boolean notifyConversationRead) {
+        refresh(notifyConversationRead, true);
+    }
+
+    /**
+     * @param rebindAll whether every visible row has to be bound again. Otherwise, if the rows
+     *     did not change, only rows whose messages changed are bound again.
+     */
+    private void refresh(final boolean notifyConversationRead, final boolean rebindAll) {
         synchronized (this.messageList) {
             if (this.conversation != null) {
-                conversation.populateWithMessages(this.messageList);
-                updateSnackBar(conversation);
-                updateStatusMessages();
-                if (conversation.getReceivedMessagesCountSinceUuid(lastMessageUuid) != 0) {
-                    binding.unreadCountCustomView.setVisibility(View.VISIBLE);
-                    binding.unreadCountCustomView.setUnreadCount(
-                            conversation.getReceivedMessagesCountSinceUuid(lastMessageUuid));
-                }
+                final List<Message> snapshot = new ArrayList<>(this.messageList.size() + 1);
+                conversation.populateWithMessages(snapshot);
+                updateStatusMessages(conversation, snapshot);
+                final boolean sameRows =
+                        !rebindAll && MessageAdapter.sameRows(this.messageList, snapshot);
+                apply(conversation, snapshot, sameRows, rebindAll, notifyConversationRead);
+            }
+        }
+    }
+
+    /**
+     * Refresh for added or removed messages, the common case while chatting. The new rows are
+     * built and compared with the current ones on a background thread; the UI thread only swaps
+     * the list and binds the rows that are new or changed.
+     */
+    private void refreshInBackground(final Conversation conversation) {
+        final List<Message> current;
+        final int generation;
+        synchronized (this.messageList) {
+            current = new ArrayList<>(this.messageList);
+            generation = ++this.messageListGeneration;
+        }
+        SNAPSHOT_EXECUTOR.execute(
+                () -> {
+                    final List<Message> snapshot = new ArrayList<>(current.size() + 1);
+                    conversation.populateWithMessages(snapshot);
+                    try {
+                        updateStatusMessages(conversation, snapshot);
+                    } catch (final IllegalStateException e) {
+                        Log.d(
+                                Config.LOGTAG,
+                                "caught illegal state exception while updating status messages");
+                        return;
+                    }
+                    final boolean sameRows = MessageAdapter.sameRows(current, snapshot);
+                    runOnUiThread(
+                            () -> {
+                                synchronized (this.messageList) {
+                                    if (this.binding == null
+                                            || this.conversation != conversation
+                                            || this.messageListGeneration != generation) {
+                                        // the list changed in the meantime
+                                        return;
+                                    }
+                                    apply(conversation, snapshot, sameRows, false, true);
+                                }
+                            });
+                });
+    }
+
+    private void apply(
+            final Conversation conversation,
+            final List<Message> snapshot,
+            final boolean sameRows,
+            final boolean rebindAll,
+            final boolean notifyConversationRead) {
+        this.messageListGeneration++;
+        updateSnackBar(conversation);
+        if (conversation.getReceivedMessagesCountSinceUuid(lastMessageUuid) != 0) {
+            binding.unreadCountCustomView.setVisibility(View.VISIBLE);
+            binding.unreadCountCustomView.setUnreadCount(
+                    conversation.getReceivedMessagesCountSinceUuid(lastMessageUuid));
+        }
+        if (sameRows) {
+            this.messageListAdapter.rebindChangedRows(this.binding.messagesView);
+        } else {
+            this.messageList.clear();
+            this.messageList.addAll(snapshot);
+            if (rebindAll) {
                 this.messageListAdapter.notifyDataSetChanged();
-                updateChatMsgHint();
-                if (notifyConversationRead && activity != null) {
-                    binding.messagesView.post(this::fireReadEvent);
-                }
-                updateSendButton();
-                updateEditablity();
+            } else {
+                this.messageListAdapter.notifyRowsChanged();
             }
         }
+        updateChatMsgHint();
+        if (notifyConversationRead && activity != null) {
+            binding.messagesView.post(this::fireReadEvent);
+        }
+        updateSendButton();
+        updateEditablity();
     }
 
     protected void messageSent() {
@@ -2931,33 +3099,39 @@ public class ConversationFragment extends XmppFragment
     }
 
     protected void updateStatusMessages() {
-        DateSeparator.addAll(this.messageList);
+        updateStatusMessages(this.conversation, this.messageList);
+    }
+
+    // may run on a background thread; uses the given conversation instead of the current one
+    private void updateStatusMessages(
+            final Conversation conversation, final List<Message> messageList) {
+        DateSeparator.addAll(messageList);
         if (showLoadMoreMessages(conversation)) {
-            this.messageList.add(0, Message.createLoadMoreMessage(conversation));
+            messageList.add(0, Message.createLoadMoreMessage(conversation));
         }
         if (conversation.getMode() == Conversation.MODE_SINGLE) {
             ChatState state = conversation.getIncomingChatState();
             if (state == ChatState.COMPOSING) {
-                this.messageList.add(
+                messageList.add(
                         Message.createStatusMessage(
                                 conversation,
                                 getString(R.string.contact_is_typing, conversation.getName())));
             } else if (state == ChatState.PAUSED) {
-                this.messageList.add(
+                messageList.add(
                         Message.createStatusMessage(
                                 conversation,
                                 getString(
                                         R.string.contact_has_stopped_typing,
                                         conversation.getName())));
             } else {
-                for (int i = this.messageList.size() - 1; i >= 0; --i) {
-                    final Message message = this.messageList.get(i);
+                for (int i = messageList.size() - 1; i >= 0; --i) {
+                    final Message message = messageList.get(i);
                     if (message.getType() != Message.TYPE_STATUS) {
                         if (message.getStatus() == Message.STATUS_RECEIVED) {
                             return;
                         } else {
                             if (message.getStatus() == Message.STATUS_SEND_DISPLAYED) {
-                                this.messageList.add(
+                                messageList.add(
                                         i + 1,
                                         Message.createStatusMessage(
                                                 conversation,
@@ -2982,7 +3156,7 @@ public class ConversationFragment extends XmppFragment
                 users = conversation.getMucOptions().getUsersWithChatState(state, 5);
             }
             if (mucOptions.isPrivateAndNonAnonymous()) {
-                for (int i = this.messageList.size() - 1; i >= 0; --i) {
+                for (int i = messageList.size() - 1; i >= 0; --i) {
                     final Set<ReadByMarker> markersForMessage =
                             messageList.get(i).getReadByMarkers();
                     final List<MucOptions.User> shownMarkers = new ArrayList<>();
@@ -3032,7 +3206,7 @@ public class ConversationFragment extends XmppFragment
                         statusMessage = null;
                     }
                     if (statusMessage != null) {
-                        this.messageList.add(i + 1, statusMessage);
+                        messageList.add(i + 1, statusMessage);
                     }
                     addedMarkers.add(markerForSender);
                     if (ReadByMarker.allUsersRepresented(allUsers, addedMarkers)) {
@@ -3063,7 +3237,7 @@ public class ConversationFragment extends XmppFragment
                                     conversation, getString(id, UIHelper.concatNames(users)));
                     statusMessage.setCounterparts(users);
                 }
-                this.messageList.add(statusMessage);
+                messageList.add(statusMessage);
             }
         }
     }
@@ -74,6 +74,7 @@ import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.services.ConversationEvent;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.ui.interfaces.OnBackendConnected;
 import eu.siacs.conversations.ui.interfaces.OnConversationArchived;
@@ -122,6 +123,7 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
     private ActivityConversationsBinding binding;
     private boolean mActivityPaused = true;
     private final AtomicBoolean mRedirectInProcess = new AtomicBoolean(false);
+    private final ConversationEvent.Batch pendingConversationEvents = new ConversationEvent.Batch();
 
     private static boolean isViewOrShareIntent(Intent i) {
         Log.d(Config.LOGTAG, "action: " + (i == null ? null : i.getAction()));
@@ -137,9 +139,13 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
 
     @Override
     protected void refreshUiReal() {
+        final ConversationEvent.Batch events = pendingConversationEvents.drain();
+        if (events.isEmpty()) {
+            events.add(ConversationEvent.EVERYTHING);
+        }
         invalidateOptionsMenu();
         for (@IdRes int id : FRAGMENT_ID_NOTIFICATION_ORDER) {
-            refreshFragment(id);
+            refreshFragment(id, events);
         }
     }
 
@@ -266,8 +272,14 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
     }
 
     private void refreshFragment(@IdRes int id) {
+        refreshFragment(id, null);
+    }
+
+    private void refreshFragment(@IdRes int id, final ConversationEvent.Batch events) {
         final Fragment fragment = getFragmentManager().findFragmentById(id);
-        if (fragment instanceof XmppFragment) {
+        if (fragment instanceof ConversationFragment && events != null) {
+            ((ConversationFragment) fragment).refresh(events);
+        } else if (fragment instanceof XmppFragment) {
             ((XmppFragment) fragment).refresh();
         }
     }
@@ -291,6 +303,7 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
             if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 switch (requestCode) {
                     case REQUEST_OPEN_MESSAGE:
+                        pendingConversationEvents.add(ConversationEvent.EVERYTHING);
                         refreshUiReal();
                         ConversationFragment.openPendingMessage(this);
                         break;
@@ -712,12 +725,19 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
 
     @Override
     public void onAccountUpdate() {
-        this.refreshUi();
+        this.refreshUiFully();
     }
 
     @Override
     public void onConversationUpdate() {
-        if (performRedirectIfNecessary(false)) {
+        onConversationUpdate(ConversationEvent.EVERYTHING);
+    }
+
+    @Override
+    public void onConversationUpdate(final ConversationEvent event) {
+        pendingConversationEvents.add(event);
+        // single message updates never archive a conversation; no need to check for redirects
+        if (event.getType() == ConversationEvent.Type.CHANGED && performRedirectIfNecessary(false)) {
             return;
         }
         this.refreshUi();
@@ -725,11 +745,16 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
 
     @Override
     public void onRosterUpdate() {
-        this.refreshUi();
+        this.refreshUiFully();
     }
 
     @Override
     public void OnUpdateBlocklist(OnUpdateBlocklist.Status status) {
+        this.refreshUiFully();
+    }
+
+    private void refreshUiFully() {
+        pendingConversationEvents.add(ConversationEvent.EVERYTHING);
         this.refreshUi();
     }
 
@@ -68,6 +68,7 @@ public class SettingsActivity extends XmppActivity implements OnSharedPreference
     public static final String PREVENT_SCREENSHOTS = "prevent_screenshots";
 
     public static final int REQUEST_CREATE_BACKUP = 0xbf8701;
+    public static final int REQUEST_CREATE_INCREMENTAL_BACKUP = 0xbf8702;
 
     private SettingsFragment mSettingsFragment;
 
@@ -325,7 +326,18 @@ public class SettingsActivity extends XmppActivity implements OnSharedPreference
             createBackupPreference.setOnPreferenceClickListener(
                     preference -> {
                         if (hasStoragePermission(REQUEST_CREATE_BACKUP)) {
-                            createBackup();
+                            createBackup(false);
+                        }
+                        return true;
+                    });
+        }
+        final Preference createIncrementalBackupPreference =
+                mSettingsFragment.findPreference("create_incremental_backup");
+        if (createIncrementalBackupPreference != null) {
+            createIncrementalBackupPreference.setOnPreferenceClickListener(
+                    preference -> {
+                        if (hasStoragePermission(REQUEST_CREATE_INCREMENTAL_BACKUP)) {
+                            createBackup(true);
                         }
                         return true;
                     });
@@ -570,7 +582,9 @@ public class SettingsActivity extends XmppActivity implements OnSharedPreference
         if (grantResults.length > 0)
             if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 if (requestCode == REQUEST_CREATE_BACKUP) {
-                    createBackup();
+                    createBackup(false);
+                } else if (requestCode == REQUEST_CREATE_INCREMENTAL_BACKUP) {
+                    createBackup(true);
                 }
             } else {
                 Toast.makeText(
@@ -583,8 +597,10 @@ public class SettingsActivity extends XmppActivity implements OnSharedPreference
             }
     }
 
-    private void createBackup() {
-        ContextCompat.startForegroundService(this, new Intent(this, ExportBackupService.class));
+    private void createBackup(final boolean incremental) {
+        final Intent intent = new Intent(this, ExportBackupService.class);
+        intent.putExtra(ExportBackupService.EXTRA_INCREMENTAL, incremental);
+        ContextCompat.startForegroundService(this, intent);
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setMessage(R.string.backup_started_message);
         builder.setPositiveButton(R.string.ok, null);
@@ -2,6 +2,7 @@ package eu.siacs.conversations.ui.adapter;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -23,6 +24,7 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -30,9 +32,14 @@ import android.widget.Toast;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.regex.Matcher;
@@ -81,6 +88,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private static final int STATUS = 2;
     private static final int DATE_SEPARATOR = 3;
     private static final int RTP_SESSION = 4;
+    private static final HashFunction ROW_IDS = Hashing.sipHash24();
     private final XmppActivity activity;
     private final AudioPlayer audioPlayer;
     private List<String> highlightedTerm = null;
@@ -88,7 +96,15 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private OnContactPictureClicked mOnContactPictureClickedListener;
     private OnContactPictureLongClicked mOnContactPictureLongClickedListener;
     private boolean mUseGreenBackground = false;
+    // everything besides the text color that changes how rendered bodies look; see updatePreferences()
+    private int appearance = 0;
     private final boolean mForceNames;
+    // incremented by every full rebind; rows bound before have to be bound again
+    private int generation = 0;
+    private final RenderedBodyCache renderedBodies = new RenderedBodyCache(this::renderBody);
+    // text colors of bodies on dark and light bubbles; known once a row of each kind was bound
+    private int textColorOnDark = 0;
+    private int textColorOnLight = 0;
 
     public MessageAdapter(final XmppActivity activity, final List<Message> messages, final boolean forceNames) {
         super(activity, 0, messages);
@@ -327,7 +343,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setTextIsSelectable(false);
     }
 
-    private void displayEmojiMessage(final ViewHolder viewHolder, final String body, final boolean darkBackground) {
+    private void displayEmojiMessage(final ViewHolder viewHolder, final String body, final boolean singleEmoji, final boolean darkBackground) {
         viewHolder.download_button.setVisibility(View.GONE);
         viewHolder.audioPlayer.setVisibility(View.GONE);
         viewHolder.image.setVisibility(View.GONE);
@@ -338,7 +354,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             viewHolder.messageBody.setTextAppearance(getContext(), R.style.TextAppearance_Conversations_Body1_Emoji);
         }
         Spannable span = new SpannableString(body);
-        float size = Emoticons.isEmoji(body) ? 3.0f : 2.0f;
+        float size = singleEmoji ? 3.0f : 2.0f;
         span.setSpan(new RelativeSizeSpan(size), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         viewHolder.messageBody.setText(span);
     }
@@ -430,81 +446,191 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setTypeface(null, Typeface.NORMAL);
 
         if (message.getBody() != null) {
-            final String nick = UIHelper.getMessageDisplayName(message);
-            SpannableStringBuilder body = message.getMergedBody();
-            boolean hasMeCommand = message.hasMeCommand();
+            final int textColor = viewHolder.messageBody.getCurrentTextColor();
+            if (darkBackground) {
+                this.textColorOnDark = textColor;
+            } else {
+                this.textColorOnLight = textColor;
+            }
+            final RenderedBodyCache.Key key = createBodyKey(message, darkBackground, textColor);
+            viewHolder.messageBody.setAutoLinkMask(0);
+            viewHolder.messageBody.setText(renderedBodies.get(message, key));
+            viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
+        } else {
+            viewHolder.messageBody.setText("");
+            viewHolder.messageBody.setTextIsSelectable(false);
+        }
+    }
+
+    private RenderedBodyCache.Key createBodyKey(final Message message, final boolean darkBackground, final int textColor) {
+        // identifies the bodies without loading them: revisions of the message and of every
+        // message merged into it
+        int bodyRevisions = message.getBodyRevision();
+        for (Message current = message; current.mergeable(current.next()); ) {
+            current = current.next();
+            bodyRevisions = 31 * (31 * bodyRevisions + current.getUuid().hashCode()) + current.getBodyRevision();
+        }
+        final String nick = message.hasMeCommand() ? UIHelper.getMessageDisplayName(message) : null;
+        final String ownNick;
+        if (message.getConversation().getMode() == Conversation.MODE_MULTI
+                && message.getStatus() == Message.STATUS_RECEIVED
+                && message.getConversation() instanceof Conversation) {
+            ownNick = ((Conversation) message.getConversation()).getMucOptions().getActualNick();
+        } else {
+            ownNick = null;
+        }
+        final String privateMarker;
+        if (!message.isPrivateMessage()) {
+            privateMarker = null;
+        } else if (message.getStatus() <= Message.STATUS_RECEIVED) {
+            privateMarker = activity.getString(R.string.private_message);
+        } else {
+            final Jid cp = message.getCounterpart();
+            privateMarker = activity.getString(R.string.private_message_to, Strings.nullToEmpty(cp == null ? null : cp.getResource()));
+        }
+        return new RenderedBodyCache.Key(message.getUuid(), bodyRevisions, darkBackground, textColor, highlightedTerm, nick, ownNick, privateMarker);
+    }
+
+    /**
+     * Builds the styled body of a text message. Runs on the UI thread for rows that are bound
+     * before they were rendered ahead of time and on the prefetch pool otherwise; everything
+     * that goes into the result has to be part of the key.
+     */
+    private CharSequence renderBody(final Message message, final RenderedBodyCache.Key key) {
+        final boolean darkBackground = key.darkBackground;
+        final String nick = key.nick;
+        SpannableStringBuilder body = message.getMergedBody();
+        final boolean hasMeCommand = nick != null;
+        if (hasMeCommand) {
+            body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
+        }
+        if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
+            body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
+            body.append("\u2026");
+        }
+        Message.MergeSeparator[] mergeSeparators = body.getSpans(0, body.length(), Message.MergeSeparator.class);
+        for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
+            int start = body.getSpanStart(mergeSeparator);
+            int end = body.getSpanEnd(mergeSeparator);
+            body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        boolean startsWithQuote = handleTextQuotes(body, darkBackground);
+        if (key.privateMarker == null) {
             if (hasMeCommand) {
-                body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
-            }
-            if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
-                body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
-                body.append("\u2026");
-            }
-            Message.MergeSeparator[] mergeSeparators = body.getSpans(0, body.length(), Message.MergeSeparator.class);
-            for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
-                int start = body.getSpanStart(mergeSeparator);
-                int end = body.getSpanEnd(mergeSeparator);
-                body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            boolean startsWithQuote = handleTextQuotes(body, darkBackground);
-            if (!message.isPrivateMessage()) {
-                if (hasMeCommand) {
-                    body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), 0, nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), 0, nick.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        } else {
+            final String privateMarker = key.privateMarker;
+            body.insert(0, privateMarker);
+            int privateMarkerIndex = privateMarker.length();
+            if (startsWithQuote) {
+                body.insert(privateMarkerIndex, "\n\n");
+                body.setSpan(new DividerSpan(false), privateMarkerIndex, privateMarkerIndex + 2,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             } else {
-                String privateMarker;
-                if (message.getStatus() <= Message.STATUS_RECEIVED) {
-                    privateMarker = activity.getString(R.string.private_message);
-                } else {
-                    Jid cp = message.getCounterpart();
-                    privateMarker = activity.getString(R.string.private_message_to, Strings.nullToEmpty(cp == null ? null : cp.getResource()));
-                }
-                body.insert(0, privateMarker);
-                int privateMarkerIndex = privateMarker.length();
-                if (startsWithQuote) {
-                    body.insert(privateMarkerIndex, "\n\n");
-                    body.setSpan(new DividerSpan(false), privateMarkerIndex, privateMarkerIndex + 2,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                } else {
-                    body.insert(privateMarkerIndex, " ");
-                }
-                body.setSpan(new ForegroundColorSpan(getMessageTextColor(darkBackground, false)), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                body.setSpan(new StyleSpan(Typeface.BOLD), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                if (hasMeCommand) {
-                    body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), privateMarkerIndex + 1,
-                            privateMarkerIndex + 1 + nick.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                body.insert(privateMarkerIndex, " ");
             }
-            if (message.getConversation().getMode() == Conversation.MODE_MULTI && message.getStatus() == Message.STATUS_RECEIVED) {
-                if (message.getConversation() instanceof Conversation) {
-                    final Conversation conversation = (Conversation) message.getConversation();
-                    Pattern pattern = NotificationService.generateNickHighlightPattern(conversation.getMucOptions().getActualNick());
-                    Matcher matcher = pattern.matcher(body);
-                    while (matcher.find()) {
-                        body.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                }
+            body.setSpan(new ForegroundColorSpan(getMessageTextColor(darkBackground, false)), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            body.setSpan(new StyleSpan(Typeface.BOLD), 0, privateMarkerIndex, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (hasMeCommand) {
+                body.setSpan(new StyleSpan(Typeface.BOLD_ITALIC), privateMarkerIndex + 1,
+                        privateMarkerIndex + 1 + nick.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
-            Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
+        }
+        if (key.ownNick != null) {
+            Pattern pattern = NotificationService.generateNickHighlightPattern(key.ownNick);
+            Matcher matcher = pattern.matcher(body);
             while (matcher.find()) {
-                if (matcher.start() < matcher.end()) {
-                    body.setSpan(new RelativeSizeSpan(1.2f), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                body.setSpan(new StyleSpan(Typeface.BOLD), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
+        }
+        final int[] emojis = Emoticons.findEmojis(body);
+        for (int i = 0; i < emojis.length; i += 2) {
+            body.setSpan(new RelativeSizeSpan(1.2f), emojis[i], emojis[i + 1], Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        StylingHelper.format(body, key.textColor);
+        if (key.highlightedTerm != null) {
+            StylingHelper.highlight(activity, body, key.highlightedTerm, StylingHelper.isDarkText(key.textColor));
+        }
+        MyLinkify.addLinks(body, true);
+        return body;
+    }
 
-            StylingHelper.format(body, viewHolder.messageBody.getCurrentTextColor());
-            if (highlightedTerm != null) {
-                StylingHelper.highlight(activity, body, highlightedTerm, StylingHelper.isDarkText(viewHolder.messageBody));
+    /**
+     * Renders the text messages in the given range of positions on a background pool so that
+     * they are ready once they scroll into view.
+     */
+    public void prefetch(final int first, final int last) {
+        final int from = Math.max(0, first);
+        final int to = Math.min(getCount() - 1, last);
+        final List<Message> withoutBody = new ArrayList<>();
+        for (int position = from; position <= to; ++position) {
+            final Message message = getItem(position);
+            if (message == null) {
+                continue;
             }
-            MyLinkify.addLinks(body, true);
-            viewHolder.messageBody.setAutoLinkMask(0);
-            viewHolder.messageBody.setText(body);
-            viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
-        } else {
-            viewHolder.messageBody.setText("");
-            viewHolder.messageBody.setTextIsSelectable(false);
+            if (message.isBodyLoaded()) {
+                prefetch(message);
+            } else {
+                withoutBody.add(message);
+            }
+        }
+        // large bodies are not kept in memory; load them in one go instead of one by one on the
+        // UI thread once the rows get bound
+        if (!withoutBody.isEmpty() && activity.xmppConnectionService != null) {
+            activity.xmppConnectionService.loadDeferredBodies(
+                    withoutBody,
+                    () ->
+                            activity.runOnUiThread(
+                                    () -> {
+                                        for (final Message message : withoutBody) {
+                                            prefetch(message);
+                                        }
+                                    }));
+        }
+    }
+
+    private void prefetch(final Message message) {
+        if (!isRenderedAsText(message)) {
+            return;
         }
+        final boolean darkBackground = isDarkBackground(message, getItemViewType(message));
+        final int textColor = darkBackground ? textColorOnDark : textColorOnLight;
+        if (textColor == 0) {
+            // nothing with this background has been bound yet
+            return;
+        }
+        renderedBodies.prefetch(message, createBodyKey(message, darkBackground, textColor));
+    }
+
+    // mirrors the checks in getView() that end up in displayTextMessage()
+    private static boolean isRenderedAsText(final Message message) {
+        final int type = message.getType();
+        final int encryption = message.getEncryption();
+        return (type == Message.TYPE_TEXT || type == Message.TYPE_PRIVATE)
+                && message.getBody() != null
+                && message.getTransferable() == null
+                && !message.isDeleted()
+                && !message.isFileOrImage()
+                && !MessageUtils.unInitiatedButKnownSize(message)
+                && encryption != Message.ENCRYPTION_PGP
+                && encryption != Message.ENCRYPTION_DECRYPTION_FAILED
+                && encryption != Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE
+                && encryption != Message.ENCRYPTION_AXOLOTL_FAILED
+                && !message.isGeoUri()
+                && !message.bodyIsOnlyEmojis()
+                && !message.treatAsDownloadable();
+    }
+
+    private boolean isDarkBackground(final Message message, final int type) {
+        final boolean omemoEncryption = message.getEncryption() == Message.ENCRYPTION_AXOLOTL;
+        return isDarkBackground(type, message.isValidInSession() && (!omemoEncryption || message.isTrusted()));
+    }
+
+    private boolean isDarkBackground(final int type, final boolean isInValidSession) {
+        return type == RECEIVED && (!isInValidSession || mUseGreenBackground) || activity.isDarkTheme();
     }
 
     private void displayDownloadableMessage(ViewHolder viewHolder, final Message message, String text, final boolean darkBackground) {
@@ -611,7 +737,150 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     }
 
     @Override
-    public View getView(int position, View view, ViewGroup parent) {
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        final Message message = getItem(position);
+        final String key;
+        if (message.getType() == Message.TYPE_STATUS) {
+            // status rows are recreated on every refresh and get a fresh uuid each time
+            if (DATE_SEPARATOR_BODY.equals(message.getBody())) {
+                key = "date:" + message.getTimeSent();
+            } else {
+                // several status rows can have the same text (e.g. read markers)
+                key = "status:" + position + ':' + message.getBody();
+            }
+        } else {
+            key = message.getUuid();
+        }
+        return ROW_IDS.hashUnencodedChars(key).asLong();
+    }
+
+    /**
+     * @return true if both lists result in the same rows; status rows are compared by content
+     *     since they are recreated on every refresh
+     */
+    public static boolean sameRows(final List<Message> a, final List<Message> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); ++i) {
+            final Message x = a.get(i);
+            final Message y = b.get(i);
+            if (x == y) {
+                continue;
+            }
+            if (x.getType() != Message.TYPE_STATUS
+                    || y.getType() != Message.TYPE_STATUS
+                    || (x.getTimeSent() != y.getTimeSent() && DATE_SEPARATOR_BODY.equals(x.getBody()))
+                    || !Objects.equal(x.getBody(), y.getBody())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Binds the visible rows again whose messages changed since they were bound last. Must only be
+     * used if the rows themselves did not change (see {@link #sameRows(List, List)}).
+     */
+    public void rebindChangedRows(final ListView listView) {
+        final int first = listView.getFirstVisiblePosition();
+        for (int i = 0; i < listView.getChildCount(); ++i) {
+            final int position = first + i;
+            if (position >= getCount()) {
+                break;
+            }
+            final View child = listView.getChildAt(i);
+            final Object tag = child.getTag();
+            if (!(tag instanceof ViewHolder)
+                    || ((ViewHolder) tag).awaitingBody
+                    || ((ViewHolder) tag).revision != revisionOf(getItem(position))) {
+                bindRow(position, child, listView);
+            }
+        }
+    }
+
+    /**
+     * Full rebind of every row, e.g. because avatars, names or settings changed. Rows are bound
+     * again even if their messages did not change.
+     */
+    @Override
+    public void notifyDataSetChanged() {
+        this.generation++;
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * Like {@link #notifyDataSetChanged()} but only for changes to the messages themselves (rows
+     * were added, removed or their messages changed). The list view hands every row its previous
+     * view thanks to the stable ids; rows whose messages did not change are returned as they are
+     * instead of being bound again, so appending a message only binds the new row.
+     */
+    public void notifyRowsChanged() {
+        super.notifyDataSetChanged();
+    }
+
+    private static int revisionOf(final Message message) {
+        int revision = 1;
+        Message current = message;
+        while (current != null) {
+            final Transferable transferable = current.getTransferable();
+            revision =
+                    31 * revision
+                            + Objects.hashCode(
+                                    current.getUuid(),
+                                    current.getStatus(),
+                                    current.getEncryption(),
+                                    current.getBodyRevision(),
+                                    current.edited(),
+                                    current.isDeleted(),
+                                    current.getErrorMessage(),
+                                    current.getReadByMarkers().size(),
+                                    transferable == null ? null : transferable.getStatus(),
+                                    transferable == null ? null : transferable.getProgress());
+            if (current.getType() == Message.TYPE_STATUS
+                    || !(current.getConversation() instanceof Conversation)) {
+                break;
+            }
+            final Message next = current.next();
+            current = current.mergeable(next) ? next : null;
+        }
+        return revision;
+    }
+
+    @Override
+    public View getView(final int position, final View view, final ViewGroup parent) {
+        final Object tag = view == null ? null : view.getTag();
+        if (tag instanceof ViewHolder) {
+            final ViewHolder viewHolder = (ViewHolder) tag;
+            if (viewHolder.generation == generation
+                    && !viewHolder.awaitingBody
+                    && viewHolder.itemId == getItemId(position)
+                    && viewHolder.revision == revisionOf(getItem(position))) {
+                return view;
+            }
+        }
+        return bindRow(position, view, parent);
+    }
+
+    /** Binds the row unconditionally, even if it shows the same revision of the same messages. */
+    public View bindRow(final int position, final View view, final ViewGroup parent) {
+        final View row = bindView(position, view, parent);
+        final Object tag = row.getTag();
+        if (tag instanceof ViewHolder) {
+            final ViewHolder viewHolder = (ViewHolder) tag;
+            viewHolder.revision = revisionOf(getItem(position));
+            viewHolder.itemId = getItemId(position);
+            viewHolder.generation = generation;
+        }
+        return row;
+    }
+
+    private View bindView(int position, View view, ViewGroup parent) {
         final Message message = getItem(position);
         final boolean omemoEncryption = message.getEncryption() == Message.ENCRYPTION_AXOLOTL;
         final boolean isInValidSession = message.isValidInSession() && (!omemoEncryption || message.isTrusted());
@@ -678,7 +947,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             }
         }
 
-        boolean darkBackground = type == RECEIVED && (!isInValidSession || mUseGreenBackground) || activity.isDarkTheme();
+        boolean darkBackground = isDarkBackground(type, isInValidSession);
 
         if (type == DATE_SEPARATOR) {
             if (UIHelper.today(message.getTimeSent())) {
@@ -766,8 +1035,11 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         });
 
         final Transferable transferable = message.getTransferable();
-        final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-        if (unInitiatedButKnownSize || message.isDeleted() || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING)) {
+        viewHolder.awaitingBody = awaitingBody(message, parent);
+        final boolean unInitiatedButKnownSize = !viewHolder.awaitingBody && MessageUtils.unInitiatedButKnownSize(message);
+        if (viewHolder.awaitingBody) {
+            displayInfoMessage(viewHolder, "", darkBackground);
+        } else if (unInitiatedButKnownSize || message.isDeleted() || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING)) {
             if (unInitiatedButKnownSize || transferable != null && transferable.getStatus() == Transferable.STATUS_OFFER) {
                 displayDownloadableMessage(viewHolder, message, activity.getString(R.string.download_x_file, UIHelper.getFileDescriptionString(activity, message)), darkBackground);
             } else if (transferable != null && transferable.getStatus() == Transferable.STATUS_OFFER_CHECK_FILESIZE) {
@@ -805,7 +1077,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             if (message.isGeoUri()) {
                 displayLocationMessage(viewHolder, message, darkBackground);
             } else if (message.bodyIsOnlyEmojis() && message.getType() != Message.TYPE_PRIVATE) {
-                displayEmojiMessage(viewHolder, message.getBody().trim(), darkBackground);
+                displayEmojiMessage(viewHolder, message.getBody().trim(), message.bodyIsSingleEmoji(), darkBackground);
             } else if (message.treatAsDownloadable()) {
                 try {
                     final URI uri = new URI(message.getBody());
@@ -853,6 +1125,26 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         return view;
     }
 
+    /**
+     * Large bodies are never loaded on the UI thread. If the body is not in memory (any more) it
+     * is loaded on the database reader thread instead and the row is bound again afterwards.
+     */
+    private boolean awaitingBody(final Message message, final ViewGroup parent) {
+        if (message.isBodyLoaded()) {
+            return false;
+        }
+        if (activity.xmppConnectionService != null) {
+            activity.xmppConnectionService.loadDeferredBodies(
+                    Collections.singletonList(message),
+                    () -> activity.runOnUiThread(() -> {
+                        if (parent instanceof ListView) {
+                            rebindChangedRows((ListView) parent);
+                        }
+                    }));
+        }
+        return true;
+    }
+
     private void promptOpenKeychainInstall(View view) {
         activity.showInstallPgpDialog();
     }
@@ -896,6 +1188,22 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     public void updatePreferences() {
         SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(activity);
         this.mUseGreenBackground = p.getBoolean("use_green_background", activity.getResources().getBoolean(R.bool.use_green_background));
+        final int appearance =
+                Objects.hashCode(
+                        mUseGreenBackground,
+                        activity.isDarkTheme(),
+                        p.getString("font_size", activity.getString(R.string.default_font_size)));
+        if (appearance != this.appearance) {
+            this.appearance = appearance;
+            renderedBodies.clear();
+        }
+    }
+
+    /** Rendered bodies can always be rebuilt; they are the first thing to go when memory is low. */
+    public void onTrimMemory(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            renderedBodies.clear();
+        }
     }
 
 
@@ -926,5 +1234,11 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         protected ImageView contact_picture;
         protected TextView status_message;
         protected TextView encryption;
+        // what the row was last bound to: revision of the message(s), row id and bind generation
+        private int revision;
+        private long itemId;
+        private int generation;
+        // bound without the body which is still being loaded
+        private boolean awaitingBody;
     }
 }
@@ -0,0 +1,155 @@
+package eu.siacs.conversations.ui.adapter;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.base.Objects;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Message;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fully styled message bodies (quotes, text styling, emoji sizes, nick and search highlights and
+ * links) keyed by everything that goes into them. Rows that scroll back into view reuse the
+ * cached result and rows just outside of the visible area are rendered ahead of time on a small
+ * background pool, so binding a text row mostly boils down to {@code TextView.setText()}.
+ */
+final class RenderedBodyCache {
+
+    // roughly the number of characters; each one comes with a handful of spans at most
+    private static final int MAX_SIZE = 256 * 1024;
+
+    // prefetching is best effort; when scrolling fast the oldest (farthest away) requests are
+    // dropped
+    private static final ThreadPoolExecutor EXECUTOR =
+            new ThreadPoolExecutor(
+                    2,
+                    2,
+                    30,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(64),
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Renderer renderer;
+    private final LruCache<Key, CharSequence> cache =
+            new LruCache<Key, CharSequence>(MAX_SIZE) {
+                @Override
+                protected int sizeOf(final Key key, final CharSequence value) {
+                    return Math.max(1, value.length());
+                }
+            };
+
+    RenderedBodyCache(final Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    CharSequence get(final Message message, final Key key) {
+        final CharSequence cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final CharSequence rendered = renderer.render(message, key);
+        cache.put(key, rendered);
+        return rendered;
+    }
+
+    void prefetch(final Message message, final Key key) {
+        if (cache.get(key) != null) {
+            return;
+        }
+        EXECUTOR.execute(
+                () -> {
+                    if (cache.get(key) != null) {
+                        return;
+                    }
+                    try {
+                        cache.put(key, renderer.render(message, key));
+                    } catch (final RuntimeException e) {
+                        // will be rendered (and fail loudly) on the UI thread when it gets bound
+                        Log.d(Config.LOGTAG, "unable to prerender message " + key.uuid, e);
+                    }
+                });
+    }
+
+    void clear() {
+        cache.evictAll();
+    }
+
+    interface Renderer {
+        CharSequence render(Message message, Key key);
+    }
+
+    static final class Key {
+        final String uuid;
+        // combined body revisions of the message and the messages merged into it
+        final int bodyRevisions;
+        final boolean darkBackground;
+        final int textColor;
+        final List<String> highlightedTerm;
+        // the display name replacing /me and our own nick highlighted in group chats
+        final String nick;
+        final String ownNick;
+        // prefix of private messages in group chats
+        final String privateMarker;
+
+        Key(
+                final String uuid,
+                final int bodyRevisions,
+                final boolean darkBackground,
+                final int textColor,
+                final List<String> highlightedTerm,
+                final String nick,
+                final String ownNick,
+                final String privateMarker) {
+            this.uuid = uuid;
+            this.bodyRevisions = bodyRevisions;
+            this.darkBackground = darkBackground;
+            this.textColor = textColor;
+            this.highlightedTerm = highlightedTerm;
+            this.nick = nick;
+            this.ownNick = ownNick;
+            this.privateMarker = privateMarker;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return bodyRevisions == key.bodyRevisions
+                    && darkBackground == key.darkBackground
+                    && textColor == key.textColor
+                    && uuid.equals(key.uuid)
+                    && Objects.equal(highlightedTerm, key.highlightedTerm)
+                    && Objects.equal(nick, key.nick)
+                    && Objects.equal(ownNick, key.ownNick)
+                    && Objects.equal(privateMarker, key.privateMarker);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(
+                    uuid,
+                    bodyRevisions,
+                    darkBackground,
+                    textColor,
+                    highlightedTerm,
+                    nick,
+                    ownNick,
+                    privateMarker);
+        }
+    }
+}
@@ -5,66 +5,124 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.widget.ImageView;
 
 import androidx.annotation.DimenRes;
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.RejectedExecutionException;
-
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.services.AvatarService;
 import eu.siacs.conversations.ui.XmppActivity;
 
-public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void, Bitmap> {
-    private final WeakReference<ImageView> imageViewReference;
-    private AvatarService.Avatarable avatarable = null;
-    private @DimenRes
-    final int size;
+/**
+ * Renders avatars that are not in the bitmap cache yet on a small shared pool. All image views
+ * waiting for the same (avatarable, size) share one render, work is dropped once no view waits
+ * for it anymore and the most recently requested avatars (the rows that are on screen right now)
+ * are rendered first.
+ */
+public class AvatarWorkerTask implements Runnable {
+
+    private static final ThreadPoolExecutor EXECUTOR =
+            new ThreadPoolExecutor(
+                    3, 3, 30, TimeUnit.SECONDS, new LifoBlockingDeque<>());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    // only accessed on the main thread
+    private static final Map<Request, AvatarWorkerTask> IN_FLIGHT = new HashMap<>();
 
-    public AvatarWorkerTask(ImageView imageView, @DimenRes int size) {
-        imageViewReference = new WeakReference<>(imageView);
-        this.size = size;
+    private final AvatarService avatarService;
+    private final Request request;
+    // only accessed on the main thread
+    private final List<WeakReference<ImageView>> targets = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    private AvatarWorkerTask(final AvatarService avatarService, final Request request) {
+        this.avatarService = avatarService;
+        this.request = request;
     }
 
     @Override
-    protected Bitmap doInBackground(AvatarService.Avatarable... params) {
-        this.avatarable = params[0];
-        final XmppActivity activity = XmppActivity.find(imageViewReference);
-        if (activity == null) {
-            return null;
+    public void run() {
+        if (cancelled) {
+            return;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = avatarService.get(request.avatarable, request.size, false);
+        } catch (final RuntimeException e) {
+            Log.d(Config.LOGTAG, "unable to render avatar for " + request.avatarable, e);
+            bitmap = null;
         }
-        return activity.avatarService().get(avatarable, (int) activity.getResources().getDimension(size), isCancelled());
+        final Bitmap result = bitmap;
+        MAIN_HANDLER.post(() -> deliver(result));
     }
 
-    @Override
-    protected void onPostExecute(Bitmap bitmap) {
-        if (bitmap != null && !isCancelled()) {
-            final ImageView imageView = imageViewReference.get();
-            if (imageView != null) {
+    private void deliver(final Bitmap bitmap) {
+        if (IN_FLIGHT.get(request) == this) {
+            IN_FLIGHT.remove(request);
+        }
+        if (bitmap == null) {
+            return;
+        }
+        for (final WeakReference<ImageView> reference : targets) {
+            final ImageView imageView = reference.get();
+            if (imageView != null && getBitmapWorkerTask(imageView) == this) {
                 imageView.setImageBitmap(bitmap);
                 imageView.setBackgroundColor(0x00000000);
             }
         }
+        targets.clear();
     }
 
-    public static boolean cancelPotentialWork(AvatarService.Avatarable avatarable, ImageView imageView) {
-        final AvatarWorkerTask workerTask = getBitmapWorkerTask(imageView);
+    private void attach(final ImageView imageView) {
+        targets.add(new WeakReference<>(imageView));
+    }
 
-        if (workerTask != null) {
-            final AvatarService.Avatarable old= workerTask.avatarable;
-            if (old == null || avatarable != old) {
-                workerTask.cancel(true);
-            } else {
-                return false;
+    private void detach(final ImageView imageView) {
+        final Iterator<WeakReference<ImageView>> iterator = targets.iterator();
+        while (iterator.hasNext()) {
+            final ImageView target = iterator.next().get();
+            if (target == null || target == imageView) {
+                iterator.remove();
+            }
+        }
+        if (targets.isEmpty()) {
+            cancelled = true;
+            EXECUTOR.remove(this);
+            if (IN_FLIGHT.get(request) == this) {
+                IN_FLIGHT.remove(request);
             }
         }
-        return true;
     }
 
-    public static AvatarWorkerTask getBitmapWorkerTask(ImageView imageView) {
+    private static void cancelPotentialWork(final ImageView imageView) {
+        final AvatarWorkerTask workerTask = getBitmapWorkerTask(imageView);
+        if (workerTask != null) {
+            workerTask.detach(imageView);
+        }
+    }
+
+    private static AvatarWorkerTask getBitmapWorkerTask(ImageView imageView) {
         if (imageView != null) {
             final Drawable drawable = imageView.getDrawable();
             if (drawable instanceof AsyncDrawable) {
@@ -75,30 +133,38 @@ public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void,
         return null;
     }
 
-    public static void loadAvatar(final AvatarService.Avatarable avatarable, final ImageView imageView, final @DimenRes int size) {
-        if (cancelPotentialWork(avatarable, imageView)) {
-            final XmppActivity activity = XmppActivity.find(imageView);
-            if (activity == null) {
-                return;
-            }
-            final Bitmap bm = activity.avatarService().get(avatarable, (int) activity.getResources().getDimension(size), true);
-            setContentDescription(avatarable, imageView);
-            if (bm != null) {
-                cancelPotentialWork(avatarable, imageView);
-                imageView.setImageBitmap(bm);
-                imageView.setBackgroundColor(0x00000000);
-            } else {
-                imageView.setBackgroundColor(avatarable.getAvatarBackgroundColor());
-                imageView.setImageDrawable(null);
-                final AvatarWorkerTask task = new AvatarWorkerTask(imageView, size);
-                final AsyncDrawable asyncDrawable = new AsyncDrawable(activity.getResources(), null, task);
-                imageView.setImageDrawable(asyncDrawable);
-                try {
-                    task.execute(avatarable);
-                } catch (final RejectedExecutionException ignored) {
-                }
-            }
+    public static void loadAvatar(
+            final AvatarService.Avatarable avatarable,
+            final ImageView imageView,
+            final @DimenRes int size) {
+        final XmppActivity activity = XmppActivity.find(imageView);
+        if (activity == null) {
+            return;
+        }
+        final AvatarService avatarService = activity.avatarService();
+        final Request request =
+                new Request(avatarable, (int) activity.getResources().getDimension(size));
+        final AvatarWorkerTask pending = getBitmapWorkerTask(imageView);
+        if (pending != null && pending.request.equals(request)) {
+            return;
+        }
+        setContentDescription(avatarable, imageView);
+        final Bitmap bm = avatarService.get(avatarable, request.size, true);
+        cancelPotentialWork(imageView);
+        if (bm != null) {
+            imageView.setImageBitmap(bm);
+            imageView.setBackgroundColor(0x00000000);
+            return;
         }
+        imageView.setBackgroundColor(avatarable.getAvatarBackgroundColor());
+        AvatarWorkerTask task = IN_FLIGHT.get(request);
+        if (task == null) {
+            task = new AvatarWorkerTask(avatarService, request);
+            IN_FLIGHT.put(request, task);
+            EXECUTOR.execute(task);
+        }
+        task.attach(imageView);
+        imageView.setImageDrawable(new AsyncDrawable(activity.getResources(), null, task));
     }
 
     private static void setContentDescription(final AvatarService.Avatarable avatarable, final ImageView imageView) {
@@ -110,6 +176,43 @@ public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void,
         }
     }
 
+    private static final class Request {
+        private final AvatarService.Avatarable avatarable;
+        private final int size;
+
+        private Request(final AvatarService.Avatarable avatarable, final int size) {
+            this.avatarable = avatarable;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Request)) {
+                return false;
+            }
+            final Request other = (Request) o;
+            return size == other.size && avatarable.equals(other.avatarable);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(avatarable, size);
+        }
+    }
+
+    // the pool takes the most recently queued render first; those are the rows that just became
+    // visible while everything queued earlier may already have scrolled out of view
+    private static final class LifoBlockingDeque<E> extends LinkedBlockingDeque<E> {
+
+        @Override
+        public boolean offer(final E e) {
+            return super.offerFirst(e);
+        }
+    }
+
     static class AsyncDrawable extends BitmapDrawable {
         private final WeakReference<AvatarWorkerTask> avatarWorkerTaskReference;
 
@@ -29,21 +29,30 @@
 
 package eu.siacs.conversations.ui.util;
 
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 
 import eu.siacs.conversations.entities.IndividualMessage;
 import eu.siacs.conversations.entities.Message;
-import eu.siacs.conversations.utils.UIHelper;
 
 public class DateSeparator {
 
 	public static void addAll(List<Message> messages) {
-		for (int i = 0; i < messages.size(); ++i) {
-			final Message current = messages.get(i);
-			if (i == 0 || !UIHelper.sameDay(messages.get(i - 1).getTimeSent(), current.getTimeSent())) {
-				messages.add(i, IndividualMessage.createDateSeparator(current));
-				i++;
+		// inserting into the middle of an ArrayList is linear; build a new list instead
+		final List<Message> result = new ArrayList<>(messages.size() + 8);
+		final Calendar calendar = Calendar.getInstance();
+		int previousDay = -1;
+		for (final Message current : messages) {
+			calendar.setTimeInMillis(current.getTimeSent());
+			final int day = calendar.get(Calendar.YEAR) * 1000 + calendar.get(Calendar.DAY_OF_YEAR);
+			if (day != previousDay) {
+				result.add(IndividualMessage.createDateSeparator(current));
+				previousDay = day;
 			}
+			result.add(current);
 		}
+		messages.clear();
+		messages.addAll(result);
 	}
 }
@@ -31,6 +31,8 @@ package eu.siacs.conversations.ui.util;
 
 import android.os.Build;
 import android.text.Editable;
+import android.text.Spannable;
+import android.text.Spanned;
 import android.text.style.URLSpan;
 import android.text.util.Linkify;
 
@@ -43,6 +45,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import eu.siacs.conversations.ui.text.FixedURLSpan;
 import eu.siacs.conversations.utils.GeoHelper;
@@ -119,15 +123,156 @@ public class MyLinkify {
         }
     }
 
+    /**
+     * Adds the same links as running {@link Linkify#addLinks(Spannable, Pattern, String,
+     * Linkify.MatchFilter, Linkify.TransformFilter)} with the xmpp, web url and geo patterns on the
+     * whole body. None of these patterns can match ASCII white space, so instead of letting each
+     * of them search the entire body a single pass splits the body into white space separated
+     * words and notes which words could possibly contain a match of which pattern. The patterns
+     * then only run on those words (with transparent, non anchoring bounds so that look-arounds
+     * and word boundaries behave as before). For long messages and pasted logs most words are
+     * skipped altogether.
+     */
     public static void addLinks(Editable body, boolean includeGeo) {
-        Linkify.addLinks(body, Patterns.XMPP_PATTERN, "xmpp", XMPPURI_MATCH_FILTER, null);
-        Linkify.addLinks(body, Patterns.AUTOLINK_WEB_URL, "http", WEBURL_MATCH_FILTER, WEBURL_TRANSFORM_FILTER);
+        final String text = body.toString();
+        if (containsUnsupportedCharacters(text)) {
+            // Linkify refuses to linkify text containing explicit directional overrides
+            return;
+        }
+        final Candidates candidates = Candidates.scan(text, includeGeo);
+        addLinks(body, text, candidates.xmpp, Patterns.XMPP_PATTERN, "xmpp", XMPPURI_MATCH_FILTER, null);
+        addLinks(body, text, candidates.web, Patterns.AUTOLINK_WEB_URL, "http", WEBURL_MATCH_FILTER, WEBURL_TRANSFORM_FILTER);
         if (includeGeo) {
-            Linkify.addLinks(body, GeoHelper.GEO_URI, "geo");
+            addLinks(body, text, candidates.geo, GeoHelper.GEO_URI, "geo", null, null);
         }
         FixedURLSpan.fix(body);
     }
 
+    private static void addLinks(final Spannable spannable,
+                                 final String text,
+                                 final Regions regions,
+                                 final Pattern pattern,
+                                 final String scheme,
+                                 final Linkify.MatchFilter matchFilter,
+                                 final Linkify.TransformFilter transformFilter) {
+        if (regions.isEmpty()) {
+            return;
+        }
+        final Matcher matcher = pattern.matcher(text);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        for (int i = 0; i < regions.size(); ++i) {
+            matcher.region(regions.start(i), regions.end(i));
+            while (matcher.find()) {
+                final int start = matcher.start();
+                final int end = matcher.end();
+                if (matchFilter == null || matchFilter.acceptMatch(spannable, start, end)) {
+                    final String url = makeUrl(matcher.group(0), scheme, matcher, transformFilter);
+                    spannable.setSpan(new URLSpan(url), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+        }
+    }
+
+    // same as Linkify.makeUrl() with a single scheme
+    private static String makeUrl(String url, final String scheme, final Matcher matcher, final Linkify.TransformFilter transformFilter) {
+        if (transformFilter != null) {
+            url = transformFilter.transformUrl(matcher, url);
+        }
+        if (url.regionMatches(true, 0, scheme, 0, scheme.length())) {
+            if (!url.regionMatches(false, 0, scheme, 0, scheme.length())) {
+                url = scheme + url.substring(scheme.length());
+            }
+            return url;
+        }
+        return scheme + url;
+    }
+
+    private static boolean containsUnsupportedCharacters(final String text) {
+        return text.indexOf('\u202C') >= 0 || text.indexOf('\u202D') >= 0 || text.indexOf('\u202E') >= 0;
+    }
+
+    private static boolean isAsciiWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /** Words that could contain a match of the respective pattern. */
+    private static class Candidates {
+        private final Regions xmpp = new Regions();
+        private final Regions web = new Regions();
+        private final Regions geo = new Regions();
+
+        private static Candidates scan(final String text, final boolean includeGeo) {
+            final Candidates candidates = new Candidates();
+            final int length = text.length();
+            int wordStart = -1;
+            boolean xmpp = false;
+            boolean web = false;
+            boolean geo = false;
+            for (int i = 0; i <= length; ++i) {
+                final char c = i < length ? text.charAt(i) : ' ';
+                if (isAsciiWhitespace(c)) {
+                    if (wordStart >= 0) {
+                        if (xmpp) {
+                            candidates.xmpp.add(wordStart, i);
+                        }
+                        if (web) {
+                            candidates.web.add(wordStart, i);
+                        }
+                        if (geo) {
+                            candidates.geo.add(wordStart, i);
+                        }
+                        wordStart = -1;
+                        xmpp = web = geo = false;
+                    }
+                    continue;
+                }
+                if (wordStart < 0) {
+                    wordStart = i;
+                }
+                if (c == '.' || c == '[') {
+                    // host names and IPv4 addresses need a dot, IPv6 addresses a bracket
+                    web = true;
+                } else if (c == ':') {
+                    xmpp |= text.startsWith("xmpp", i - 4);
+                    web |= text.startsWith("//", i + 1);
+                    geo |= includeGeo && text.regionMatches(true, i - 3, "geo", 0, 3);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    private static class Regions {
+        private int[] bounds = new int[8];
+        private int size = 0;
+
+        private void add(final int start, final int end) {
+            if (size * 2 == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[size * 2] = start;
+            bounds[size * 2 + 1] = end;
+            size++;
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int start(final int i) {
+            return bounds[i * 2];
+        }
+
+        private int end(final int i) {
+            return bounds[i * 2 + 1];
+        }
+    }
+
     public static List<String> extractLinks(final Editable body) {
         MyLinkify.addLinks(body, false);
         final Collection<URLSpan> spans =
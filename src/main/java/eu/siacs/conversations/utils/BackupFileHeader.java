@@ -10,42 +10,58 @@ import eu.siacs.conversations.xmpp.Jid;
 
 public class BackupFileHeader {
 
-    private static final int VERSION = 2;
+    // version 2 files contain gzipped JSON; version 3 files contain typed binary rows in
+    // independently deflated blocks (see BinaryBackup) and may be incremental
+    public static final int VERSION_JSON = 2;
+    public static final int VERSION = 3;
 
+    private final int version;
     private final String app;
     private final Jid jid;
     private final long timestamp;
     private final byte[] iv;
     private final byte[] salt;
-
+    // incremental backups only contain messages with a rowid greater than this; 0 for full backups
+    private final long checkpoint;
 
     @NonNull
     @Override
     public String toString() {
         return "BackupFileHeader{" +
-                "app='" + app + '\'' +
+                "version=" + version +
+                ", app='" + app + '\'' +
                 ", jid=" + jid +
                 ", timestamp=" + timestamp +
                 ", iv=" + CryptoHelper.bytesToHex(iv) +
                 ", salt=" + CryptoHelper.bytesToHex(salt) +
+                ", checkpoint=" + checkpoint +
                 '}';
     }
 
-    public BackupFileHeader(String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+    public BackupFileHeader(String app, Jid jid, long timestamp, byte[] iv, byte[] salt, long checkpoint) {
+        this(VERSION, app, jid, timestamp, iv, salt, checkpoint);
+    }
+
+    private BackupFileHeader(int version, String app, Jid jid, long timestamp, byte[] iv, byte[] salt, long checkpoint) {
+        this.version = version;
         this.app = app;
         this.jid = jid;
         this.timestamp = timestamp;
         this.iv = iv;
         this.salt = salt;
+        this.checkpoint = checkpoint;
     }
 
     public void write(DataOutputStream dataOutputStream) throws IOException {
-        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(version);
         dataOutputStream.writeUTF(app);
         dataOutputStream.writeUTF(jid.asBareJid().toEscapedString());
         dataOutputStream.writeLong(timestamp);
         dataOutputStream.write(iv);
         dataOutputStream.write(salt);
+        if (version >= VERSION) {
+            dataOutputStream.writeLong(checkpoint);
+        }
     }
 
     public static BackupFileHeader read(DataInputStream inputStream) throws IOException {
@@ -57,14 +73,27 @@ public class BackupFileHeader {
         inputStream.readFully(iv);
         final byte[] salt = new byte[16];
         inputStream.readFully(salt);
-        if (version < VERSION) {
+        if (version < VERSION_JSON) {
             throw new OutdatedBackupFileVersion();
         }
-        if (version != VERSION) {
+        if (version > VERSION) {
             throw new IllegalArgumentException("Backup File version was " + version + " but app only supports version " + VERSION);
         }
-        return new BackupFileHeader(app, Jid.of(jid), timestamp, iv, salt);
+        final long checkpoint = version >= VERSION ? inputStream.readLong() : 0;
+        return new BackupFileHeader(version, app, Jid.of(jid), timestamp, iv, salt, checkpoint);
+
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
 
+    public boolean isIncremental() {
+        return checkpoint > 0;
     }
 
     public byte[] getSalt() {
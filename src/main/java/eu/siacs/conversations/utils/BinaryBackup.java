@@ -0,0 +1,235 @@
+package eu.siacs.conversations.utils;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Record format of version 3 backup files. A table record names the table and its columns once;
+ * every following row record holds one typed value per column in that order. The stream ends with
+ * an end record.
+ *
+ * <pre>
+ * table: 0x01, table name, column count, column names
+ * row:   0x02, (type, value) for each column
+ * end:   0x00
+ * </pre>
+ */
+public final class BinaryBackup {
+
+    private static final int RECORD_END = 0;
+    private static final int RECORD_TABLE = 1;
+    private static final int RECORD_ROW = 2;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_FLOAT = 2;
+    private static final int TYPE_TEXT = 3;
+    private static final int TYPE_BLOB = 4;
+
+    // rows with values larger than this are corrupt; we never store anything close to it
+    private static final int MAX_VALUE_SIZE = 64 * 1024 * 1024;
+
+    private BinaryBackup() {}
+
+    public static class Writer {
+
+        private final DataOutputStream out;
+        private String table;
+        private String[] columns;
+
+        public Writer(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        /** Starts rows of the given table. Only written if table or columns actually changed. */
+        public void writeTable(final String table, final String[] columns) throws IOException {
+            if (table.equals(this.table) && Arrays.equals(columns, this.columns)) {
+                return;
+            }
+            this.table = table;
+            this.columns = columns;
+            out.writeByte(RECORD_TABLE);
+            out.writeUTF(table);
+            out.writeShort(columns.length);
+            for (final String column : columns) {
+                out.writeUTF(column);
+            }
+        }
+
+        /** Writes the current row of the cursor; the cursor has to match the current table. */
+        public void writeRow(final Cursor cursor) throws IOException {
+            beginRow();
+            for (int i = 0; i < cursor.getColumnCount(); ++i) {
+                writeValue(cursor, i);
+            }
+        }
+
+        /** Writes a single column of the current row of the cursor, keeping its storage type. */
+        public void writeValue(final Cursor cursor, final int column) throws IOException {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    writeNull();
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    writeLong(cursor.getLong(column));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    writeDouble(cursor.getDouble(column));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    writeBlob(cursor.getBlob(column));
+                    break;
+                default:
+                    writeText(cursor.getString(column));
+                    break;
+            }
+        }
+
+        /** Starts a row whose values are written one by one, in column order. */
+        public void beginRow() throws IOException {
+            if (table == null) {
+                throw new IllegalStateException("no table has been written");
+            }
+            out.writeByte(RECORD_ROW);
+        }
+
+        public void writeNull() throws IOException {
+            out.writeByte(TYPE_NULL);
+        }
+
+        public void writeLong(final long value) throws IOException {
+            out.writeByte(TYPE_INTEGER);
+            out.writeLong(value);
+        }
+
+        public void writeDouble(final double value) throws IOException {
+            out.writeByte(TYPE_FLOAT);
+            out.writeDouble(value);
+        }
+
+        public void writeText(final String value) throws IOException {
+            if (value == null) {
+                writeNull();
+                return;
+            }
+            // writeUTF() is limited to 64 KiB; message bodies are not
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(TYPE_TEXT);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void writeBlob(final byte[] value) throws IOException {
+            if (value == null) {
+                writeNull();
+                return;
+            }
+            out.writeByte(TYPE_BLOB);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+
+        public void finish() throws IOException {
+            out.writeByte(RECORD_END);
+            out.flush();
+        }
+    }
+
+    public static class Reader {
+
+        private final DataInputStream in;
+        private final TableValidator validator;
+        private String table;
+        private String[] columns;
+
+        public Reader(final DataInputStream in, final TableValidator validator) {
+            this.in = in;
+            this.validator = validator;
+        }
+
+        /**
+         * Reads the next row into values (which is cleared first).
+         *
+         * @return the table the row belongs to or null once the end of the backup was reached
+         */
+        public String read(final ContentValues values) throws IOException {
+            while (true) {
+                final int record = in.readUnsignedByte();
+                switch (record) {
+                    case RECORD_END:
+                        return null;
+                    case RECORD_TABLE:
+                        readTable();
+                        break;
+                    case RECORD_ROW:
+                        if (table == null) {
+                            throw new IOException("row without table");
+                        }
+                        values.clear();
+                        for (final String column : columns) {
+                            readValue(column, values);
+                        }
+                        return table;
+                    default:
+                        throw new IOException("unknown record type " + record);
+                }
+            }
+        }
+
+        private void readTable() throws IOException {
+            final String table = in.readUTF();
+            final String[] columns = new String[in.readUnsignedShort()];
+            for (int i = 0; i < columns.length; ++i) {
+                columns[i] = in.readUTF();
+            }
+            validator.validate(table, columns);
+            this.table = table;
+            this.columns = columns;
+        }
+
+        private void readValue(final String column, final ContentValues values)
+                throws IOException {
+            final int type = in.readUnsignedByte();
+            switch (type) {
+                case TYPE_NULL:
+                    values.putNull(column);
+                    break;
+                case TYPE_INTEGER:
+                    values.put(column, in.readLong());
+                    break;
+                case TYPE_FLOAT:
+                    values.put(column, in.readDouble());
+                    break;
+                case TYPE_TEXT:
+                    values.put(column, new String(readBytes(), StandardCharsets.UTF_8));
+                    break;
+                case TYPE_BLOB:
+                    values.put(column, readBytes());
+                    break;
+                default:
+                    throw new IOException("unknown value type " + type);
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            final int length = in.readInt();
+            if (length < 0 || length > MAX_VALUE_SIZE) {
+                throw new IOException("invalid value length " + length);
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    public interface TableValidator {
+        /** Throws if rows of this table (or any of these columns) must not be imported. */
+        void validate(String table, String[] columns) throws IOException;
+    }
+}
@@ -0,0 +1,104 @@
+package eu.siacs.conversations.utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/** Reads the block format written by {@link CompressedBlockOutputStream}. */
+public class CompressedBlockInputStream extends InputStream {
+
+    // deflate can expand incompressible input slightly; anything beyond this is garbage
+    private static final int MAX_COMPRESSED_SIZE = CompressedBlockOutputStream.BLOCK_SIZE * 2;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private byte[] compressed = new byte[0];
+    private final byte[] block = new byte[CompressedBlockOutputStream.BLOCK_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private boolean finished = false;
+
+    public CompressedBlockInputStream(final InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        while (position >= limit) {
+            if (finished) {
+                return false;
+            }
+            final int rawLength = in.readInt();
+            if (rawLength == 0) {
+                finished = true;
+                return false;
+            }
+            final int compressedLength = in.readInt();
+            if (rawLength < 0
+                    || rawLength > block.length
+                    || compressedLength < 0
+                    || compressedLength > MAX_COMPRESSED_SIZE) {
+                throw new ZipException("invalid block header");
+            }
+            if (compressed.length < compressedLength) {
+                compressed = new byte[compressedLength];
+            }
+            in.readFully(compressed, 0, compressedLength);
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            int inflated = 0;
+            try {
+                while (inflated < rawLength && !inflater.finished()) {
+                    final int n = inflater.inflate(block, inflated, rawLength - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+            } catch (final DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            if (inflated != rawLength) {
+                throw new ZipException("block was truncated");
+            }
+            position = 0;
+            limit = rawLength;
+        }
+        return true;
+    }
+}
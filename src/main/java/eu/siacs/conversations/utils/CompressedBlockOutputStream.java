@@ -0,0 +1,146 @@
+package eu.siacs.conversations.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Splits the written data into blocks of {@link #BLOCK_SIZE} bytes that are deflated
+ * independently (and therefore in parallel) and written in order. Every block is prefixed with its
+ * raw and its compressed length; a raw length of 0 marks the end of the stream. Read with {@link
+ * CompressedBlockInputStream}.
+ */
+public class CompressedBlockOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final DataOutputStream out;
+    private final ExecutorService executor;
+    // bounds the memory held by blocks that are compressed but not written yet
+    private final int maxPending;
+    private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int count = 0;
+    private boolean closed = false;
+
+    public CompressedBlockOutputStream(final OutputStream out) {
+        this.out = new DataOutputStream(out);
+        final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxPending = threads * 2;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == buffer.length) {
+            submitBlock();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                submitBlock();
+            }
+            final int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Does not end the current block; cutting blocks short on every flush would defeat the purpose
+     * of large blocks.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock();
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            out.writeInt(0);
+            out.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        final byte[] raw = buffer;
+        final int length = count;
+        pending.add(executor.submit(() -> compress(raw, length)));
+        buffer = new byte[BLOCK_SIZE];
+        count = 0;
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        final Block block;
+        try {
+            block = pending.remove().get();
+        } catch (final InterruptedException e) {
+            executor.shutdownNow();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            executor.shutdownNow();
+            throw new IOException("unable to compress block", e.getCause());
+        }
+        out.writeInt(block.rawLength);
+        out.writeInt(block.compressed.size());
+        block.compressed.writeTo(out);
+    }
+
+    private static Block compress(final byte[] raw, final int length) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(chunk);
+                compressed.write(chunk, 0, n);
+            }
+            return new Block(length, compressed);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static final class Block {
+        private final int rawLength;
+        private final ByteArrayOutputStream compressed;
+
+        private Block(final int rawLength, final ByteArrayOutputStream compressed) {
+            this.rawLength = rawLength;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -29,52 +29,55 @@
 
 package eu.siacs.conversations.utils;
 
-import android.util.LruCache;
-
-import androidx.annotation.NonNull;
-
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.regex.Pattern;
 
+/**
+ * Splits text into emoji and other symbols in a single pass over its code points. Code points are
+ * classified through a two level lookup table (blocks of 256 code points, blocks without any
+ * interesting code point share no storage at all), so there are no range lists to walk and no
+ * regular expressions to build. Sequences joined by ZWJ, keycaps, flags (regional indicator
+ * pairs and tag sequences) and Fitzpatrick modifiers are treated as one emoji.
+ */
 public class Emoticons {
 
-    private static final UnicodeRange MISC_SYMBOLS_AND_PICTOGRAPHS = new UnicodeRange(0x1F300, 0x1F5FF);
-    private static final UnicodeRange SUPPLEMENTAL_SYMBOLS = new UnicodeRange(0x1F900, 0x1F9FF);
-    private static final UnicodeRange EMOTICONS = new UnicodeRange(0x1F600, 0x1FAF6);
-    //private static final UnicodeRange TRANSPORT_SYMBOLS = new UnicodeRange(0x1F680, 0x1F6FF);
-    private static final UnicodeRange MISC_SYMBOLS = new UnicodeRange(0x2600, 0x26FF);
-    private static final UnicodeRange DINGBATS = new UnicodeRange(0x2700, 0x27BF);
-    private static final UnicodeRange ENCLOSED_ALPHANUMERIC_SUPPLEMENT = new UnicodeRange(0x1F100, 0x1F1FF);
-    private static final UnicodeRange ENCLOSED_IDEOGRAPHIC_SUPPLEMENT = new UnicodeRange(0x1F200, 0x1F2FF);
-    private static final UnicodeRange REGIONAL_INDICATORS = new UnicodeRange(0x1F1E6, 0x1F1FF);
-    private static final UnicodeRange GEOMETRIC_SHAPES = new UnicodeRange(0x25A0, 0x25FF);
-    private static final UnicodeRange LATIN_SUPPLEMENT = new UnicodeRange(0x80, 0xFF);
-    private static final UnicodeRange MISC_TECHNICAL = new UnicodeRange(0x2300, 0x23FF);
-    private static final UnicodeRange TAGS = new UnicodeRange(0xE0020, 0xE007F);
-    private static final UnicodeList CYK_SYMBOLS_AND_PUNCTUATION = new UnicodeList(0x3030, 0x303D);
-    private static final UnicodeList LETTERLIKE_SYMBOLS = new UnicodeList(0x2122, 0x2139);
-
-    private static final UnicodeBlocks KEYCAP_COMBINEABLE = new UnicodeBlocks(new UnicodeList(0x23), new UnicodeList(0x2A), new UnicodeRange(0x30, 0x39));
-
-    private static final UnicodeBlocks SYMBOLIZE = new UnicodeBlocks(
-            GEOMETRIC_SHAPES,
-            LATIN_SUPPLEMENT,
-            CYK_SYMBOLS_AND_PUNCTUATION,
-            LETTERLIKE_SYMBOLS,
-            KEYCAP_COMBINEABLE);
-    private static final UnicodeBlocks EMOJIS = new UnicodeBlocks(
-            MISC_SYMBOLS_AND_PICTOGRAPHS,
-            SUPPLEMENTAL_SYMBOLS,
-            EMOTICONS,
-            //TRANSPORT_SYMBOLS,
-            MISC_SYMBOLS,
-            DINGBATS,
-            ENCLOSED_ALPHANUMERIC_SUPPLEMENT,
-            ENCLOSED_IDEOGRAPHIC_SUPPLEMENT,
-            MISC_TECHNICAL);
+    private static final int SYMBOLIZE = 1;
+    private static final int REGIONAL_INDICATOR = 1 << 1;
+    private static final int EMOJI = 1 << 2;
+    private static final int FITZPATRICK = 1 << 3;
+    private static final int KEYCAP_COMBINEABLE = 1 << 4;
+    private static final int TAG = 1 << 5;
+
+    private static final int BLOCK_BITS = 8;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+    private static final int MAX_CODEPOINT = 0xE007F;
+
+    private static final byte[][] TABLE = new byte[(MAX_CODEPOINT >> BLOCK_BITS) + 1][];
+
+    static {
+        // symbols that only turn into emoji when followed by VARIATION_16 (or a keycap)
+        mark(SYMBOLIZE, 0x25A0, 0x25FF); // geometric shapes
+        mark(SYMBOLIZE, 0x80, 0xFF); // latin-1 supplement
+        mark(SYMBOLIZE, 0x3030);
+        mark(SYMBOLIZE, 0x303D); // CJK symbols and punctuation
+        mark(SYMBOLIZE, 0x2122);
+        mark(SYMBOLIZE, 0x2139); // letterlike symbols
+        mark(SYMBOLIZE | KEYCAP_COMBINEABLE, 0x23);
+        mark(SYMBOLIZE | KEYCAP_COMBINEABLE, 0x2A);
+        mark(SYMBOLIZE | KEYCAP_COMBINEABLE, 0x30, 0x39);
+
+        mark(EMOJI, 0x1F300, 0x1F5FF); // misc symbols and pictographs
+        mark(EMOJI, 0x1F900, 0x1F9FF); // supplemental symbols
+        mark(EMOJI, 0x1F600, 0x1FAF6); // emoticons
+        mark(EMOJI, 0x2600, 0x26FF); // misc symbols
+        mark(EMOJI, 0x2700, 0x27BF); // dingbats
+        mark(EMOJI, 0x1F100, 0x1F1FF); // enclosed alphanumeric supplement
+        mark(EMOJI, 0x1F200, 0x1F2FF); // enclosed ideographic supplement
+        mark(EMOJI, 0x2300, 0x23FF); // misc technical
+
+        mark(REGIONAL_INDICATOR, 0x1F1E6, 0x1F1FF);
+        mark(FITZPATRICK, 0x1F3FB, 0x1F3FF);
+        mark(TAG, 0xE0020, 0xE007F);
+    }
 
     private static final int MAX_EMOIJS = 42;
 
@@ -82,229 +85,192 @@ public class Emoticons {
     private static final int VARIATION_16 = 0xFE0F;
     private static final int COMBINING_ENCLOSING_KEYCAP = 0x20E3;
     private static final int BLACK_FLAG = 0x1F3F4;
-    private static final UnicodeRange FITZPATRICK = new UnicodeRange(0x1F3FB, 0x1F3FF);
 
-    private static final LruCache<CharSequence, Pattern> CACHE = new LruCache<>(256);
+    private static final int[] NO_EMOJIS = new int[0];
 
-    private static List<Symbol> parse(String input) {
-        List<Symbol> symbols = new ArrayList<>();
-        Builder builder = new Builder();
-        boolean needsFinalBuild = false;
-        for (int cp, i = 0; i < input.length(); i += Character.charCount(cp)) {
-            cp = input.codePointAt(i);
-            if (builder.offer(cp)) {
-                needsFinalBuild = true;
-            } else {
-                symbols.add(builder.build());
-                builder = new Builder();
-                if (builder.offer(cp)) {
-                    needsFinalBuild = true;
-                }
+    private static void mark(final int flag, final int codepoint) {
+        mark(flag, codepoint, codepoint);
+    }
+
+    private static void mark(final int flag, final int lower, final int upper) {
+        for (int codepoint = lower; codepoint <= upper; ++codepoint) {
+            final int block = codepoint >> BLOCK_BITS;
+            if (TABLE[block] == null) {
+                TABLE[block] = new byte[BLOCK_MASK + 1];
             }
+            TABLE[block][codepoint & BLOCK_MASK] |= (byte) flag;
         }
-        if (needsFinalBuild) {
-            symbols.add(builder.build());
-        }
-        return symbols;
     }
 
-    public static Pattern getEmojiPattern(final CharSequence input) {
-        Pattern pattern = CACHE.get(input);
-        if (pattern == null) {
-            pattern = generatePattern(input);
-            CACHE.put(input, pattern);
+    private static int flags(final int codepoint) {
+        if (codepoint < 0 || codepoint > MAX_CODEPOINT) {
+            return 0;
         }
-        return pattern;
+        final byte[] block = TABLE[codepoint >> BLOCK_BITS];
+        return block == null ? 0 : block[codepoint & BLOCK_MASK];
     }
 
-    private static Pattern generatePattern(CharSequence input) {
-        final HashSet<String> emojis = new HashSet<>();
-        int i = 0;
-        for (final Symbol symbol : parse(input.toString())) {
-            if (symbol instanceof Emoji) {
-                emojis.add(symbol.toString());
-                if (++i >= MAX_EMOIJS) {
-                    return Pattern.compile("");
-                }
+    private static boolean isAsciiWhitespace(final int codepoint) {
+        return codepoint == ' '
+                || codepoint == '\t'
+                || codepoint == '\n'
+                || codepoint == 0x0B
+                || codepoint == '\f'
+                || codepoint == '\r';
+    }
+
+    /**
+     * Walks the input symbol by symbol.
+     *
+     * @param ignoreWhitespace whether ASCII white space is skipped as if it was not there
+     */
+    private static void parse(final CharSequence input, final boolean ignoreWhitespace, final SymbolVisitor visitor) {
+        final Builder builder = new Builder();
+        final int length = input.length();
+        for (int cp, i = 0; i < length; i += Character.charCount(cp)) {
+            cp = Character.codePointAt(input, i);
+            if (ignoreWhitespace && isAsciiWhitespace(cp)) {
+                continue;
             }
-        }
-        final StringBuilder pattern = new StringBuilder();
-        for (String emoji : emojis) {
-            if (pattern.length() != 0) {
-                pattern.append('|');
+            final int next = i + Character.charCount(cp);
+            if (builder.offer(cp, i, next)) {
+                continue;
+            }
+            if (builder.size > 0 && !visitor.visit(builder.start, builder.end, builder.isEmoji())) {
+                return;
+            }
+            builder.reset();
+            if (!builder.offer(cp, i, next) && !visitor.visit(i, next, false)) {
+                return;
             }
-            pattern.append(Pattern.quote(emoji));
         }
-        return Pattern.compile(pattern.toString());
-    }
-
-    public static boolean isEmoji(String input) {
-        List<Symbol> symbols = parse(input);
-        return symbols.size() == 1 && symbols.get(0).isEmoji();
+        if (builder.size > 0) {
+            visitor.visit(builder.start, builder.end, builder.isEmoji());
+        }
     }
 
-    public static boolean isOnlyEmoji(String input) {
-        List<Symbol> symbols = parse(input);
-        for (Symbol symbol : symbols) {
-            if (!symbol.isEmoji()) {
+    /**
+     * @return start and end offsets (alternating) of every emoji in the input. Nothing is returned
+     *     for inputs with too many emoji.
+     */
+    public static int[] findEmojis(final CharSequence input) {
+        final int[][] result = {new int[8]};
+        final int[] count = {0};
+        parse(input, false, (start, end, emoji) -> {
+            if (!emoji) {
+                return true;
+            }
+            if (count[0] + 1 >= MAX_EMOIJS) {
+                count[0] = -1;
                 return false;
             }
-        }
-        return symbols.size() > 0;
+            if (count[0] * 2 == result[0].length) {
+                result[0] = Arrays.copyOf(result[0], result[0].length * 2);
+            }
+            result[0][count[0] * 2] = start;
+            result[0][count[0] * 2 + 1] = end;
+            count[0]++;
+            return true;
+        });
+        return count[0] <= 0 ? NO_EMOJIS : Arrays.copyOf(result[0], count[0] * 2);
     }
 
-    private static abstract class Symbol {
-
-        private final String value;
+    /**
+     * @return the number of emoji if the input consists of nothing but emoji and ASCII white
+     *     space, 0 otherwise
+     */
+    public static int countIfOnlyEmoji(final CharSequence input) {
+        return countIfOnlyEmoji(input, true);
+    }
 
-        Symbol(List<Integer> codepoints) {
-            final StringBuilder builder = new StringBuilder();
-            for (final Integer codepoint : codepoints) {
-                builder.appendCodePoint(codepoint);
+    private static int countIfOnlyEmoji(final CharSequence input, final boolean ignoreWhitespace) {
+        final int[] count = {0};
+        parse(input, ignoreWhitespace, (start, end, emoji) -> {
+            if (emoji) {
+                count[0]++;
+                return true;
             }
-            this.value = builder.toString();
-        }
-
-        abstract boolean isEmoji();
-
-        @NonNull
-        @Override
-        public String toString() {
-            return value;
-        }
+            count[0] = 0;
+            return false;
+        });
+        return count[0];
     }
 
-    public static class Emoji extends Symbol {
-
-        Emoji(List<Integer> codepoints) {
-            super(codepoints);
-        }
-
-        @Override
-        boolean isEmoji() {
-            return true;
-        }
+    public static boolean isEmoji(String input) {
+        return countIfOnlyEmoji(input, false) == 1;
     }
 
-    public static class Other extends Symbol {
-
-        public Other(List<Integer> codepoints) {
-            super(codepoints);
-        }
+    public static boolean isOnlyEmoji(String input) {
+        return countIfOnlyEmoji(input, false) > 0;
+    }
 
-        @Override
-        boolean isEmoji() {
-            return false;
-        }
+    private interface SymbolVisitor {
+        /** @return false to stop parsing */
+        boolean visit(int start, int end, boolean emoji);
     }
 
     private static class Builder {
-        private final List<Integer> codepoints = new ArrayList<>();
-
+        private int size = 0;
+        private int start;
+        private int end;
+        private int first;
+        private int previous;
+
+        private void reset() {
+            this.size = 0;
+        }
 
-        public boolean offer(int codepoint) {
-            boolean add = false;
-            if (this.codepoints.size() == 0) {
-                if (SYMBOLIZE.contains(codepoint)) {
-                    add = true;
-                } else if (REGIONAL_INDICATORS.contains(codepoint)) {
-                    add = true;
-                } else if (EMOJIS.contains(codepoint) && !FITZPATRICK.contains(codepoint) && codepoint != ZWJ) {
-                    add = true;
-                }
+        private boolean offer(final int codepoint, final int index, final int next) {
+            final int flags = flags(codepoint);
+            final boolean add;
+            if (size == 0) {
+                add = (flags & (SYMBOLIZE | REGIONAL_INDICATOR)) != 0
+                        || ((flags & EMOJI) != 0 && (flags & FITZPATRICK) == 0 && codepoint != ZWJ);
             } else {
-                int previous = codepoints.get(codepoints.size() - 1);
-                if (codepoints.get(0) == BLACK_FLAG) {
-                    add = TAGS.contains(codepoint);
+                final int previousFlags = flags(previous);
+                if (first == BLACK_FLAG) {
+                    add = (flags & TAG) != 0;
                 } else if (COMBINING_ENCLOSING_KEYCAP == codepoint) {
-                    add = KEYCAP_COMBINEABLE.contains(previous) || previous == VARIATION_16;
-                } else if (SYMBOLIZE.contains(previous)) {
+                    add = (previousFlags & KEYCAP_COMBINEABLE) != 0 || previous == VARIATION_16;
+                } else if ((previousFlags & SYMBOLIZE) != 0) {
                     add = codepoint == VARIATION_16;
-                } else if (REGIONAL_INDICATORS.contains(previous) && REGIONAL_INDICATORS.contains(codepoint)) {
-                    add = codepoints.size() == 1;
+                } else if ((previousFlags & REGIONAL_INDICATOR) != 0 && (flags & REGIONAL_INDICATOR) != 0) {
+                    add = size == 1;
                 } else if (previous == VARIATION_16) {
-                    add = isMerger(codepoint) || codepoint == VARIATION_16;
-                } else if (FITZPATRICK.contains(previous)) {
+                    add = isMerger(codepoint, flags) || codepoint == VARIATION_16;
+                } else if ((previousFlags & FITZPATRICK) != 0) {
                     add = codepoint == ZWJ;
                 } else if (ZWJ == previous) {
-                    add = EMOJIS.contains(codepoint);
-                } else if (isMerger(codepoint)) {
-                    add = true;
-                } else if (codepoint == VARIATION_16 && EMOJIS.contains(previous)) {
+                    add = (flags & EMOJI) != 0;
+                } else if (isMerger(codepoint, flags)) {
                     add = true;
+                } else {
+                    add = codepoint == VARIATION_16 && (previousFlags & EMOJI) != 0;
                 }
             }
             if (add) {
-                codepoints.add(codepoint);
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        private static boolean isMerger(int codepoint) {
-            return codepoint == ZWJ || FITZPATRICK.contains(codepoint);
-        }
-
-        public Symbol build() {
-            if (codepoints.size() > 0 && SYMBOLIZE.contains(codepoints.get(codepoints.size() - 1))) {
-                return new Other(codepoints);
-            } else if (codepoints.size() > 1 && KEYCAP_COMBINEABLE.contains(codepoints.get(0)) && codepoints.get(codepoints.size() - 1) != COMBINING_ENCLOSING_KEYCAP) {
-                return new Other(codepoints);
-            }
-            return codepoints.size() == 0 ? new Other(codepoints) : new Emoji(codepoints);
-        }
-    }
-
-    public static class UnicodeBlocks implements UnicodeSet {
-        final UnicodeSet[] unicodeSets;
-
-        UnicodeBlocks(final UnicodeSet... sets) {
-            this.unicodeSets = sets;
-        }
-
-        @Override
-        public boolean contains(int codepoint) {
-            for (UnicodeSet unicodeSet : unicodeSets) {
-                if (unicodeSet.contains(codepoint)) {
-                    return true;
+                if (size == 0) {
+                    this.start = index;
+                    this.first = codepoint;
                 }
+                this.end = next;
+                this.previous = codepoint;
+                this.size++;
             }
-            return false;
+            return add;
         }
-    }
-
-    public interface UnicodeSet {
-        boolean contains(int codepoint);
-    }
-
-    public static class UnicodeList implements UnicodeSet {
-
-        private final List<Integer> list;
 
-        UnicodeList(final Integer... codes) {
-            this.list = Arrays.asList(codes);
+        private static boolean isMerger(final int codepoint, final int flags) {
+            return codepoint == ZWJ || (flags & FITZPATRICK) != 0;
         }
 
-        @Override
-        public boolean contains(int codepoint) {
-            return this.list.contains(codepoint);
-        }
-    }
-
-
-    public static class UnicodeRange implements UnicodeSet {
-
-        private final int lower;
-        private final int upper;
-
-        UnicodeRange(int lower, int upper) {
-            this.lower = lower;
-            this.upper = upper;
-        }
-
-        public boolean contains(int codePoint) {
-            return codePoint >= lower && codePoint <= upper;
+        private boolean isEmoji() {
+            if ((flags(previous) & SYMBOLIZE) != 0) {
+                return false;
+            }
+            return size <= 1
+                    || (flags(first) & KEYCAP_COMBINEABLE) == 0
+                    || previous == COMBINING_ENCLOSING_KEYCAP;
         }
     }
 }
@@ -35,8 +35,11 @@ import android.os.Build;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
 import android.text.style.ForegroundColorSpan;
 import android.util.LruCache;
+import android.util.Pair;
 
 import androidx.annotation.ColorInt;
 
@@ -60,6 +63,8 @@ public class IrregularUnicodeDetector {
 
 	private static final Map<Character.UnicodeBlock, Character.UnicodeBlock> NORMALIZATION_MAP;
 	private static final LruCache<Jid, PatternTuple> CACHE = new LruCache<>(4096);
+	// keyed by the warning color as well so that switching themes does not return stale spans
+	private static final LruCache<Pair<Jid, Integer>, Spanned> STYLED = new LruCache<>(512);
 	private static final List<String> AMBIGUOUS_CYRILLIC = Arrays.asList("а","г","е","ѕ","і","ј","ķ","ԛ","о","р","с","у","х");
 
 	static {
@@ -77,7 +82,15 @@ public class IrregularUnicodeDetector {
 	}
 
 	public static Spannable style(Context context, Jid jid) {
-		return style(jid, StyledAttributes.getColor(context, R.attr.color_warning));
+		final int color = StyledAttributes.getColor(context, R.attr.color_warning);
+		final Pair<Jid, Integer> key = new Pair<>(jid, color);
+		Spanned styled = STYLED.get(key);
+		if (styled == null) {
+			styled = new SpannedString(style(jid, color));
+			STYLED.put(key, styled);
+		}
+		// callers get their own copy; the cached one must never be modified
+		return new SpannableString(styled);
 	}
 
 	private static Spannable style(Jid jid, @ColorInt int color) {
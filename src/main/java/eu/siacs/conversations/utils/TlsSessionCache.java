@@ -0,0 +1,186 @@
+package eu.siacs.conversations.utils;
+
+import android.util.Log;
+
+import com.google.common.base.Strings;
+
+import eu.siacs.conversations.Config;
+
+import org.conscrypt.Conscrypt;
+import org.conscrypt.SSLClientSessionCache;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS session (and session ticket) store shared by all XMPP connections. Conscrypt consults this
+ * cache whenever a client socket is about to handshake with a host and port it has seen before,
+ * regardless of whether the socket was created for direct TLS or upgraded via STARTTLS. Sockets
+ * are created with the domain of the account as host, so sessions are keyed by domain and port
+ * rather than by the IP address that happened to be connected to.
+ *
+ * <p>Sessions are also keyed by a scope: everything that influences which client certificate is
+ * presented and which trust decision the server certificate went through. A session set up for
+ * one account (or with a different trust manager) is never resumed by another.
+ *
+ * <p>Only TLS 1.3 sessions are kept. tls-unique is not safe on resumed TLS 1.2 sessions; resuming
+ * those would make an account pinned to SCRAM-*-PLUS with tls-unique fall back to a weaker
+ * mechanism, which is rejected as a downgrade. Sessions contain the master secret and are
+ * therefore only held in memory.
+ */
+public class TlsSessionCache {
+
+    private static final int MAX_ENTRIES = 64;
+    private static final String PROTOCOL_TLS_1_3 = "TLSv1.3";
+
+    private static final TlsSessionCache INSTANCE = new TlsSessionCache();
+
+    private final LinkedHashMap<String, byte[]> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int fullHandshakes = 0;
+    private int resumedHandshakes = 0;
+    private long fullHandshakeTime = 0;
+    private long resumedHandshakeTime = 0;
+
+    private TlsSessionCache() {}
+
+    public static TlsSessionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param scope identifies the client identity and trust manager the context was initialized
+     *     with; see {@link #scope(String, String, boolean)}
+     */
+    public void attach(final SSLContext sslContext, final String scope) {
+        if (Conscrypt.isConscrypt(sslContext)) {
+            Conscrypt.setClientSessionCache(sslContext, new ScopedCache(scope));
+        }
+    }
+
+    public static String scope(
+            final String accountUuid, final String privateKeyAlias, final boolean interactive) {
+        return String.format(
+                Locale.ROOT,
+                "%s|%s|%b",
+                accountUuid,
+                Strings.nullToEmpty(privateKeyAlias),
+                interactive);
+    }
+
+    private static String key(final String scope, final String host, final int port) {
+        return String.format(
+                Locale.ROOT, "%s|%s:%d", scope, host.toLowerCase(Locale.ROOT), port);
+    }
+
+    private synchronized byte[] getSessionData(
+            final String scope, final String host, final int port) {
+        if (Strings.isNullOrEmpty(host)) {
+            return null;
+        }
+        return this.sessions.get(key(scope, host, port));
+    }
+
+    private synchronized void putSessionData(
+            final String scope, final SSLSession session, final byte[] sessionData) {
+        final String host = session.getPeerHost();
+        if (Strings.isNullOrEmpty(host) || sessionData == null) {
+            return;
+        }
+        final String key = key(scope, host, session.getPeerPort());
+        if (!PROTOCOL_TLS_1_3.equals(session.getProtocol())) {
+            this.sessions.remove(key);
+            return;
+        }
+        this.sessions.put(key, sessionData);
+        trim();
+    }
+
+    public synchronized void invalidate(final String scope, final String host, final int port) {
+        if (Strings.isNullOrEmpty(host)) {
+            return;
+        }
+        this.sessions.remove(key(scope, host, port));
+    }
+
+    private void trim() {
+        final var iterator = this.sessions.entrySet().iterator();
+        while (this.sessions.size() > MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Records the duration of a completed handshake and logs the resumption hit rate together
+     * with an estimate of the handshake time saved by resumption so far.
+     */
+    public void recordHandshake(final String host, final boolean resumed, final long duration) {
+        final int full;
+        final int resumedCount;
+        final long saved;
+        synchronized (this) {
+            if (resumed) {
+                this.resumedHandshakes++;
+                this.resumedHandshakeTime += duration;
+            } else {
+                this.fullHandshakes++;
+                this.fullHandshakeTime += duration;
+            }
+            full = this.fullHandshakes;
+            resumedCount = this.resumedHandshakes;
+            if (full > 0 && resumedCount > 0) {
+                saved =
+                        Math.max(
+                                0,
+                                resumedCount * (this.fullHandshakeTime / full)
+                                        - this.resumedHandshakeTime);
+            } else {
+                saved = 0;
+            }
+        }
+        Log.d(
+                Config.LOGTAG,
+                String.format(
+                        Locale.ROOT,
+                        "TLS handshake with %s took %dms (resumed=%b). hit rate %d/%d. saved ~%dms",
+                        host,
+                        duration,
+                        resumed,
+                        resumedCount,
+                        full + resumedCount,
+                        saved));
+    }
+
+    private final class ScopedCache implements SSLClientSessionCache {
+
+        private final String scope;
+
+        private ScopedCache(final String scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public byte[] getSessionData(final String host, final int port) {
+            return TlsSessionCache.this.getSessionData(scope, host, port);
+        }
+
+        @Override
+        public void putSessionData(final SSLSession session, final byte[] sessionData) {
+            TlsSessionCache.this.putSessionData(scope, session, sessionData);
+        }
+    }
+
+    /**
+     * Conscrypt does not expose whether a session was resumed. A resumed session however keeps
+     * the creation time of the original handshake, so a session created before the current
+     * handshake started can only have come out of the cache. The creation time is only accurate
+     * to the second. This is only used for statistics; no security decision depends on it.
+     */
+    public static boolean isResumed(final SSLSession session, final long handshakeStart) {
+        return session != null && session.getCreationTime() <= handshakeStart - 1000;
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.text.SpannableStringBuilder;
 import android.text.format.DateFormat;
 import android.text.format.DateUtils;
+import android.util.LruCache;
 import android.util.Pair;
 
 import androidx.annotation.ColorInt;
@@ -104,6 +105,9 @@ public class UIHelper {
 
     private static final int[] COLORS;
 
+    private static final LruCache<String, Integer> COLOR_CACHE = new LruCache<>(1024);
+    private static final LruCache<String, Integer> SAFE_COLOR_CACHE = new LruCache<>(1024);
+
     static {
         COLORS = Arrays.copyOf(SAFE_COLORS, SAFE_COLORS.length + UNSAFE_COLORS.length);
         System.arraycopy(UNSAFE_COLORS, 0, COLORS, SAFE_COLORS.length, UNSAFE_COLORS.length);
@@ -231,6 +235,21 @@ public class UIHelper {
     }
 
     public static int getColorForName(String name, boolean safe) {
+        if (name == null || name.isEmpty()) {
+            return computeColorForName(name, safe);
+        }
+        // the color only depends on the name; hashing it is noticeable when binding long lists
+        final LruCache<String, Integer> cache = safe ? SAFE_COLOR_CACHE : COLOR_CACHE;
+        final Integer cached = cache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        final int color = computeColorForName(name, safe);
+        cache.put(name, color);
+        return color;
+    }
+
+    private static int computeColorForName(String name, boolean safe) {
         if (Config.XEP_0392) {
             return XEP0392Helper.rgbFromNick(name);
         }
@@ -0,0 +1,140 @@
+package eu.siacs.conversations.xml;
+
+import android.util.Base64;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An element whose content is the base64 encoded content of a file. The file is encoded chunk by
+ * chunk while the element is written so that neither the raw bytes nor the base64 text have to be
+ * held in memory.
+ *
+ * <p>The file is opened when the element is created (see {@link #of(String, String, File)}), so
+ * a file that is deleted before the stanza reaches the writer thread can still be read. The
+ * element may be written more than once (logging, resending after stream resumption); every write
+ * starts at the beginning of the file. The file stays open until {@link #release(Element)} is
+ * called, typically once the IQ carrying the element was answered; writes after that open the
+ * file again.
+ */
+public class Base64FileElement extends Element {
+
+    // multiple of 3 so that only the last chunk needs padding
+    private static final int CHUNK_SIZE = 3 * 1024;
+
+    // files that fit into a single chunk are simply encoded in memory. Avatars are mostly kept
+    // below Config.AVATAR_CHAR_LIMIT (about 7 KiB of raw data), so this has to stay well below that
+    private static final long MAX_IN_MEMORY_SIZE = CHUNK_SIZE;
+
+    private final File file;
+    private FileInputStream inputStream;
+
+    private Base64FileElement(
+            final String name,
+            final String xmlns,
+            final File file,
+            final FileInputStream inputStream) {
+        super(name, xmlns);
+        this.file = file;
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Creates an element with the base64 encoded content of the file. Small files, and files that
+     * can be read but not kept open, are encoded right away into an ordinary element.
+     *
+     * @throws IOException if the file does not exist (anymore) or can not be read
+     */
+    public static Element of(final String name, final String xmlns, final File file)
+            throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        if (file.length() > MAX_IN_MEMORY_SIZE) {
+            try {
+                return new Base64FileElement(name, xmlns, file, new FileInputStream(file));
+            } catch (final FileNotFoundException e) {
+                if (!file.isFile()) {
+                    throw e;
+                }
+            }
+        }
+        final Element element = new Element(name, xmlns);
+        element.setContent(Base64.encodeToString(Files.toByteArray(file), Base64.NO_WRAP));
+        return element;
+    }
+
+    /**
+     * Closes the files held open by the given element and its descendants. Does nothing for
+     * elements that were encoded in memory.
+     */
+    public static void release(final Element element) {
+        if (element instanceof Base64FileElement) {
+            ((Base64FileElement) element).close();
+        }
+        for (final Element child : element.getChildren()) {
+            release(child);
+        }
+    }
+
+    private synchronized void close() {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (final IOException ignored) {
+                // nothing was written to it
+            }
+            inputStream = null;
+        }
+    }
+
+    @Override
+    public synchronized void writeTo(final Writer writer) throws IOException {
+        if (inputStream == null) {
+            try (final FileInputStream inputStream = new FileInputStream(file)) {
+                writeTo(writer, inputStream);
+            }
+        } else {
+            // the file has been opened in of(); it stays readable even if it gets deleted meanwhile
+            inputStream.getChannel().position(0);
+            writeTo(writer, inputStream);
+        }
+    }
+
+    private void writeTo(final Writer writer, final FileInputStream inputStream)
+            throws IOException {
+        final Tag startTag = Tag.start(getName());
+        startTag.setAttributes(getAttributes());
+        writer.write(startTag.toString());
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        int count;
+        while ((count = ByteStreams.read(inputStream, buffer, 0, buffer.length)) > 0) {
+            final byte[] encoded = Base64.encode(buffer, 0, count, Base64.NO_WRAP);
+            // the base64 alphabet needs no escaping
+            writer.write(new String(encoded, StandardCharsets.US_ASCII));
+        }
+        writer.write(Tag.end(getName()).toString());
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        final StringWriter writer = new StringWriter();
+        try {
+            writeTo(writer);
+        } catch (final IOException e) {
+            throw new IllegalStateException("unable to read " + file.getAbsolutePath(), e);
+        }
+        return writer.toString();
+    }
+}
@@ -5,6 +5,8 @@ import com.google.common.primitives.Ints;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
@@ -201,6 +203,30 @@ public class Element {
         return elementOutput.toString();
     }
 
+    /**
+     * Writes the same markup as {@link #toString()} without building it in memory first. Elements
+     * with large payloads override this to stream their content.
+     */
+    public void writeTo(final Writer writer) throws IOException {
+        if ((content == null) && (children.size() == 0)) {
+            final Tag emptyTag = Tag.empty(name);
+            emptyTag.setAttributes(this.attributes);
+            writer.write(emptyTag.toString());
+        } else {
+            final Tag startTag = Tag.start(name);
+            startTag.setAttributes(this.attributes);
+            writer.write(startTag.toString());
+            if (content != null) {
+                writer.write(XmlHelper.encodeEntities(content));
+            } else {
+                for (final Element child : children) {
+                    child.writeTo(writer);
+                }
+            }
+            writer.write(Tag.end(name).toString());
+        }
+    }
+
     public final String getName() {
         return name;
     }
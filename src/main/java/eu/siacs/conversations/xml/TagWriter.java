@@ -5,6 +5,8 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -29,12 +31,19 @@ public class TagWriter {
                     break;
                 }
                 try {
-                    AbstractStanza output = writeQueue.take();
-                    outputStream.write(output.toString());
+                    final ArrayList<AbstractStanza> batch = new ArrayList<>();
+                    batch.add(writeQueue.take());
+                    writeQueue.drainTo(batch);
+                    for (final AbstractStanza output : batch) {
+                        output.writeTo(outputStream);
+                    }
                     if (writeQueue.size() == 0) {
                         outputStream.flush();
                     }
-                } catch (Exception e) {
+                } catch (final InterruptedException e) {
+                    break;
+                } catch (final Exception e) {
+                    onWriteFailed(e);
                     break;
                 }
             }
@@ -46,6 +55,23 @@ public class TagWriter {
     public TagWriter() {
     }
 
+    /**
+     * Part of a stanza may already be on the wire, so the stream can't be used anymore. Closing the
+     * socket turns this into a regular connection error on the reading side instead of leaving a
+     * connection around that silently never sends anything again.
+     */
+    private synchronized void onWriteFailed(final Exception e) {
+        Log.d(Config.LOGTAG, "unable to write stanza. closing connection", e);
+        this.finished = true;
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (final IOException ignored) {
+                // ignoring
+            }
+        }
+    }
+
     public synchronized void setOutputStream(OutputStream out) throws IOException {
         if (out == null) {
             throw new IOException();
@@ -78,7 +104,7 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(element.toString());
+        element.writeTo(outputStream);
         outputStream.flush();
     }
 
@@ -97,6 +123,21 @@ public class TagWriter {
         }
     }
 
+    public void writeStanzasAsync(final Collection<? extends AbstractStanza> stanzas) {
+        if (finished) {
+            Log.d(Config.LOGTAG, "attempting to write stanzas to finished TagWriter");
+        } else {
+            if (!asyncStanzaWriter.isAlive()) {
+                try {
+                    asyncStanzaWriter.start();
+                } catch (IllegalThreadStateException e) {
+                    // already started
+                }
+            }
+            writeQueue.addAll(stanzas);
+        }
+    }
+
     public void finish() {
         this.finished = true;
     }
@@ -21,6 +21,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -31,11 +32,13 @@ import eu.siacs.conversations.crypto.sasl.ChannelBindingMechanism;
 import eu.siacs.conversations.crypto.sasl.HashedToken;
 import eu.siacs.conversations.crypto.sasl.SaslMechanism;
 import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.CapsRegistry;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.ServiceDiscoveryResult;
 import eu.siacs.conversations.generator.IqGenerator;
 import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.services.ConnectionScheduler;
 import eu.siacs.conversations.services.MemorizingTrustManager;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.NotificationService;
@@ -47,6 +50,7 @@ import eu.siacs.conversations.utils.PhoneHelper;
 import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.SSLSockets;
 import eu.siacs.conversations.utils.SocksSocketFactory;
+import eu.siacs.conversations.utils.TlsSessionCache;
 import eu.siacs.conversations.utils.XmlHelper;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.LocalizedContent;
@@ -55,6 +59,7 @@ import eu.siacs.conversations.xml.Tag;
 import eu.siacs.conversations.xml.TagWriter;
 import eu.siacs.conversations.xml.XmlReader;
 import eu.siacs.conversations.xmpp.bind.Bind2;
+import eu.siacs.conversations.xmpp.chatstate.ChatState;
 import eu.siacs.conversations.xmpp.forms.Data;
 import eu.siacs.conversations.xmpp.jingle.OnJinglePacketReceived;
 import eu.siacs.conversations.xmpp.jingle.stanzas.JinglePacket;
@@ -79,7 +84,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.IDN;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -108,6 +112,7 @@ import java.util.regex.Matcher;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509KeyManager;
@@ -183,6 +188,7 @@ public class XmppConnection implements Runnable {
     private final AtomicInteger mSmCatchupMessageCounter = new AtomicInteger(0);
     private boolean mInteractive = false;
     private int attempt = 0;
+    private final ConnectionScheduler.Backoff backoff = new ConnectionScheduler.Backoff();
     private OnPresencePacketReceived presenceListener = null;
     private OnJinglePacketReceived jingleListener = null;
     private OnIqPacketReceived unregisteredIqListener = null;
@@ -573,9 +579,15 @@ public class XmppConnection implements Runnable {
                             : trustManager.getNonInteractive(domain)
                 },
                 SECURE_RANDOM);
+        TlsSessionCache.getInstance().attach(sc, tlsSessionScope());
         return sc.getSocketFactory();
     }
 
+    // sessions are only resumed with the client identity and trust manager they were set up with
+    private String tlsSessionScope() {
+        return TlsSessionCache.scope(account.getUuid(), account.getPrivateKeyAlias(), mInteractive);
+    }
+
     @Override
     public void run() {
         synchronized (this) {
@@ -1074,7 +1086,6 @@ public class XmppConnection implements Runnable {
     private void processResumed(final Element resumed) throws StateChangingException {
         this.inSmacksSession = true;
         this.isBound = true;
-        this.tagWriter.writeStanzaAsync(new RequestPacket());
         lastPacketReceived = SystemClock.elapsedRealtime();
         final Optional<Integer> h = resumed.getOptionalIntAttribute("h");
         final int serverCount;
@@ -1104,22 +1115,114 @@ public class XmppConnection implements Runnable {
         if (acknowledgedMessages) {
             mXmppConnectionService.updateConversationUi();
         }
+        final List<AbstractAcknowledgeableStanza> replay = withoutSupersededStanzas(failedStanzas);
         Log.d(
                 Config.LOGTAG,
-                account.getJid().asBareJid() + ": resending " + failedStanzas.size() + " stanzas");
-        for (final AbstractAcknowledgeableStanza packet : failedStanzas) {
-            if (packet instanceof MessagePacket message) {
+                account.getJid().asBareJid()
+                        + ": resending "
+                        + replay.size()
+                        + " stanzas ("
+                        + (failedStanzas.size() - replay.size())
+                        + " superseded)");
+        for (final AbstractAcknowledgeableStanza packet : replay) {
+            if (packet instanceof MessagePacket message && message.getId() != null) {
                 mXmppConnectionService.markMessage(
                         account,
                         message.getTo().asBareJid(),
                         message.getId(),
                         Message.STATUS_UNSEND);
             }
-            sendPacket(packet);
+        }
+        sendPackets(replay);
+        if (!Iterables.any(replay, XmppConnection::isTrackedForAck)) {
+            // sendPackets() only requests an ack along with tracked stanzas; without any we still
+            // want the server's count to be synced right after resuming
+            tagWriter.writeStanzaAsync(new RequestPacket());
         }
         changeStatusToOnline();
     }
 
+    /**
+     * Drops stanzas from the resumption replay that a later stanza in the same replay makes
+     * obsolete: chat state notifications followed by another chat state to the same recipient and
+     * displayed markers followed by another displayed marker to the same recipient.
+     */
+    private static List<AbstractAcknowledgeableStanza> withoutSupersededStanzas(
+            final List<AbstractAcknowledgeableStanza> stanzas) {
+        final Set<Jid> chatStateRecipients = new HashSet<>();
+        final Set<Jid> displayedRecipients = new HashSet<>();
+        final ArrayList<AbstractAcknowledgeableStanza> replay = new ArrayList<>(stanzas.size());
+        for (int i = stanzas.size() - 1; i >= 0; --i) {
+            final AbstractAcknowledgeableStanza stanza = stanzas.get(i);
+            if (stanza instanceof MessagePacket message && message.getTo() != null) {
+                final Jid to = message.getTo();
+                if (message.isChatStateOnly() && chatStateRecipients.contains(to)) {
+                    continue;
+                }
+                if (message.isDisplayedMarkerOnly() && !displayedRecipients.add(to)) {
+                    continue;
+                }
+                if (ChatState.parse(message) != null) {
+                    chatStateRecipients.add(to);
+                }
+            }
+            replay.add(stanza);
+        }
+        Collections.reverse(replay);
+        return replay;
+    }
+
+    /**
+     * Counts and writes all stanzas in one batch and requests a single acknowledgement for the
+     * whole batch afterwards.
+     */
+    private synchronized void sendPackets(
+            final List<? extends AbstractAcknowledgeableStanza> packets) {
+        if (packets.isEmpty()) {
+            return;
+        }
+        if (stanzasSent > Integer.MAX_VALUE - packets.size()) {
+            resetStreamId();
+            disconnect(true);
+            return;
+        }
+        synchronized (this.mStanzaQueue) {
+            if (this.mStanzaQueue.size() != 0) {
+                final int currentHighestKey = this.mStanzaQueue.keyAt(this.mStanzaQueue.size() - 1);
+                if (currentHighestKey != stanzasSent) {
+                    throw new AssertionError("Stanza count messed up");
+                }
+            }
+            final ArrayList<AbstractStanza> batch = new ArrayList<>(packets.size() + 1);
+            boolean requestAck = false;
+            for (final AbstractAcknowledgeableStanza packet : packets) {
+                ++stanzasSent;
+                this.mStanzaQueue.append(stanzasSent, packet);
+                batch.add(packet);
+                requestAck |= isTrackedForAck(packet);
+            }
+            if (requestAck && inSmacksSession) {
+                batch.add(new RequestPacket());
+            }
+            if (isBound) {
+                tagWriter.writeStanzasAsync(batch);
+            } else {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + " do not write "
+                                + packets.size()
+                                + " stanzas to unbound stream");
+            }
+        }
+    }
+
+    // only messages with an id get an ack requested right away; chat states, markers and receipts
+    // are not worth a round trip of their own
+    private static boolean isTrackedForAck(final AbstractAcknowledgeableStanza stanza) {
+        return stanza instanceof MessagePacket && stanza.getId() != null;
+    }
+
     private void changeStatusToOnline() {
         Log.d(
                 Config.LOGTAG,
@@ -1403,22 +1506,28 @@ public class XmppConnection implements Runnable {
         } catch (final NoSuchAlgorithmException | KeyManagementException e) {
             throw new StateChangingException(Account.State.TLS_ERROR);
         }
-        final InetAddress address = socket.getInetAddress();
+        final String hostname = IDN.toASCII(account.getServer());
+        // the host doubles as the key of the session cache
         final SSLSocket sslSocket =
                 (SSLSocket)
-                        sslSocketFactory.createSocket(
-                                socket, address.getHostAddress(), socket.getPort(), true);
+                        sslSocketFactory.createSocket(socket, hostname, socket.getPort(), true);
         SSLSockets.setSecurity(sslSocket);
-        SSLSockets.setHostname(sslSocket, IDN.toASCII(account.getServer()));
+        SSLSockets.setHostname(sslSocket, hostname);
         SSLSockets.setApplicationProtocol(sslSocket, "xmpp-client");
         final XmppDomainVerifier xmppDomainVerifier = new XmppDomainVerifier();
+        final TlsSessionCache tlsSessionCache = TlsSessionCache.getInstance();
+        final long handshakeStart = SystemClock.elapsedRealtime();
+        final long handshakeStartWallClock = System.currentTimeMillis();
+        final SSLSession session = sslSocket.getSession();
+        final long handshakeDuration = SystemClock.elapsedRealtime() - handshakeStart;
+        final boolean resumed = TlsSessionCache.isResumed(session, handshakeStartWallClock);
         try {
-            if (!xmppDomainVerifier.verify(
-                    account.getServer(), this.verifiedHostname, sslSocket.getSession())) {
+            if (!xmppDomainVerifier.verify(account.getServer(), this.verifiedHostname, session)) {
                 Log.d(
                         Config.LOGTAG,
                         account.getJid().asBareJid()
                                 + ": TLS certificate domain verification failed");
+                tlsSessionCache.invalidate(tlsSessionScope(), hostname, socket.getPort());
                 FileBackend.close(sslSocket);
                 throw new StateChangingException(Account.State.TLS_ERROR_DOMAIN);
             }
@@ -1426,6 +1535,7 @@ public class XmppConnection implements Runnable {
             FileBackend.close(sslSocket);
             throw new StateChangingException(Account.State.TLS_ERROR);
         }
+        tlsSessionCache.recordHandshake(hostname, resumed, handshakeDuration);
         return sslSocket;
     }
 
@@ -1554,7 +1664,11 @@ public class XmppConnection implements Runnable {
         final Collection<ChannelBinding> channelBindings = ChannelBinding.of(cbElement);
         final SaslMechanism.Factory factory = new SaslMechanism.Factory(account);
         final SaslMechanism saslMechanism =
-                factory.of(mechanisms, channelBindings, version, SSLSockets.version(this.socket));
+                factory.of(
+                        mechanisms,
+                        channelBindings,
+                        version,
+                        SSLSockets.version(this.socket));
         this.validate(saslMechanism, mechanisms);
         final boolean quickStartAvailable;
         final String firstMessage =
@@ -1579,7 +1693,9 @@ public class XmppConnection implements Runnable {
                         inline == null ? null : inline.findChild("fast", Namespace.FAST);
                 final Collection<String> fastMechanisms = SaslMechanism.mechanisms(fast);
                 hashTokenRequest =
-                        HashedToken.Mechanism.best(fastMechanisms, SSLSockets.version(this.socket));
+                        HashedToken.Mechanism.best(
+                                fastMechanisms,
+                                SSLSockets.version(this.socket));
             }
             final Collection<String> bindFeatures = Bind2.features(inline);
             quickStartAvailable =
@@ -2103,6 +2219,7 @@ public class XmppConnection implements Runnable {
                             if (jid.equals(account.getDomain())) {
                                 mXmppConnectionService.databaseBackend.insertDiscoveryResult(
                                         result);
+                                CapsRegistry.getInstance().put("sha-1", result.getVer(), result);
                             }
                             disco.put(jid, result);
                             advancedStreamFeaturesLoaded =
@@ -2443,6 +2560,10 @@ public class XmppConnection implements Runnable {
         this.sendPacket(packet);
     }
 
+    public void sendMessagePackets(final List<MessagePacket> packets) {
+        this.sendPackets(packets);
+    }
+
     public void sendPresencePacket(final PresencePacket packet) {
         this.sendPacket(packet);
     }
@@ -2486,7 +2607,7 @@ public class XmppConnection implements Runnable {
                                     + stanzasSent);
                 }
                 this.mStanzaQueue.append(stanzasSent, stanza);
-                if (stanza instanceof MessagePacket && stanza.getId() != null && inSmacksSession) {
+                if (isTrackedForAck(stanza) && inSmacksSession) {
                     if (Config.EXTENDED_SM_LOGGING) {
                         Log.d(
                                 Config.LOGTAG,
@@ -2611,7 +2732,7 @@ public class XmppConnection implements Runnable {
         synchronized (this.disco) {
             final List<Entry<Jid, ServiceDiscoveryResult>> items = new ArrayList<>();
             for (final Entry<Jid, ServiceDiscoveryResult> cursor : this.disco.entrySet()) {
-                if (cursor.getValue().getFeatures().contains(feature)) {
+                if (cursor.getValue().hasFeature(feature)) {
                     items.add(cursor);
                 }
             }
@@ -2647,9 +2768,9 @@ public class XmppConnection implements Runnable {
         synchronized (this.disco) {
             for (final Entry<Jid, ServiceDiscoveryResult> cursor : disco.entrySet()) {
                 final ServiceDiscoveryResult value = cursor.getValue();
-                if (value.getFeatures().contains("http://jabber.org/protocol/muc")
+                if (value.hasFeature("http://jabber.org/protocol/muc")
                         && value.hasIdentity("conference", "text")
-                        && !value.getFeatures().contains("jabber:iq:gateway")
+                        && !value.hasFeature("jabber:iq:gateway")
                         && !value.hasIdentity("conference", "irc")) {
                     servers.add(cursor.getKey().toString());
                 }
@@ -2664,14 +2785,9 @@ public class XmppConnection implements Runnable {
     }
 
     public int getTimeToNextAttempt(final boolean aggressive) {
-        final int interval;
-        if (aggressive) {
-            interval = Math.min((int) (3 * Math.pow(1.3, attempt)), 60);
-        } else {
-            final int additionalTime =
-                    account.getLastErrorStatus() == Account.State.POLICY_VIOLATION ? 3 : 0;
-            interval = Math.min((int) (25 * Math.pow(1.3, (additionalTime + attempt))), 300);
-        }
+        final int additionalTime =
+                account.getLastErrorStatus() == Account.State.POLICY_VIOLATION ? 3 : 0;
+        final int interval = this.backoff.interval(attempt, aggressive, additionalTime);
         final int secondsSinceLast =
                 (int) ((SystemClock.elapsedRealtime() - this.lastConnect) / 1000);
         return interval - secondsSinceLast;
@@ -2862,7 +2978,7 @@ public class XmppConnection implements Runnable {
         private boolean hasDiscoFeature(final Jid server, final String feature) {
             synchronized (XmppConnection.this.disco) {
                 final ServiceDiscoveryResult sdr = connection.disco.get(server);
-                return sdr != null && sdr.getFeatures().contains(feature);
+                return sdr != null && sdr.hasFeature(feature);
             }
         }
 
@@ -2930,8 +3046,7 @@ public class XmppConnection implements Runnable {
             synchronized (XmppConnection.this.disco) {
                 ServiceDiscoveryResult info = disco.get(account.getJid().asBareJid());
                 return info != null
-                        && info.getFeatures()
-                                .contains("http://jabber.org/protocol/pubsub#persistent-items");
+                        && info.hasFeature("http://jabber.org/protocol/pubsub#persistent-items");
             }
         }
 
@@ -343,9 +343,7 @@ public abstract class AbstractJingleConnection {
                 contact.getPresences().get(Strings.nullToEmpty(id.with.getResource()));
         final ServiceDiscoveryResult serviceDiscoveryResult =
                 presence == null ? null : presence.getServiceDiscoveryResult();
-        final List<String> features =
-                serviceDiscoveryResult == null ? null : serviceDiscoveryResult.getFeatures();
-        return features != null && features.contains(feature);
+        return serviceDiscoveryResult != null && serviceDiscoveryResult.hasFeature(feature);
     }
 
     public static class Id implements OngoingRtpSession {
@@ -936,7 +936,7 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
     private AbstractFileTransceiver setupTransceiver(final boolean receiving) throws IOException {
         final var fileDescription = getLocalContentMap().requireOnlyFile();
         final File file = xmppConnectionService.getFileBackend().getFile(message);
-        final Runnable updateRunnable = () -> jingleConnectionManager.updateConversationUi(false);
+        final Runnable updateRunnable = () -> jingleConnectionManager.updateConversationUi(false, message);
         if (receiving) {
             return new FileReceiver(
                     file,
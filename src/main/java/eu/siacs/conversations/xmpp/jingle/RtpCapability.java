@@ -6,7 +6,6 @@ import com.google.common.collect.Collections2;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -31,12 +30,11 @@ public class RtpCapability {
 
     public static Capability check(final Presence presence) {
         final ServiceDiscoveryResult disco = presence.getServiceDiscoveryResult();
-        final List<String> features = disco == null ? Collections.emptyList() : disco.getFeatures();
-        if (features.containsAll(BASIC_RTP_REQUIREMENTS)) {
-            if (features.containsAll(VIDEO_REQUIREMENTS)) {
+        if (disco != null && disco.hasFeatures(BASIC_RTP_REQUIREMENTS)) {
+            if (disco.hasFeatures(VIDEO_REQUIREMENTS)) {
                 return Capability.VIDEO;
             }
-            if (features.contains(Namespace.JINGLE_FEATURE_AUDIO)) {
+            if (disco.hasFeature(Namespace.JINGLE_FEATURE_AUDIO)) {
                 return Capability.AUDIO;
             }
         }
@@ -87,7 +85,7 @@ public class RtpCapability {
                         p -> RtpCapability.check(p) != RtpCapability.Capability.NONE),
                 p -> {
                     ServiceDiscoveryResult disco = p.getServiceDiscoveryResult();
-                    return disco != null && disco.getFeatures().contains(Namespace.JINGLE_MESSAGE);
+                    return disco != null && disco.hasFeature(Namespace.JINGLE_MESSAGE);
                 }).contains(false);
     }
 
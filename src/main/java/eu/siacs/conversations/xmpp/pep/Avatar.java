@@ -1,7 +1,5 @@
 package eu.siacs.conversations.xmpp.pep;
 
-import android.util.Base64;
-
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xmpp.Jid;
 
@@ -16,12 +14,10 @@ public class Avatar {
 	public int width;
 	public long size;
 	public Jid owner;
+	// alternative http(s) location of the same image announced in the metadata
+	public String url;
 	public Origin origin = Origin.PEP; //default to maintain compat
 
-	public byte[] getImageAsBytes() {
-		return Base64.decode(image, Base64.DEFAULT);
-	}
-
 	public String getFilename() {
 		return sha1sum;
 	}
@@ -65,6 +61,7 @@ public class Avatar {
 					return null;
 				}
 				avatar.sha1sum = hash;
+				avatar.url = child.getAttribute("url");
 				avatar.origin = Origin.PEP;
 				return avatar;
 			}
@@ -88,6 +88,31 @@ public class MessagePacket extends AbstractAcknowledgeableStanza {
 		return new Pair(packet,timestamp);
 	}
 
+	public boolean isChatStateOnly() {
+		return consistsOnlyOf("http://jabber.org/protocol/chatstates", null);
+	}
+
+	public boolean isDisplayedMarkerOnly() {
+		return consistsOnlyOf("urn:xmpp:chat-markers:0", "displayed");
+	}
+
+	/**
+	 * @return true if the packet has at least one child in the given namespace (optionally with
+	 * the given name) and every other child is a processing hint
+	 */
+	private boolean consistsOnlyOf(final String namespace, final String name) {
+		boolean found = false;
+		for (final Element child : this.children) {
+			final String childNamespace = child.getNamespace();
+			if (namespace.equals(childNamespace) && (name == null || name.equals(child.getName()))) {
+				found = true;
+			} else if (!"urn:xmpp:hints".equals(childNamespace)) {
+				return false;
+			}
+		}
+		return found;
+	}
+
 	public static MessagePacket create(Element element) {
 		if (element == null) {
 			return null;